@@ -0,0 +1,59 @@
+package benchmarks;
+
+import domain.Instruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.SettlementCalendars;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The date adjustment done by the instruction service, through the same calendars and without validation and
+ * ranking around it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AdaptSettlementDatesBenchmark {
+
+    private static final int SIZE = 4096;
+
+    private final SettlementCalendars settlementCalendars = SettlementCalendars.weekendsOnly();
+
+    private Instruction[] instructions;
+    private LocalDate[] settlementDates;
+
+    @Setup
+    public void generate() {
+        List<Instruction> generated = SyntheticInstructions.generate(SIZE, 42);
+        instructions = generated.toArray(new Instruction[0]);
+        settlementDates = new LocalDate[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            settlementDates[i] = instructions[i].getSettlementDate();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void adaptSettlementDates() {
+        for (int i = 0; i < SIZE; i++) {
+            //Start from the generated date so weekend dates are adapted on every run
+            Instruction instruction = instructions[i];
+            instruction.setSettlementDate(settlementCalendars.forCurrencyId(instruction.getCurrencyId()).nextWorkingDay(settlementDates[i]));
+        }
+    }
+}
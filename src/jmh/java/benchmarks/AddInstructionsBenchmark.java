@@ -0,0 +1,71 @@
+package benchmarks;
+
+import domain.Instruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import output.ProcessedInstructions;
+import services.InstructionPipeline;
+import services.InstructionService;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One call per iteration, each on instructions no book has stored yet: a stored instruction is copied by the next book
+ * it is added to, and its weekend settlement date is already adapted
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4g")
+public class AddInstructionsBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int size;
+
+    private final InstructionService instructionService = new InstructionService();
+
+    private List<Instruction> generated;
+    private List<Instruction> instructions;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        generated = SyntheticInstructions.generate(size, 42);
+    }
+
+    /**
+     * Fresh copies for the single call of the iteration, outside of its time
+     */
+    @Setup(Level.Iteration)
+    public void copy() {
+        instructions = SyntheticInstructions.copy(generated);
+    }
+
+    @Benchmark
+    public ProcessedInstructions addInstructions() {
+        return instructionService.addInstructions(instructions);
+    }
+
+    /**
+     * Includes starting and stopping the three stage threads, small next to the larger sizes
+     */
+    @Benchmark
+    public ProcessedInstructions addInstructionsThroughPipeline() {
+        try (InstructionPipeline<ProcessedInstructions> pipeline = instructionService.pipeline(new ProcessedInstructions(), 8192)) {
+            pipeline.publish(instructions.iterator());
+            return pipeline.flush();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import domain.Instruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import utils.ComparatorByUsdAmountDescending;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ComparatorBenchmark {
+
+    private static final int PAIRS = 1024;
+    private static final int SORT_SIZE = 100_000;
+
+    private final ComparatorByUsdAmountDescending comparator = new ComparatorByUsdAmountDescending();
+
+    private Instruction[] instructions;
+    private List<Instruction> unsorted;
+
+    @Setup
+    public void generate() {
+        instructions = SyntheticInstructions.generate(PAIRS + 1, 42).toArray(new Instruction[0]);
+        unsorted = SyntheticInstructions.generate(SORT_SIZE, 7);
+        //Amounts are cached on first use, as they are once an instruction has been ranked
+        for (Instruction instruction : instructions) {
+            instruction.getUsdSortKey();
+        }
+        unsorted.forEach(Instruction::getUsdSortKey);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void compare(Blackhole blackhole) {
+        for (int i = 0; i < PAIRS; i++) {
+            blackhole.consume(comparator.compare(instructions[i], instructions[i + 1]));
+        }
+    }
+
+    @Benchmark
+    public List<Instruction> sort() {
+        List<Instruction> sorted = new ArrayList<>(unsorted);
+        sorted.sort(comparator);
+        return sorted;
+    }
+}
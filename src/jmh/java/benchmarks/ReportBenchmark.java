@@ -0,0 +1,81 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import output.ProcessedInstructions;
+import services.InstructionService;
+import services.ReportCache;
+import services.ReportService;
+
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ReportBenchmark {
+
+    @Param({"FIXED_WIDTH", "CSV", "JSON"})
+    private ReportService.Format format;
+
+    private ProcessedInstructions processedInstructions;
+    private LocalDate busiestDate;
+    private ReportService reportService;
+    private ReportCache reportCache;
+
+    @Setup
+    public void process() {
+        processedInstructions = new InstructionService().addInstructions(SyntheticInstructions.generate(100_000, 42));
+        busiestDate = processedInstructions.getUsdIncomingAmountPerDate().keySet().stream()
+                .max((date1, date2) -> Integer.compare(processedInstructions.getIncomingInstructionsOn(date1).size(),
+                        processedInstructions.getIncomingInstructionsOn(date2).size()))
+                .orElseThrow();
+        reportService = new ReportService(new DiscardingWriter(), format);
+        reportCache = new ReportCache(processedInstructions, format, 64 * 1024 * 1024);
+    }
+
+    @Benchmark
+    public void writeIncomingByDate() {
+        reportService.writeIncomingByDate(processedInstructions, busiestDate);
+        reportService.flush();
+    }
+
+    /**
+     * The book does not change, every call after the first one is served from the cache
+     */
+    @Benchmark
+    public String getCachedIncomingByDate() {
+        return reportCache.getIncomingByDate(busiestDate, 0, ReportService.UNLIMITED);
+    }
+
+    /**
+     * Measures rendering only, the characters go nowhere
+     */
+    private static class DiscardingWriter extends Writer {
+
+        @Override
+        public void write(char[] characters, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
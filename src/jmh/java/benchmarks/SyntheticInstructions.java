@@ -0,0 +1,84 @@
+package benchmarks;
+
+import domain.Instruction;
+import domain.Type;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible instructions shaped like a real feed: a few entities and currencies carry most of the volume, amounts
+ * follow a long tail and settlement dates fall on any day of the week, weekends of both calendars included.
+ */
+public final class SyntheticInstructions {
+
+    private static final int ENTITIES = 1000;
+    private static final LocalDate FIRST_DATE = LocalDate.of(2018, 1, 1);
+    private static final int DAYS = 365;
+
+    //Most traded currencies first, AED and SAR settle Sunday to Thursday
+    private static final String[] CURRENCIES = {"USD", "EUR", "GBP", "JPY", "AED", "SAR", "CHF"};
+    private static final String[] AGREED_FX = {"1", "1.08", "1.27", "0.0067", "0.27", "0.27", "1.12"};
+
+    private SyntheticInstructions() {
+    }
+
+    /**
+     * @param count number of instructions
+     * @param seed  same seed, same instructions
+     */
+    public static List<Instruction> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<Instruction> instructions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int currency = skewed(random, CURRENCIES.length);
+            LocalDate instructionDate = FIRST_DATE.plusDays(random.nextInt(DAYS));
+
+            Instruction instruction = new Instruction();
+            instruction.setEntity("Entity" + skewed(random, ENTITIES));
+            instruction.setType(random.nextBoolean() ? Type.BUY : Type.SELL);
+            instruction.setCurrency(Currency.getInstance(CURRENCIES[currency]));
+            instruction.setAgreedFx(new BigDecimal(AGREED_FX[currency]));
+            instruction.setInstructionDate(instructionDate);
+            instruction.setSettlementDate(instructionDate.plusDays(random.nextInt(4)));
+            //Log-normal prices and a long tail of large orders
+            instruction.setPricePerUnit(BigDecimal.valueOf(Math.exp(4 + 1.5 * random.nextGaussian())).setScale(2, RoundingMode.HALF_UP));
+            instruction.setUnits(1 + (int) Math.min(1_000_000, 10 / Math.pow(1 - random.nextDouble(), 1.5)));
+            instructions.add(instruction);
+        }
+        return instructions;
+    }
+
+    /**
+     * Processing adapts settlement dates and caches amounts in USD, copies let every run start from the same state
+     */
+    public static List<Instruction> copy(List<Instruction> instructions) {
+        List<Instruction> copies = new ArrayList<>(instructions.size());
+        for (Instruction instruction : instructions) {
+            Instruction copy = new Instruction();
+            copy.setEntity(instruction.getEntity());
+            copy.setType(instruction.getType());
+            copy.setCurrency(instruction.getCurrency());
+            copy.setAgreedFx(instruction.getAgreedFx());
+            copy.setInstructionDate(instruction.getInstructionDate());
+            copy.setSettlementDate(instruction.getSettlementDate());
+            copy.setPricePerUnit(instruction.getPricePerUnit());
+            copy.setUnits(instruction.getUnits());
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * @return value in [0, bound) where low values are much more likely
+     */
+    private static int skewed(Random random, int bound) {
+        double uniform = random.nextDouble();
+        return (int) (bound * uniform * uniform * uniform);
+    }
+}
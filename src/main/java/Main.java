@@ -17,7 +17,7 @@ public class Main {
         Instruction instruction1 = new Instruction();
         instruction1.setEntity("Google");
         instruction1.setType(Type.BUY);
-        instruction1.setAgreedFx(new BigDecimal(1.11));
+        instruction1.setAgreedFx(new BigDecimal("1.11"));
         instruction1.setCurrency(Currency.getInstance("GBP"));
         instruction1.setInstructionDate(LocalDate.of(2018, 1, 10));
         instruction1.setSettlementDate(LocalDate.of(2018, 1, 15));
@@ -27,7 +27,7 @@ public class Main {
         Instruction instruction2 = new Instruction();
         instruction2.setEntity("Yahoo");
         instruction2.setType(Type.BUY);
-        instruction2.setAgreedFx(new BigDecimal(19.001));
+        instruction2.setAgreedFx(new BigDecimal("19.001"));
         instruction2.setCurrency(Currency.getInstance("AED"));
         instruction2.setInstructionDate(LocalDate.of(2018, 1, 10));
         instruction2.setSettlementDate(LocalDate.of(2018, 6, 20));
@@ -37,7 +37,7 @@ public class Main {
         Instruction instruction3 = new Instruction();
         instruction3.setEntity("Asus");
         instruction3.setType(Type.BUY);
-        instruction3.setAgreedFx(new BigDecimal(1.11));
+        instruction3.setAgreedFx(new BigDecimal("1.11"));
         instruction3.setCurrency(Currency.getInstance("GBP"));
         instruction3.setInstructionDate(LocalDate.of(2018, 3, 12));
         instruction3.setSettlementDate(LocalDate.of(2018, 1, 15));
@@ -49,7 +49,7 @@ public class Main {
         Instruction instruction4 = new Instruction();
         instruction4.setEntity("Lego");
         instruction4.setType(Type.SELL);
-        instruction4.setAgreedFx(new BigDecimal(0.27));
+        instruction4.setAgreedFx(new BigDecimal("0.27"));
         instruction4.setCurrency(Currency.getInstance("SAR"));
         instruction4.setInstructionDate(LocalDate.of(2018, 3, 12));
         instruction4.setSettlementDate(LocalDate.of(2018, 6, 10));
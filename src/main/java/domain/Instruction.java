@@ -1,15 +1,22 @@
 package domain;
 
-import services.InstructionService;
+import utils.FixedPointMath;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.Currency;
-import java.util.Objects;
 
 public class Instruction {
 
+    //Order the book holding the instruction stored it in, so instructions with equal amounts in USD keep distinct
+    //places in its rankings. 0 until it is stored
+    private long sequence;
+    //Unique per trade, null for instructions that cannot be amended or told apart from a replay
+    private String id;
     private String entity;
+    //Ids in the global symbol dictionary, UNKNOWN while entity or currency are null
+    private int entityId = SymbolDictionary.UNKNOWN;
+    private int currencyId = SymbolDictionary.UNKNOWN;
     private Type type;
     private BigDecimal agreedFx;
     private Currency currency;
@@ -18,12 +25,96 @@ public class Instruction {
     private int units;
     private BigDecimal pricePerUnit;
 
+    //Amount in USD as a fixed point long, computed once and reset whenever price, fx or units change
+    private boolean amountInUsdComputed;
+    private long usdSortKey;
+    private boolean usdSortKeyExact;
+    private BigDecimal amountInUsd;
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param sequence order of the instruction in the book storing it, set by the book and not changed while the
+     *                 instruction is ranked there
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param id trade id, replays and corrections of the same trade have the same id
+     */
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @param agreedFx rate the copy is valued at
+     * @return copy of the instruction at another rate, with the same sequence so it ranks in place of this one on ties
+     */
+    public Instruction withAgreedFx(BigDecimal agreedFx) {
+        Instruction copy = copy();
+        copy.sequence = sequence;
+        copy.setAgreedFx(agreedFx);
+        return copy;
+    }
+
+    /**
+     * @return copy of the instruction that no book has stored yet, so another book can store it
+     */
+    public Instruction copy() {
+        Instruction copy = new Instruction();
+        copy.id = id;
+        copy.entity = entity;
+        copy.entityId = entityId;
+        copy.type = type;
+        copy.currency = currency;
+        copy.currencyId = currencyId;
+        copy.instructionDate = instructionDate;
+        copy.settlementDate = settlementDate;
+        copy.units = units;
+        copy.pricePerUnit = pricePerUnit;
+        copy.agreedFx = agreedFx;
+        copy.amountInUsdComputed = amountInUsdComputed;
+        copy.usdSortKey = usdSortKey;
+        copy.usdSortKeyExact = usdSortKeyExact;
+        copy.amountInUsd = amountInUsd;
+        return copy;
+    }
+
     public String getEntity() {
         return entity;
     }
 
+    /**
+     * @param entity entity name, replaced by the instance held in the global symbol dictionary
+     * @throws IllegalStateException if the entity is new and the global dictionary is full, see {@link SymbolDictionary}
+     */
     public void setEntity(String entity) {
-        this.entity = entity;
+        if (entity == null) {
+            this.entity = null;
+            this.entityId = SymbolDictionary.UNKNOWN;
+        } else {
+            setEntityId(SymbolDictionary.global().entityId(entity));
+        }
+    }
+
+    public int getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * @param entityId id of the entity in the global symbol dictionary
+     */
+    public void setEntityId(int entityId) {
+        this.entity = SymbolDictionary.global().entity(entityId);
+        this.entityId = entityId;
     }
 
     public Type getType() {
@@ -40,6 +131,7 @@ public class Instruction {
 
     public void setAgreedFx(BigDecimal agreedFx) {
         this.agreedFx = agreedFx;
+        this.amountInUsdComputed = false;
     }
 
     public Currency getCurrency() {
@@ -48,6 +140,19 @@ public class Instruction {
 
     public void setCurrency(Currency currency) {
         this.currency = currency;
+        this.currencyId = currency == null ? SymbolDictionary.UNKNOWN : SymbolDictionary.global().currencyId(currency);
+    }
+
+    public int getCurrencyId() {
+        return currencyId;
+    }
+
+    /**
+     * @param currencyId id of the currency in the global symbol dictionary
+     */
+    public void setCurrencyId(int currencyId) {
+        this.currency = SymbolDictionary.global().currency(currencyId);
+        this.currencyId = currencyId;
     }
 
     public LocalDate getInstructionDate() {
@@ -72,6 +177,7 @@ public class Instruction {
 
     public void setUnits(int units) {
         this.units = units;
+        this.amountInUsdComputed = false;
     }
 
     public BigDecimal getPricePerUnit() {
@@ -80,8 +186,63 @@ public class Instruction {
 
     public void setPricePerUnit(BigDecimal pricePerUnit) {
         this.pricePerUnit = pricePerUnit;
+        this.amountInUsdComputed = false;
+    }
+
+    /**
+     * @return price per unit * units * agreed fx, rounded to {@link FixedPointMath#SCALE} decimals
+     */
+    public BigDecimal getAmountInUsd() {
+        computeAmountInUsd();
+        if (amountInUsd == null) {
+            amountInUsd = FixedPointMath.toBigDecimal(usdSortKey);
+        }
+        return amountInUsd;
+    }
+
+    /**
+     * @return amount in USD as a fixed point long, saturated if it does not fit
+     */
+    public long getUsdSortKey() {
+        computeAmountInUsd();
+        return usdSortKey;
+    }
+
+    /**
+     * @return false if the amount in USD did not fit in the sort key and only {@link #getAmountInUsd()} is exact
+     */
+    public boolean isUsdSortKeyExact() {
+        computeAmountInUsd();
+        return usdSortKeyExact;
+    }
+
+    private void computeAmountInUsd() {
+        if (amountInUsdComputed) {
+            return;
+        }
+        amountInUsd = null;
+        try {
+            //Operands keep their own scale, only the product is rounded
+            long notional = Math.multiplyExact(pricePerUnit.unscaledValue().longValueExact(), units);
+            usdSortKey = FixedPointMath.multiply(notional, pricePerUnit.scale(), agreedFx.unscaledValue().longValueExact(), agreedFx.scale());
+            usdSortKeyExact = true;
+        } catch (ArithmeticException e) {
+            //Operands with too many digits or decimals, the amount itself may still fit
+            amountInUsd = FixedPointMath.round(pricePerUnit.multiply(BigDecimal.valueOf(units)).multiply(agreedFx));
+            usdSortKeyExact = FixedPointMath.fits(amountInUsd);
+            if (usdSortKeyExact) {
+                usdSortKey = FixedPointMath.toFixed(amountInUsd);
+            } else {
+                usdSortKey = amountInUsd.signum() >= 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+            }
+        }
+        amountInUsdComputed = true;
     }
 
+    /**
+     * Instructions are the same trade when they have the same id, an instruction without an id is only equal to itself.
+     * Rankings order instructions by amount in USD through their comparator, not through equals
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -91,11 +252,11 @@ public class Instruction {
             return false;
         }
         Instruction that = (Instruction) o;
-        return InstructionService.getAmountInUSD(this).equals(InstructionService.getAmountInUSD(that));
+        return id != null && id.equals(that.id);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(agreedFx, units, pricePerUnit);
+        return id != null ? id.hashCode() : System.identityHashCode(this);
     }
 }
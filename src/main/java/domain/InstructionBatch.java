@@ -0,0 +1,243 @@
+package domain;
+
+import utils.FixedPointMath;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Currency;
+
+/**
+ * Instructions stored column by column in primitive arrays, entities and currencies are ids in the global
+ * {@link SymbolDictionary}, dates are epoch days and the amount in USD is a fixed point long, see {@link FixedPointMath}.
+ * Price per unit and agreed fx keep the decimals they were given as an unscaled long and its scale, so the amount in USD
+ * is only rounded once, as in {@link Instruction#getAmountInUsd()}.
+ * <p>
+ * The amount in USD column is filled when the batch is processed, see {@link services.InstructionService#processBatch(InstructionBatch)}.
+ */
+public class InstructionBatch {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final SymbolDictionary dictionary = SymbolDictionary.global();
+
+    private int size;
+    private int[] entityColumn;
+    private byte[] typeColumn;
+    private int[] currencyColumn;
+    private int[] instructionDateColumn;
+    private int[] settlementDateColumn;
+    private int[] unitsColumn;
+    private long[] pricePerUnitColumn;
+    private byte[] pricePerUnitScaleColumn;
+    private long[] agreedFxColumn;
+    private byte[] agreedFxScaleColumn;
+    private long[] amountInUsdColumn;
+
+    public InstructionBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public InstructionBatch(int capacity) {
+        entityColumn = new int[capacity];
+        typeColumn = new byte[capacity];
+        currencyColumn = new int[capacity];
+        instructionDateColumn = new int[capacity];
+        settlementDateColumn = new int[capacity];
+        unitsColumn = new int[capacity];
+        pricePerUnitColumn = new long[capacity];
+        pricePerUnitScaleColumn = new byte[capacity];
+        agreedFxColumn = new long[capacity];
+        agreedFxScaleColumn = new byte[capacity];
+        amountInUsdColumn = new long[capacity];
+    }
+
+    /**
+     * @param instruction valid instruction, price per unit and agreed fx keep their decimals
+     * @return row of the instruction
+     * @throws ArithmeticException if the unscaled value of price per unit or agreed fx does not fit in a long, or
+     *                             they have more than {@link Byte#MAX_VALUE} decimals
+     */
+    public int add(Instruction instruction) {
+        BigDecimal pricePerUnit = unscalable(instruction.getPricePerUnit());
+        BigDecimal agreedFx = unscalable(instruction.getAgreedFx());
+        int row = add(instruction.getEntityId(), instruction.getType(), instruction.getCurrencyId(),
+                instruction.getInstructionDate(), instruction.getSettlementDate(), instruction.getUnits(),
+                pricePerUnit.unscaledValue().longValueExact(), agreedFx.unscaledValue().longValueExact());
+        pricePerUnitScaleColumn[row] = (byte) pricePerUnit.scale();
+        agreedFxScaleColumn[row] = (byte) agreedFx.scale();
+        return row;
+    }
+
+    /**
+     * @return the value with a scale that fits in a byte column, without rounding it
+     */
+    private static BigDecimal unscalable(BigDecimal value) {
+        if (value.scale() < 0) {
+            return value.setScale(0);
+        }
+        if (value.scale() > Byte.MAX_VALUE) {
+            throw new ArithmeticException("Too many decimals: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * @param pricePerUnit fixed point price per unit
+     * @param agreedFx     fixed point agreed fx
+     * @return row of the instruction
+     */
+    public int add(int entityId, Type type, int currencyId, LocalDate instructionDate, LocalDate settlementDate,
+                   int units, long pricePerUnit, long agreedFx) {
+        if (size == entityColumn.length) {
+            grow();
+        }
+        int row = size++;
+        entityColumn[row] = entityId;
+        typeColumn[row] = (byte) type.Type();
+        currencyColumn[row] = currencyId;
+        instructionDateColumn[row] = Math.toIntExact(instructionDate.toEpochDay());
+        settlementDateColumn[row] = Math.toIntExact(settlementDate.toEpochDay());
+        unitsColumn[row] = units;
+        pricePerUnitColumn[row] = pricePerUnit;
+        pricePerUnitScaleColumn[row] = FixedPointMath.SCALE;
+        agreedFxColumn[row] = agreedFx;
+        agreedFxScaleColumn[row] = FixedPointMath.SCALE;
+        return row;
+    }
+
+    private void grow() {
+        int capacity = Math.max(DEFAULT_CAPACITY, entityColumn.length * 2);
+        entityColumn = Arrays.copyOf(entityColumn, capacity);
+        typeColumn = Arrays.copyOf(typeColumn, capacity);
+        currencyColumn = Arrays.copyOf(currencyColumn, capacity);
+        instructionDateColumn = Arrays.copyOf(instructionDateColumn, capacity);
+        settlementDateColumn = Arrays.copyOf(settlementDateColumn, capacity);
+        unitsColumn = Arrays.copyOf(unitsColumn, capacity);
+        pricePerUnitColumn = Arrays.copyOf(pricePerUnitColumn, capacity);
+        pricePerUnitScaleColumn = Arrays.copyOf(pricePerUnitScaleColumn, capacity);
+        agreedFxColumn = Arrays.copyOf(agreedFxColumn, capacity);
+        agreedFxScaleColumn = Arrays.copyOf(agreedFxScaleColumn, capacity);
+        amountInUsdColumn = Arrays.copyOf(amountInUsdColumn, capacity);
+    }
+
+    public int entityId(String entity) {
+        return dictionary.entityId(entity);
+    }
+
+    public int currencyId(Currency currency) {
+        return dictionary.currencyId(currency);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of currency ids, every currency id in the batch is lower
+     */
+    public int currencyCount() {
+        return dictionary.currencyCount();
+    }
+
+    public int getEntityId(int row) {
+        return entityColumn[row];
+    }
+
+    public String getEntity(int row) {
+        return dictionary.entity(entityColumn[row]);
+    }
+
+    public Type getType(int row) {
+        return Type.of((char) typeColumn[row]);
+    }
+
+    public boolean isIncoming(int row) {
+        return typeColumn[row] == Type.SELL.Type();
+    }
+
+    public int getCurrencyId(int row) {
+        return currencyColumn[row];
+    }
+
+    public Currency getCurrency(int row) {
+        return dictionary.currency(currencyColumn[row]);
+    }
+
+    public Currency getCurrencyById(int currencyId) {
+        return dictionary.currency(currencyId);
+    }
+
+    public int getInstructionEpochDay(int row) {
+        return instructionDateColumn[row];
+    }
+
+    public int getSettlementEpochDay(int row) {
+        return settlementDateColumn[row];
+    }
+
+    public void setSettlementEpochDay(int row, int settlementEpochDay) {
+        settlementDateColumn[row] = settlementEpochDay;
+    }
+
+    public int getUnits(int row) {
+        return unitsColumn[row];
+    }
+
+    /**
+     * @return unscaled price per unit, see {@link #getPricePerUnitScale(int)}
+     */
+    public long getPricePerUnit(int row) {
+        return pricePerUnitColumn[row];
+    }
+
+    public int getPricePerUnitScale(int row) {
+        return pricePerUnitScaleColumn[row];
+    }
+
+    /**
+     * @return unscaled agreed fx, see {@link #getAgreedFxScale(int)}
+     */
+    public long getAgreedFx(int row) {
+        return agreedFxColumn[row];
+    }
+
+    public int getAgreedFxScale(int row) {
+        return agreedFxScaleColumn[row];
+    }
+
+    /**
+     * @return price per unit * units * agreed fx as a fixed point long with a single rounding, as
+     * {@link Instruction#getAmountInUsd()}: through BigDecimal when the fixed point product overflows
+     * @throws ArithmeticException if the amount does not fit in fixed point
+     */
+    public long computeAmountInUsd(int row) {
+        long pricePerUnit = pricePerUnitColumn[row];
+        int pricePerUnitScale = pricePerUnitScaleColumn[row];
+        long agreedFx = agreedFxColumn[row];
+        int agreedFxScale = agreedFxScaleColumn[row];
+        try {
+            long notional = Math.multiplyExact(pricePerUnit, unitsColumn[row]);
+            return FixedPointMath.multiply(notional, pricePerUnitScale, agreedFx, agreedFxScale);
+        } catch (ArithmeticException e) {
+            return FixedPointMath.toFixed(BigDecimal.valueOf(pricePerUnit, pricePerUnitScale)
+                    .multiply(BigDecimal.valueOf(unitsColumn[row]))
+                    .multiply(BigDecimal.valueOf(agreedFx, agreedFxScale)));
+        }
+    }
+
+    public long getAmountInUsd(int row) {
+        return amountInUsdColumn[row];
+    }
+
+    public void setAmountInUsd(int row, long amountInUsd) {
+        amountInUsdColumn[row] = amountInUsd;
+    }
+
+    /**
+     * @return the amount in USD column, only the first {@link #size()} values are instructions
+     */
+    public long[] getAmountInUsdColumn() {
+        return amountInUsdColumn;
+    }
+}
@@ -0,0 +1,179 @@
+package domain;
+
+import utils.FixedPointMath;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+
+/**
+ * Append-only instruction records stored outside of the heap, in direct buffers allocated one slab at a time.
+ * Entities and currencies are ids in the global {@link SymbolDictionary}, dates are epoch days and amounts are fixed point longs,
+ * see {@link FixedPointMath}.
+ * <pre>
+ * record  entity id (int), type code (byte), unused (byte), currency id (short), instruction date (int epoch day),
+ *         settlement date (int epoch day), units (int), price per unit (long), agreed fx (long), amount in USD (long),
+ *         unused (int)
+ * </pre>
+ */
+public class InstructionSlabs {
+
+    private static final int RECORD_SIZE = 48;
+    private static final int ENTITY_ID_OFFSET = 0;
+    private static final int TYPE_OFFSET = 4;
+    private static final int CURRENCY_ID_OFFSET = 6;
+    private static final int INSTRUCTION_DATE_OFFSET = 8;
+    private static final int SETTLEMENT_DATE_OFFSET = 12;
+    private static final int UNITS_OFFSET = 16;
+    private static final int PRICE_PER_UNIT_OFFSET = 20;
+    private static final int AGREED_FX_OFFSET = 28;
+    private static final int AMOUNT_IN_USD_OFFSET = 36;
+
+    //3MB per slab
+    private static final int RECORDS_PER_SLAB_SHIFT = 16;
+    private static final int RECORDS_PER_SLAB = 1 << RECORDS_PER_SLAB_SHIFT;
+    private static final int RECORD_IN_SLAB_MASK = RECORDS_PER_SLAB - 1;
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+
+    private final SymbolDictionary dictionary = SymbolDictionary.global();
+
+    private int size;
+
+    /**
+     * @return true if the amounts of the valid instruction fit in a record, see {@link #add(Instruction)}
+     */
+    public static boolean fits(Instruction instruction) {
+        return instruction.isUsdSortKeyExact() && FixedPointMath.fits(instruction.getPricePerUnit())
+                && FixedPointMath.fits(instruction.getAgreedFx());
+    }
+
+    /**
+     * @param instruction valid instruction whose amount in USD fits in fixed point, price per unit and agreed fx are
+     *                    rounded to fixed point
+     * @return record of the instruction
+     * @throws IllegalArgumentException if an amount of the instruction does not fit in fixed point, see {@link #fits(Instruction)}
+     */
+    public int add(Instruction instruction) {
+        if (!instruction.isUsdSortKeyExact()) {
+            throw new IllegalArgumentException("The amount in USD of the instruction does not fit in fixed point");
+        }
+        if (size == Integer.MAX_VALUE) {
+            throw new IllegalStateException("No more instructions can be stored");
+        }
+        int currencyId = instruction.getCurrencyId();
+        if (currencyId > Short.MAX_VALUE) {
+            throw new IllegalStateException("No more currencies can be stored");
+        }
+        long pricePerUnit;
+        long agreedFx;
+        try {
+            pricePerUnit = FixedPointMath.toFixed(instruction.getPricePerUnit());
+            agreedFx = FixedPointMath.toFixed(instruction.getAgreedFx());
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Price per unit and agreed fx should fit in fixed point", e);
+        }
+        int record = size;
+        if ((record & RECORD_IN_SLAB_MASK) == 0) {
+            slabs.add(ByteBuffer.allocateDirect(RECORDS_PER_SLAB * RECORD_SIZE));
+        }
+        ByteBuffer slab = slab(record);
+        int offset = offset(record);
+        slab.putInt(offset + ENTITY_ID_OFFSET, instruction.getEntityId());
+        slab.put(offset + TYPE_OFFSET, (byte) instruction.getType().Type());
+        slab.putShort(offset + CURRENCY_ID_OFFSET, (short) currencyId);
+        slab.putInt(offset + INSTRUCTION_DATE_OFFSET, Math.toIntExact(instruction.getInstructionDate().toEpochDay()));
+        slab.putInt(offset + SETTLEMENT_DATE_OFFSET, Math.toIntExact(instruction.getSettlementDate().toEpochDay()));
+        slab.putInt(offset + UNITS_OFFSET, instruction.getUnits());
+        slab.putLong(offset + PRICE_PER_UNIT_OFFSET, pricePerUnit);
+        slab.putLong(offset + AGREED_FX_OFFSET, agreedFx);
+        slab.putLong(offset + AMOUNT_IN_USD_OFFSET, instruction.getUsdSortKey());
+        size++;
+        return record;
+    }
+
+    private ByteBuffer slab(int record) {
+        return slabs.get(record >>> RECORDS_PER_SLAB_SHIFT);
+    }
+
+    private static int offset(int record) {
+        return (record & RECORD_IN_SLAB_MASK) * RECORD_SIZE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return bytes allocated outside of the heap
+     */
+    public long offHeapBytes() {
+        return (long) slabs.size() * RECORDS_PER_SLAB * RECORD_SIZE;
+    }
+
+    public int getEntityId(int record) {
+        return slab(record).getInt(offset(record) + ENTITY_ID_OFFSET);
+    }
+
+    public String getEntity(int record) {
+        return dictionary.entity(getEntityId(record));
+    }
+
+    public Type getType(int record) {
+        return Type.of((char) slab(record).get(offset(record) + TYPE_OFFSET));
+    }
+
+    public boolean isIncoming(int record) {
+        return slab(record).get(offset(record) + TYPE_OFFSET) == Type.SELL.Type();
+    }
+
+    public int getCurrencyId(int record) {
+        return slab(record).getShort(offset(record) + CURRENCY_ID_OFFSET);
+    }
+
+    public Currency getCurrency(int record) {
+        return dictionary.currency(getCurrencyId(record));
+    }
+
+    public int getInstructionEpochDay(int record) {
+        return slab(record).getInt(offset(record) + INSTRUCTION_DATE_OFFSET);
+    }
+
+    public int getSettlementEpochDay(int record) {
+        return slab(record).getInt(offset(record) + SETTLEMENT_DATE_OFFSET);
+    }
+
+    public int getUnits(int record) {
+        return slab(record).getInt(offset(record) + UNITS_OFFSET);
+    }
+
+    public long getPricePerUnit(int record) {
+        return slab(record).getLong(offset(record) + PRICE_PER_UNIT_OFFSET);
+    }
+
+    public long getAgreedFx(int record) {
+        return slab(record).getLong(offset(record) + AGREED_FX_OFFSET);
+    }
+
+    public long getAmountInUsd(int record) {
+        return slab(record).getLong(offset(record) + AMOUNT_IN_USD_OFFSET);
+    }
+
+    /**
+     * @return a new instruction with the values of the record, amounts with SCALE decimals
+     */
+    public Instruction toInstruction(int record) {
+        Instruction instruction = new Instruction();
+        instruction.setEntityId(getEntityId(record));
+        instruction.setType(getType(record));
+        instruction.setCurrencyId(getCurrencyId(record));
+        instruction.setAgreedFx(FixedPointMath.toBigDecimal(getAgreedFx(record)));
+        instruction.setInstructionDate(LocalDate.ofEpochDay(getInstructionEpochDay(record)));
+        instruction.setSettlementDate(LocalDate.ofEpochDay(getSettlementEpochDay(record)));
+        instruction.setUnits(getUnits(record));
+        instruction.setPricePerUnit(FixedPointMath.toBigDecimal(getPricePerUnit(record)));
+        return instruction;
+    }
+}
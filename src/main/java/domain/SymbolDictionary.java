@@ -0,0 +1,170 @@
+package domain;
+
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Entity names and currencies mapped to dense int ids, so every symbol is held once and compared as an int.
+ * Ids are given in order of first use and never reused.
+ * <p>
+ * Instructions, batches and off-heap records all use the {@link #global()} dictionary, so their ids can be compared
+ * with each other. Those records keep nothing but the id, so a name cannot be evicted while the process runs: the
+ * number of entities is bounded instead, by the system property {@value #MAX_ENTITIES_PROPERTY} for the global
+ * dictionary. Currencies are bounded by the three letter codes.
+ * <p>
+ * Thread-safe, looking up a known symbol does not lock.
+ */
+public class SymbolDictionary {
+
+    public static final int UNKNOWN = -1;
+    public static final String MAX_ENTITIES_PROPERTY = "symbols.maxEntities";
+    public static final int DEFAULT_MAX_ENTITIES = 1 << 22;
+
+    private static final SymbolDictionary GLOBAL = new SymbolDictionary(Integer.getInteger(MAX_ENTITIES_PROPERTY, DEFAULT_MAX_ENTITIES));
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int LETTERS = 26;
+
+    private final int maxEntities;
+
+    private final Map<String, Integer> entityIds = new ConcurrentHashMap<>();
+    private volatile String[] entities = new String[INITIAL_CAPACITY];
+    private volatile int entityCount;
+
+    private final Map<Currency, Integer> currencyIds = new ConcurrentHashMap<>();
+    private volatile Currency[] currencies = new Currency[INITIAL_CAPACITY];
+    private volatile int currencyCount;
+    //Currency id + 1 per three letter code, 0 until the code is first seen, read without locking
+    private final AtomicIntegerArray currencyIdPerCode = new AtomicIntegerArray(LETTERS * LETTERS * LETTERS);
+
+    /**
+     * @param maxEntities number of entities above which new entities are refused
+     */
+    public SymbolDictionary(int maxEntities) {
+        if (maxEntities <= 0) {
+            throw new IllegalArgumentException("Maximum number of entities should be positive");
+        }
+        this.maxEntities = maxEntities;
+    }
+
+    public static SymbolDictionary global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @return id of the entity, given now if the entity is new
+     * @throws IllegalStateException if the entity is new and the dictionary already holds its maximum of entities
+     */
+    public int entityId(String entity) {
+        Integer entityId = entityIds.get(entity);
+        return entityId != null ? entityId : addEntity(entity);
+    }
+
+    private synchronized int addEntity(String entity) {
+        Integer entityId = entityIds.get(entity);
+        if (entityId != null) {
+            return entityId;
+        }
+        int id = entityCount;
+        if (id == maxEntities) {
+            throw new IllegalStateException("The symbol dictionary already holds " + maxEntities + " entities, raise "
+                    + MAX_ENTITIES_PROPERTY + " to add " + entity);
+        }
+        if (id == entities.length) {
+            entities = Arrays.copyOf(entities, (int) Math.min(maxEntities, 2L * id));
+        }
+        entities[id] = entity;
+        //Publishes the name before the id can be found
+        entityCount = id + 1;
+        entityIds.put(entity, id);
+        return id;
+    }
+
+    /**
+     * @return id of the entity, or {@link #UNKNOWN} if it has never been seen
+     */
+    public int findEntityId(String entity) {
+        Integer entityId = entityIds.get(entity);
+        return entityId != null ? entityId : UNKNOWN;
+    }
+
+    public String entity(int entityId) {
+        if (entityId < 0 || entityId >= entityCount) {
+            throw new IllegalArgumentException("Unknown entity id " + entityId);
+        }
+        return entities[entityId];
+    }
+
+    public int entityCount() {
+        return entityCount;
+    }
+
+    /**
+     * @return id of the currency, given now if the currency is new
+     */
+    public int currencyId(Currency currency) {
+        Integer currencyId = currencyIds.get(currency);
+        return currencyId != null ? currencyId : addCurrency(currency);
+    }
+
+    /**
+     * Looks the currency up by the letters of its code, without building a string once the code has been seen
+     *
+     * @throws IllegalArgumentException if the letters are not the code of a currency
+     */
+    public int currencyId(char first, char second, char third) {
+        int code = code(first, second, third);
+        if (code >= 0) {
+            int currencyId = currencyIdPerCode.get(code) - 1;
+            if (currencyId >= 0) {
+                return currencyId;
+            }
+        }
+        return currencyId(Currency.getInstance(new String(new char[]{first, second, third})));
+    }
+
+    private synchronized int addCurrency(Currency currency) {
+        Integer currencyId = currencyIds.get(currency);
+        if (currencyId != null) {
+            return currencyId;
+        }
+        int id = currencyCount;
+        if (id == currencies.length) {
+            currencies = Arrays.copyOf(currencies, id * 2);
+        }
+        currencies[id] = currency;
+        currencyCount = id + 1;
+        currencyIds.put(currency, id);
+        String currencyCode = currency.getCurrencyCode();
+        int code = currencyCode.length() == 3 ? code(currencyCode.charAt(0), currencyCode.charAt(1), currencyCode.charAt(2)) : -1;
+        if (code >= 0) {
+            currencyIdPerCode.set(code, id + 1);
+        }
+        return id;
+    }
+
+    private static int code(char first, char second, char third) {
+        if (!isLetter(first) || !isLetter(second) || !isLetter(third)) {
+            return -1;
+        }
+        return ((first - 'A') * LETTERS + (second - 'A')) * LETTERS + (third - 'A');
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    public Currency currency(int currencyId) {
+        if (currencyId < 0 || currencyId >= currencyCount) {
+            throw new IllegalArgumentException("Unknown currency id " + currencyId);
+        }
+        return currencies[currencyId];
+    }
+
+    public int currencyCount() {
+        return currencyCount;
+    }
+}
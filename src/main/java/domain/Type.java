@@ -13,4 +13,19 @@ public enum Type {
     public char Type() {
         return type;
     }
+
+    /**
+     * @param type 'B' or 'S'
+     * @return the matching type, or null if the code is unknown
+     */
+    public static Type of(char type) {
+        switch (type) {
+            case 'B':
+                return BUY;
+            case 'S':
+                return SELL;
+            default:
+                return null;
+        }
+    }
 }
@@ -0,0 +1,38 @@
+package feed;
+
+/**
+ * Layout of binary instruction files, all numbers big endian.
+ * <pre>
+ * header      magic (int), version (short), reserved (short), record count (long), dictionary offset (long),
+ *             dictionary size (int), reserved (int)
+ * record      entity id (int), type code (byte), currency code (3 ASCII bytes), instruction date (int epoch day),
+ *             settlement date (int epoch day), units (int), price per unit (long), agreed fx (long), reserved (int)
+ * dictionary  entity names in id order, each one as a length (short) followed by its UTF-8 bytes
+ * </pre>
+ * Price per unit and agreed fx are fixed point longs, see {@link utils.FixedPointMath}.
+ */
+final class BinaryInstructionFormat {
+
+    static final int MAGIC = 0x4A504D49;
+    static final short VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_COUNT_OFFSET = 8;
+    static final int DICTIONARY_OFFSET_OFFSET = 16;
+    static final int DICTIONARY_SIZE_OFFSET = 24;
+
+    static final int RECORD_SIZE = 40;
+    static final int ENTITY_ID_OFFSET = 0;
+    static final int TYPE_OFFSET = 4;
+    static final int CURRENCY_OFFSET = 5;
+    static final int INSTRUCTION_DATE_OFFSET = 8;
+    static final int SETTLEMENT_DATE_OFFSET = 12;
+    static final int UNITS_OFFSET = 16;
+    static final int PRICE_PER_UNIT_OFFSET = 20;
+    static final int AGREED_FX_OFFSET = 28;
+
+    static final int CURRENCY_CODE_LENGTH = 3;
+
+    private BinaryInstructionFormat() {
+    }
+}
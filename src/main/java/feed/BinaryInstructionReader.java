@@ -0,0 +1,147 @@
+package feed;
+
+import domain.Instruction;
+import domain.SymbolDictionary;
+import domain.Type;
+import utils.FixedPointMath;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static feed.BinaryInstructionFormat.*;
+
+/**
+ * Iterates the instructions of a file written by {@link BinaryInstructionWriter}, decoding every record straight
+ * from a memory-mapped window of the file, so it can be given to
+ * {@link services.InstructionService#addInstructions(Iterator, output.InstructionBook)}.
+ * <p>
+ * The entities of the file enter the global {@link SymbolDictionary} when it is opened, a file with more new entities
+ * than the dictionary has room for is refused then, as is a file whose header or dictionary points outside of it. A
+ * record whose entity id is not in the dictionary of the file is read without an entity, and rejected as invalid.
+ */
+public class BinaryInstructionReader implements Iterator<Instruction>, AutoCloseable {
+
+    //Mapped windows are limited to 2GB, keep them aligned on records
+    private static final long RECORDS_PER_WINDOW = (Integer.MAX_VALUE / 2) / RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final long recordCount;
+    private final SymbolDictionary dictionary = SymbolDictionary.global();
+    //Global entity id per entity id of the file
+    private final int[] entityIds;
+
+    private MappedByteBuffer window;
+    private long windowFirstRecord;
+    private long nextRecord;
+
+    public BinaryInstructionReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not a binary instruction file: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getShort(Integer.BYTES) != VERSION) {
+                throw new IOException("Not a binary instruction file: " + file);
+            }
+            recordCount = header.getLong(RECORD_COUNT_OFFSET);
+            long dictionaryOffset = header.getLong(DICTIONARY_OFFSET_OFFSET);
+            int dictionarySize = header.getInt(DICTIONARY_SIZE_OFFSET);
+            //Records lie between the header and the dictionary, compared without overflowing
+            if (recordCount < 0 || dictionarySize < 0 || dictionaryOffset < HEADER_SIZE || dictionaryOffset > size
+                    || recordCount > (dictionaryOffset - HEADER_SIZE) / RECORD_SIZE) {
+                throw new IOException("Corrupted binary instruction file, its header points outside of it: " + file);
+            }
+            entityIds = readDictionary(dictionaryOffset, dictionarySize, file);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private int[] readDictionary(long dictionaryOffset, int dictionarySize, Path file) throws IOException {
+        MappedByteBuffer fileDictionary = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, channel.size() - dictionaryOffset);
+        //Every entry takes at least its length
+        if (dictionarySize > fileDictionary.remaining() / Short.BYTES) {
+            throw new IOException("Truncated dictionary: " + file);
+        }
+        int[] ids = new int[dictionarySize];
+        byte[] name = new byte[Short.MAX_VALUE];
+        for (int i = 0; i < dictionarySize; i++) {
+            if (fileDictionary.remaining() < Short.BYTES) {
+                throw new IOException("Truncated dictionary: " + file);
+            }
+            int length = fileDictionary.getShort();
+            if (length < 0 || length > fileDictionary.remaining()) {
+                throw new IOException("Truncated dictionary: " + file);
+            }
+            fileDictionary.get(name, 0, length);
+            try {
+                ids[i] = dictionary.entityId(new String(name, 0, length, StandardCharsets.UTF_8));
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        return ids;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextRecord < recordCount;
+    }
+
+    @Override
+    public Instruction next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (window == null || nextRecord - windowFirstRecord >= RECORDS_PER_WINDOW) {
+            mapWindow(nextRecord);
+        }
+        int position = (int) ((nextRecord - windowFirstRecord) * RECORD_SIZE);
+        nextRecord++;
+
+        Instruction instruction = new Instruction();
+        int fileEntityId = window.getInt(position + ENTITY_ID_OFFSET);
+        if (fileEntityId >= 0 && fileEntityId < entityIds.length) {
+            instruction.setEntityId(entityIds[fileEntityId]);
+        }
+        instruction.setType(Type.of((char) window.get(position + TYPE_OFFSET)));
+        instruction.setCurrencyId(dictionary.currencyId((char) window.get(position + CURRENCY_OFFSET),
+                (char) window.get(position + CURRENCY_OFFSET + 1), (char) window.get(position + CURRENCY_OFFSET + 2)));
+        instruction.setInstructionDate(LocalDate.ofEpochDay(window.getInt(position + INSTRUCTION_DATE_OFFSET)));
+        instruction.setSettlementDate(LocalDate.ofEpochDay(window.getInt(position + SETTLEMENT_DATE_OFFSET)));
+        instruction.setUnits(window.getInt(position + UNITS_OFFSET));
+        instruction.setPricePerUnit(FixedPointMath.toBigDecimal(window.getLong(position + PRICE_PER_UNIT_OFFSET)));
+        instruction.setAgreedFx(FixedPointMath.toBigDecimal(window.getLong(position + AGREED_FX_OFFSET)));
+        return instruction;
+    }
+
+    private void mapWindow(long firstRecord) {
+        long records = Math.min(RECORDS_PER_WINDOW, recordCount - firstRecord);
+        try {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + firstRecord * RECORD_SIZE, records * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        windowFirstRecord = firstRecord;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,127 @@
+package feed;
+
+import domain.Instruction;
+import utils.FixedPointMath;
+import utils.InstructionValidator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static feed.BinaryInstructionFormat.*;
+
+/**
+ * Writes instructions in the binary format read by {@link BinaryInstructionReader}.
+ * The entity dictionary and the record count are only written on {@link #close()}.
+ */
+public class BinaryInstructionWriter implements AutoCloseable {
+
+    private static final int RECORDS_PER_BUFFER = 1024;
+
+    private final InstructionValidator instructionValidator = new InstructionValidator();
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * RECORDS_PER_BUFFER);
+
+    //Entity id of the file + 1 per global entity id, 0 until the entity is first written
+    private int[] fileEntityIds = new int[64];
+    private final List<String> entities = new ArrayList<>();
+    private long recordCount;
+
+    public BinaryInstructionWriter(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        channel.position(HEADER_SIZE);
+    }
+
+    /**
+     * @param instruction valid instruction, price per unit and agreed fx are rounded to fixed point
+     * @throws IllegalArgumentException if the instruction is not valid or its amounts do not fit in fixed point
+     */
+    public void write(Instruction instruction) throws IOException {
+        if (!instructionValidator.isValid(instruction)) {
+            throw new IllegalArgumentException("Only valid instructions can be written");
+        }
+        long pricePerUnit;
+        long agreedFx;
+        try {
+            pricePerUnit = FixedPointMath.toFixed(instruction.getPricePerUnit());
+            agreedFx = FixedPointMath.toFixed(instruction.getAgreedFx());
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Price per unit and agreed fx should fit in fixed point", e);
+        }
+        if (buffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        int position = buffer.position();
+        buffer.putInt(position + ENTITY_ID_OFFSET, entityId(instruction));
+        buffer.put(position + TYPE_OFFSET, (byte) instruction.getType().Type());
+        String currencyCode = instruction.getCurrency().getCurrencyCode();
+        for (int i = 0; i < CURRENCY_CODE_LENGTH; i++) {
+            buffer.put(position + CURRENCY_OFFSET + i, (byte) currencyCode.charAt(i));
+        }
+        buffer.putInt(position + INSTRUCTION_DATE_OFFSET, Math.toIntExact(instruction.getInstructionDate().toEpochDay()));
+        buffer.putInt(position + SETTLEMENT_DATE_OFFSET, Math.toIntExact(instruction.getSettlementDate().toEpochDay()));
+        buffer.putInt(position + UNITS_OFFSET, instruction.getUnits());
+        buffer.putLong(position + PRICE_PER_UNIT_OFFSET, pricePerUnit);
+        buffer.putLong(position + AGREED_FX_OFFSET, agreedFx);
+        buffer.putInt(position + AGREED_FX_OFFSET + Long.BYTES, 0);
+        buffer.position(position + RECORD_SIZE);
+        recordCount++;
+    }
+
+    private int entityId(Instruction instruction) {
+        int globalEntityId = instruction.getEntityId();
+        if (globalEntityId >= fileEntityIds.length) {
+            fileEntityIds = Arrays.copyOf(fileEntityIds, Math.max(globalEntityId + 1, fileEntityIds.length * 2));
+        }
+        if (fileEntityIds[globalEntityId] == 0) {
+            entities.add(instruction.getEntity());
+            fileEntityIds[globalEntityId] = entities.size();
+        }
+        return fileEntityIds[globalEntityId] - 1;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            long dictionaryOffset = channel.position();
+            for (String entity : entities) {
+                byte[] name = entity.getBytes(StandardCharsets.UTF_8);
+                if (name.length > Short.MAX_VALUE) {
+                    throw new IllegalArgumentException("Entity name too long: " + entity.substring(0, 32) + "...");
+                }
+                //The buffer is larger than the longest name
+                if (buffer.remaining() < Short.BYTES + name.length) {
+                    flush();
+                }
+                buffer.putShort((short) name.length).put(name);
+            }
+            flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+            header.putLong(RECORD_COUNT_OFFSET, recordCount);
+            header.putLong(DICTIONARY_OFFSET_OFFSET, dictionaryOffset);
+            header.putInt(DICTIONARY_SIZE_OFFSET, entities.size());
+            header.position(0);
+            channel.write(header, 0);
+        } finally {
+            channel.close();
+        }
+    }
+}
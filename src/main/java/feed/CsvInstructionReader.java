@@ -0,0 +1,311 @@
+package feed;
+
+import domain.Instruction;
+import domain.SymbolDictionary;
+import domain.Type;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Streams instructions out of a CSV feed with the columns
+ * <pre>
+ * entity,type,agreedFx,currency,instructionDate,settlementDate,units,pricePerUnit[,id]
+ * </pre>
+ * where type is B or S, dates are yyyy-MM-dd and the optional id identifies the trade across replays and amendments. Fields are not quoted, so entities cannot contain commas.
+ * <p>
+ * Characters are read into reusable buffers and parsed in place; lines that cannot be parsed are skipped and kept in
+ * {@link #getRejectedLines()} instead of failing the feed. The entity of a line only enters the global
+ * {@link SymbolDictionary}, which never forgets it, once every other field is valid: a line whose entity no longer
+ * fits in the dictionary is rejected as well.
+ */
+public class CsvInstructionReader implements Iterator<Instruction>, AutoCloseable {
+
+    private static final int FIELD_COUNT = 9;
+    private static final int REQUIRED_FIELD_COUNT = 8;
+    private static final int ENTITY = 0;
+    private static final int TYPE = 1;
+    private static final int AGREED_FX = 2;
+    private static final int CURRENCY = 3;
+    private static final int INSTRUCTION_DATE = 4;
+    private static final int SETTLEMENT_DATE = 5;
+    private static final int UNITS = 6;
+    private static final int PRICE_PER_UNIT = 7;
+    private static final int ID = 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LONG_DIGITS = 18;
+    private static final int DATE_LENGTH = 10;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferPosition;
+    private int bufferLimit;
+
+    private char[] line = new char[256];
+    private int lineLength;
+    private long lineNumber;
+
+    private final int[] fieldStarts = new int[FIELD_COUNT];
+    private final int[] fieldEnds = new int[FIELD_COUNT];
+
+    private final SymbolDictionary dictionary = SymbolDictionary.global();
+    private final List<RejectedLine> rejectedLines = new ArrayList<>();
+
+    private Instruction nextInstruction;
+    private boolean endOfFeed;
+
+    /**
+     * @param reader    CSV feed, closed with this reader
+     * @param hasHeader true if the first line holds the column names
+     */
+    public CsvInstructionReader(Reader reader, boolean hasHeader) {
+        this.reader = Objects.requireNonNull(reader, "Please provide a valid feed");
+        if (hasHeader) {
+            readLine();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextInstruction == null && !endOfFeed) {
+            if (readLine()) {
+                nextInstruction = parseLine();
+            }
+        }
+        return nextInstruction != null;
+    }
+
+    @Override
+    public Instruction next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Instruction instruction = nextInstruction;
+        nextInstruction = null;
+        return instruction;
+    }
+
+    /**
+     * @return lines skipped so far, with the reason why
+     */
+    public List<RejectedLine> getRejectedLines() {
+        return rejectedLines;
+    }
+
+    /**
+     * @return false at the end of the feed or for blank lines
+     */
+    private boolean readLine() {
+        lineLength = 0;
+        while (true) {
+            if (bufferPosition == bufferLimit && !fillBuffer()) {
+                endOfFeed = true;
+                //Last line without a line break
+                return lineLength > 0 && endLine();
+            }
+            char c = buffer[bufferPosition++];
+            if (c == '\n') {
+                return endLine();
+            }
+            if (lineLength == line.length) {
+                char[] longerLine = new char[line.length * 2];
+                System.arraycopy(line, 0, longerLine, 0, lineLength);
+                line = longerLine;
+            }
+            line[lineLength++] = c;
+        }
+    }
+
+    private boolean endLine() {
+        lineNumber++;
+        if (lineLength > 0 && line[lineLength - 1] == '\r') {
+            lineLength--;
+        }
+        return lineLength > 0;
+    }
+
+    private boolean fillBuffer() {
+        try {
+            int read;
+            do {
+                read = reader.read(buffer, 0, buffer.length);
+            } while (read == 0);
+            bufferPosition = 0;
+            bufferLimit = Math.max(read, 0);
+            return read > 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Instruction parseLine() {
+        int fieldCount = splitFields();
+        if (fieldCount < REQUIRED_FIELD_COUNT) {
+            return reject("Expected " + REQUIRED_FIELD_COUNT + " fields but found " + fieldCount);
+        }
+        if (fieldCount > FIELD_COUNT) {
+            return reject("Expected at most " + FIELD_COUNT + " fields but found " + fieldCount);
+        }
+        try {
+            Instruction instruction = new Instruction();
+            if (fieldLength(ENTITY) == 0) {
+                return reject("Missing entity");
+            }
+            Type type = fieldLength(TYPE) == 1 ? Type.of(line[fieldStarts[TYPE]]) : null;
+            if (type == null) {
+                return reject("Type should be B or S");
+            }
+            instruction.setType(type);
+            instruction.setAgreedFx(parseDecimal(AGREED_FX));
+            instruction.setCurrencyId(currencyId());
+            instruction.setInstructionDate(parseDate(INSTRUCTION_DATE));
+            instruction.setSettlementDate(parseDate(SETTLEMENT_DATE));
+            instruction.setUnits(parseInt(UNITS));
+            instruction.setPricePerUnit(parseDecimal(PRICE_PER_UNIT));
+            if (fieldCount == FIELD_COUNT && fieldLength(ID) > 0) {
+                instruction.setId(new String(line, fieldStarts[ID], fieldLength(ID)));
+            }
+            instruction.setEntityId(entityId());
+            return instruction;
+        } catch (IllegalArgumentException | IllegalStateException | DateTimeException e) {
+            return reject(e.getMessage());
+        }
+    }
+
+    private Instruction reject(String reason) {
+        rejectedLines.add(new RejectedLine(lineNumber, new String(line, 0, lineLength), reason));
+        return null;
+    }
+
+    /**
+     * @return number of fields found, their trimmed bounds are stored up to FIELD_COUNT
+     */
+    private int splitFields() {
+        int fieldCount = 0;
+        int start = 0;
+        for (int i = 0; i <= lineLength; i++) {
+            if (i == lineLength || line[i] == ',') {
+                if (fieldCount < FIELD_COUNT) {
+                    int from = start;
+                    int to = i;
+                    while (from < to && line[from] == ' ') {
+                        from++;
+                    }
+                    while (to > from && line[to - 1] == ' ') {
+                        to--;
+                    }
+                    fieldStarts[fieldCount] = from;
+                    fieldEnds[fieldCount] = to;
+                }
+                fieldCount++;
+                start = i + 1;
+            }
+        }
+        return fieldCount;
+    }
+
+    private int fieldLength(int field) {
+        return fieldEnds[field] - fieldStarts[field];
+    }
+
+    private int entityId() {
+        return dictionary.entityId(new String(line, fieldStarts[ENTITY], fieldLength(ENTITY)));
+    }
+
+    private int currencyId() {
+        if (fieldLength(CURRENCY) != 3) {
+            throw new IllegalArgumentException("Currency should be a three letter code");
+        }
+        int start = fieldStarts[CURRENCY];
+        return dictionary.currencyId(line[start], line[start + 1], line[start + 2]);
+    }
+
+    private LocalDate parseDate(int field) {
+        int start = fieldStarts[field];
+        if (fieldLength(field) != DATE_LENGTH || line[start + 4] != '-' || line[start + 7] != '-') {
+            throw new IllegalArgumentException("Dates should be formatted as yyyy-MM-dd");
+        }
+        return LocalDate.of(parseDigits(start, start + 4), parseDigits(start + 5, start + 7), parseDigits(start + 8, start + 10));
+    }
+
+    private int parseInt(int field) {
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        boolean negative = start < end && line[start] == '-';
+        if (negative) {
+            start++;
+        }
+        if (start == end || end - start > 10) {
+            throw new IllegalArgumentException("Units should be an integer");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + digit(i);
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Units out of range");
+        }
+        return (int) value;
+    }
+
+    private BigDecimal parseDecimal(int field) {
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        boolean negative = start < end && line[start] == '-';
+        int digitsStart = negative ? start + 1 : start;
+        long unscaled = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (int i = digitsStart; i < end; i++) {
+            if (line[i] == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            if (++digits > MAX_LONG_DIGITS) {
+                //Too long for a long, let BigDecimal parse it
+                return new BigDecimal(line, start, end - start);
+            }
+            unscaled = unscaled * 10 + digit(i);
+            if (fraction) {
+                scale++;
+            }
+        }
+        if (digits == 0) {
+            throw new IllegalArgumentException("Missing number");
+        }
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale);
+    }
+
+    private int parseDigits(int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + digit(i);
+        }
+        return value;
+    }
+
+    private int digit(int position) {
+        char c = line[position];
+        if (c < '0' || c > '9') {
+            throw new IllegalArgumentException("Unexpected character '" + c + "' at column " + (position + 1));
+        }
+        return c - '0';
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
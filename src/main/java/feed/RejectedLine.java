@@ -0,0 +1,34 @@
+package feed;
+
+/**
+ * Line of a feed that could not be turned into an instruction
+ */
+public class RejectedLine {
+
+    private final long lineNumber;
+    private final String line;
+    private final String reason;
+
+    public RejectedLine(long lineNumber, String line, String reason) {
+        this.lineNumber = lineNumber;
+        this.line = line;
+        this.reason = reason;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return "Line " + lineNumber + " rejected: " + reason + " [" + line + "]";
+    }
+}
@@ -0,0 +1,238 @@
+package metrics;
+
+import output.InstructionBook;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Currency;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Counters per currency, latency histograms and book sizes of the instruction processing. Recording only touches
+ * striped counters, so it is safe and cheap from any number of threads.
+ */
+public class InstructionMetrics implements InstructionMetricsMXBean {
+
+    //Key of instructions rejected before their currency is known
+    public static final String UNKNOWN_CURRENCY = "UNKNOWN";
+
+    private static final double NANOS_PER_MICRO = TimeUnit.MICROSECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, CurrencyCounters> countersPerCurrency = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, InstructionBook> books = new ConcurrentHashMap<>();
+    private final LatencyHistogram ingestionLatency = new LatencyHistogram();
+    private final LatencyHistogram reportLatency = new LatencyHistogram();
+
+    public void recordAccepted(Currency currency) {
+        countersOf(currency).accepted.increment();
+    }
+
+    public void recordRejected(Currency currency) {
+        countersOf(currency).rejected.increment();
+    }
+
+    public void recordAdjusted(Currency currency) {
+        countersOf(currency).adjusted.increment();
+    }
+
+    /**
+     * @param count instructions counted at once, for example over a whole batch
+     */
+    public void recordAccepted(Currency currency, long count) {
+        if (count > 0) {
+            countersOf(currency).accepted.add(count);
+        }
+    }
+
+    public void recordRejected(Currency currency, long count) {
+        if (count > 0) {
+            countersOf(currency).rejected.add(count);
+        }
+    }
+
+    public void recordAdjusted(Currency currency, long count) {
+        if (count > 0) {
+            countersOf(currency).adjusted.add(count);
+        }
+    }
+
+    private CurrencyCounters countersOf(Currency currency) {
+        String currencyCode = currency == null ? UNKNOWN_CURRENCY : currency.getCurrencyCode();
+        CurrencyCounters counters = countersPerCurrency.get(currencyCode);
+        return counters != null ? counters : countersPerCurrency.computeIfAbsent(currencyCode, code -> new CurrencyCounters());
+    }
+
+    /**
+     * @return duration of every call adding instructions
+     */
+    public LatencyHistogram getIngestionLatency() {
+        return ingestionLatency;
+    }
+
+    /**
+     * @return duration of every report written
+     */
+    public LatencyHistogram getReportLatency() {
+        return reportLatency;
+    }
+
+    /**
+     * @param name name the size of the book is published under, replacing any book with the same name
+     * @param book book whose size is read on demand, kept until unregistered
+     */
+    public void registerBook(String name, InstructionBook book) {
+        books.put(Objects.requireNonNull(name, "Please provide a valid name"), Objects.requireNonNull(book, "Please provide a valid book"));
+    }
+
+    public void unregisterBook(String name) {
+        books.remove(name);
+    }
+
+    public long getAcceptedCount(Currency currency) {
+        CurrencyCounters counters = countersPerCurrency.get(currency.getCurrencyCode());
+        return counters == null ? 0 : counters.accepted.sum();
+    }
+
+    public long getRejectedCount(Currency currency) {
+        CurrencyCounters counters = countersPerCurrency.get(currency.getCurrencyCode());
+        return counters == null ? 0 : counters.rejected.sum();
+    }
+
+    public long getAdjustedCount(Currency currency) {
+        CurrencyCounters counters = countersPerCurrency.get(currency.getCurrencyCode());
+        return counters == null ? 0 : counters.adjusted.sum();
+    }
+
+    @Override
+    public long getAcceptedCount() {
+        return total(counters -> counters.accepted);
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return total(counters -> counters.rejected);
+    }
+
+    @Override
+    public long getAdjustedCount() {
+        return total(counters -> counters.adjusted);
+    }
+
+    private long total(Function<CurrencyCounters, LongAdder> counter) {
+        long total = 0;
+        for (CurrencyCounters counters : countersPerCurrency.values()) {
+            total += counter.apply(counters).sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getAcceptedPerCurrency() {
+        return perCurrency(counters -> counters.accepted);
+    }
+
+    @Override
+    public Map<String, Long> getRejectedPerCurrency() {
+        return perCurrency(counters -> counters.rejected);
+    }
+
+    @Override
+    public Map<String, Long> getAdjustedPerCurrency() {
+        return perCurrency(counters -> counters.adjusted);
+    }
+
+    private Map<String, Long> perCurrency(Function<CurrencyCounters, LongAdder> counter) {
+        Map<String, Long> perCurrency = new TreeMap<>();
+        countersPerCurrency.forEach((currencyCode, counters) -> {
+            long count = counter.apply(counters).sum();
+            if (count > 0) {
+                perCurrency.put(currencyCode, count);
+            }
+        });
+        return perCurrency;
+    }
+
+    @Override
+    public Map<String, Long> getBookSizes() {
+        Map<String, Long> bookSizes = new TreeMap<>();
+        books.forEach((name, book) -> bookSizes.put(name, book.size()));
+        return bookSizes;
+    }
+
+    @Override
+    public long getIngestionCount() {
+        return ingestionLatency.getCount();
+    }
+
+    @Override
+    public double getIngestionMeanMicros() {
+        return ingestionLatency.getMeanNanos() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getIngestionP99Micros() {
+        return ingestionLatency.getPercentileMicros(99);
+    }
+
+    @Override
+    public double getIngestionMaxMicros() {
+        return ingestionLatency.getMaxNanos() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getReportCount() {
+        return reportLatency.getCount();
+    }
+
+    @Override
+    public double getReportMeanMicros() {
+        return reportLatency.getMeanNanos() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getReportP99Micros() {
+        return reportLatency.getPercentileMicros(99);
+    }
+
+    @Override
+    public double getReportMaxMicros() {
+        return reportLatency.getMaxNanos() / NANOS_PER_MICRO;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, replacing anything registered under the same name
+     *
+     * @param name JMX object name, for example "jpmorgan:type=InstructionMetrics"
+     */
+    public void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            try {
+                server.registerMBean(this, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Metrics could not be registered as " + name, e);
+        }
+    }
+
+    private static final class CurrencyCounters {
+
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder adjusted = new LongAdder();
+    }
+}
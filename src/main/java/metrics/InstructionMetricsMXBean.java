@@ -0,0 +1,39 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * Management view of {@link InstructionMetrics}, counters are keyed by currency code
+ */
+public interface InstructionMetricsMXBean {
+
+    long getAcceptedCount();
+
+    long getRejectedCount();
+
+    long getAdjustedCount();
+
+    Map<String, Long> getAcceptedPerCurrency();
+
+    Map<String, Long> getRejectedPerCurrency();
+
+    Map<String, Long> getAdjustedPerCurrency();
+
+    Map<String, Long> getBookSizes();
+
+    long getIngestionCount();
+
+    double getIngestionMeanMicros();
+
+    double getIngestionP99Micros();
+
+    double getIngestionMaxMicros();
+
+    long getReportCount();
+
+    double getReportMeanMicros();
+
+    double getReportP99Micros();
+
+    double getReportMaxMicros();
+}
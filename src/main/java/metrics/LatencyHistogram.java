@@ -0,0 +1,85 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with one bucket per power of two, so percentiles are accurate to a
+ * factor of two and recording costs a few atomic increments
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    //Bucket i counts durations in [2^(i-1), 2^i), bucket 0 counts durations of 0
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos duration measured with System.nanoTime, negative durations count as 0
+     */
+    public void record(long nanos) {
+        long duration = Math.max(0, nanos);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(duration));
+        count.increment();
+        totalNanos.add(duration);
+        maxNanos.accumulate(duration);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long recorded = count.sum();
+        return recorded == 0 ? 0 : (double) totalNanos.sum() / recorded;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile, never above the maximum recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile should be between 0 and 100");
+        }
+        long[] counts = new long[BUCKETS];
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            recorded += counts[i];
+        }
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(recorded * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long upperBound = i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upperBound, getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * @return percentile in microseconds, as exposed through JMX
+     */
+    double getPercentileMicros(double percentile) {
+        return (double) getPercentileNanos(percentile) / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,131 @@
+package output;
+
+import com.google.common.collect.Maps;
+import domain.Instruction;
+import utils.ComparatorByUsdAmountDescending;
+import utils.UsdAmountAccumulator;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processed instructions shared by several writer threads and report readers.
+ * <p>
+ * Writers never lose per-date updates and neither writers nor readers wait for each other: every added instruction
+ * gets a sequence number and is marked complete once its updates are done, so a snapshot only takes the complete
+ * instructions numbered before it started.
+ */
+public class ConcurrentProcessedInstructions implements InstructionBook {
+
+    //Equal amounts in USD keep their arrival order, as in ProcessedInstructions
+    private static final Comparator<SequencedInstruction> BY_USD_AMOUNT_THEN_SEQUENCE =
+            Comparator.comparing((SequencedInstruction sequenced) -> sequenced.instruction, ComparatorByUsdAmountDescending::compareUsdAmounts)
+                    .thenComparingLong(sequenced -> sequenced.sequence);
+
+    private final AtomicLong lastSequence = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+
+    //Incoming and outgoing instructions ordered by amount in USD
+    private final NavigableSet<SequencedInstruction> sortedIncomingInstructions = new ConcurrentSkipListSet<>(BY_USD_AMOUNT_THEN_SEQUENCE);
+    private final NavigableSet<SequencedInstruction> sortedOutgoingInstructions = new ConcurrentSkipListSet<>(BY_USD_AMOUNT_THEN_SEQUENCE);
+
+    //Incoming and outgoing instructions grouped by settlement date, writers only contend on the same date
+    private final ConcurrentSkipListMap<LocalDate, UsdAmountAccumulator> usdOutgoingAmountPerDate = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<LocalDate, UsdAmountAccumulator> usdIncomingAmountPerDate = new ConcurrentSkipListMap<>();
+
+    @Override
+    public void addIncomingInstruction(Instruction instruction) {
+        addInstruction(instruction, sortedIncomingInstructions, usdIncomingAmountPerDate);
+    }
+
+    @Override
+    public void addOutgoingInstruction(Instruction instruction) {
+        addInstruction(instruction, sortedOutgoingInstructions, usdOutgoingAmountPerDate);
+    }
+
+    private void addInstruction(Instruction instruction, NavigableSet<SequencedInstruction> instructions,
+                                ConcurrentSkipListMap<LocalDate, UsdAmountAccumulator> amountPerDateMap) {
+        SequencedInstruction sequenced = new SequencedInstruction(lastSequence.incrementAndGet(), instruction);
+        try {
+            instructions.add(sequenced);
+            UsdAmountAccumulator amountToDate = amountPerDateMap.computeIfAbsent(instruction.getSettlementDate(), date -> new UsdAmountAccumulator());
+            synchronized (amountToDate) {
+                amountToDate.add(instruction);
+            }
+        } finally {
+            sequenced.complete = true;
+            completedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Builds a new book on every call, in O(n log n) for the n instructions added so far: readers that query it
+     * several times should keep the copy rather than take another snapshot per query
+     *
+     * @return consistent copy holding every instruction whose addition had completed when the snapshot started, owned
+     * by the caller
+     */
+    public ProcessedInstructions snapshot() {
+        long startedSequence = lastSequence.get();
+        //Copies, the snapshot sets the sequence of the instructions it stores and snapshots can be taken concurrently
+        ProcessedInstructions snapshot = new ProcessedInstructions();
+        for (SequencedInstruction sequenced : sortedIncomingInstructions) {
+            if (sequenced.sequence <= startedSequence && sequenced.complete) {
+                snapshot.addIncomingInstruction(sequenced.instruction.copy());
+            }
+        }
+        for (SequencedInstruction sequenced : sortedOutgoingInstructions) {
+            if (sequenced.sequence <= startedSequence && sequenced.complete) {
+                snapshot.addOutgoingInstruction(sequenced.instruction.copy());
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return live totals per date, each value is exact but values of different dates may reflect different moments
+     */
+    public SortedMap<LocalDate, BigDecimal> getUsdIncomingAmountPerDate() {
+        return Maps.transformValues(usdIncomingAmountPerDate, ConcurrentProcessedInstructions::readAmount);
+    }
+
+    /**
+     * @return live totals per date, each value is exact but values of different dates may reflect different moments
+     */
+    public SortedMap<LocalDate, BigDecimal> getUsdOutgoingAmountPerDate() {
+        return Maps.transformValues(usdOutgoingAmountPerDate, ConcurrentProcessedInstructions::readAmount);
+    }
+
+    private static BigDecimal readAmount(UsdAmountAccumulator amountToDate) {
+        synchronized (amountToDate) {
+            return amountToDate.toBigDecimal();
+        }
+    }
+
+    /**
+     * @return number of instructions whose addition has completed
+     */
+    @Override
+    public long size() {
+        return completedCount.get();
+    }
+
+    private static final class SequencedInstruction {
+
+        private final long sequence;
+        private final Instruction instruction;
+        //Set once the totals include the instruction
+        private volatile boolean complete;
+
+        private SequencedInstruction(long sequence, Instruction instruction) {
+            this.sequence = sequence;
+            this.instruction = instruction;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package output;
+
+import domain.Instruction;
+import domain.SymbolDictionary;
+import utils.UsdAmountAccumulator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Comparator;
+
+/**
+ * Amounts in USD and number of instructions of an entity, kept up to date as instructions are processed
+ */
+public class EntityTotals {
+
+    //Largest amounts first, entities with the same amount by name
+    static final Comparator<EntityTotals> BY_INCOMING_AMOUNT_DESCENDING =
+            Comparator.comparing((EntityTotals totals) -> totals.incomingAmount).reversed().thenComparing(EntityTotals::getEntity);
+    static final Comparator<EntityTotals> BY_OUTGOING_AMOUNT_DESCENDING =
+            Comparator.comparing((EntityTotals totals) -> totals.outgoingAmount).reversed().thenComparing(EntityTotals::getEntity);
+
+    private final int entityId;
+    private final String entity;
+    private final UsdAmountAccumulator incomingAmount;
+    private final UsdAmountAccumulator outgoingAmount;
+    private long incomingCount;
+    private long outgoingCount;
+
+    /**
+     * @param entityId id of the entity in the global symbol dictionary
+     */
+    EntityTotals(int entityId) {
+        this(entityId, new UsdAmountAccumulator(), new UsdAmountAccumulator());
+    }
+
+    private EntityTotals(int entityId, UsdAmountAccumulator incomingAmount, UsdAmountAccumulator outgoingAmount) {
+        this.entityId = entityId;
+        this.entity = SymbolDictionary.global().entity(entityId);
+        this.incomingAmount = incomingAmount;
+        this.outgoingAmount = outgoingAmount;
+    }
+
+    void addIncoming(Instruction instruction) {
+        incomingAmount.add(instruction);
+        incomingCount++;
+    }
+
+    void addOutgoing(Instruction instruction) {
+        outgoingAmount.add(instruction);
+        outgoingCount++;
+    }
+
+    /**
+     * @param instruction instruction added before, taken back out
+     */
+    void removeIncoming(Instruction instruction) {
+        incomingAmount.subtract(instruction);
+        incomingCount--;
+    }
+
+    void removeOutgoing(Instruction instruction) {
+        outgoingAmount.subtract(instruction);
+        outgoingCount--;
+    }
+
+    /**
+     * @param before instruction added before
+     * @param after  same instruction valued at another rate
+     */
+    void replaceIncoming(Instruction before, Instruction after) {
+        incomingAmount.subtract(before);
+        incomingAmount.add(after);
+    }
+
+    void replaceOutgoing(Instruction before, Instruction after) {
+        outgoingAmount.subtract(before);
+        outgoingAmount.add(after);
+    }
+
+    void add(EntityTotals other) {
+        incomingAmount.add(other.incomingAmount);
+        outgoingAmount.add(other.outgoingAmount);
+        incomingCount += other.incomingCount;
+        outgoingCount += other.outgoingCount;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(entity);
+        incomingAmount.write(out);
+        outgoingAmount.write(out);
+        out.writeLong(incomingCount);
+        out.writeLong(outgoingCount);
+    }
+
+    static EntityTotals read(DataInput in) throws IOException {
+        EntityTotals totals = new EntityTotals(SymbolDictionary.global().entityId(in.readUTF()), UsdAmountAccumulator.read(in), UsdAmountAccumulator.read(in));
+        totals.incomingCount = in.readLong();
+        totals.outgoingCount = in.readLong();
+        return totals;
+    }
+
+    public int getEntityId() {
+        return entityId;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return amount in USD sold by the entity
+     */
+    public BigDecimal getUsdIncomingAmount() {
+        return incomingAmount.toBigDecimal();
+    }
+
+    /**
+     * @return amount in USD bought by the entity
+     */
+    public BigDecimal getUsdOutgoingAmount() {
+        return outgoingAmount.toBigDecimal();
+    }
+
+    public long getIncomingCount() {
+        return incomingCount;
+    }
+
+    public long getOutgoingCount() {
+        return outgoingCount;
+    }
+}
@@ -0,0 +1,74 @@
+package output;
+
+import domain.Instruction;
+
+/**
+ * Destination of validated instructions whose settlement date has already been adapted
+ */
+public interface InstructionBook {
+
+    void addIncomingInstruction(Instruction instruction);
+
+    void addOutgoingInstruction(Instruction instruction);
+
+    /**
+     * Adds the instruction unless an instruction with the same id is already in the book
+     *
+     * @param incoming true to add it as an incoming instruction, false as an outgoing one
+     * @return false if the instruction is a replay, it is then ignored
+     */
+    default boolean addNewInstruction(Instruction instruction, boolean incoming) {
+        if (instruction.getId() != null && containsInstruction(instruction.getId())) {
+            return false;
+        }
+        if (incoming) {
+            addIncomingInstruction(instruction);
+        } else {
+            addOutgoingInstruction(instruction);
+        }
+        return true;
+    }
+
+    /**
+     * @param instruction valid instruction whose settlement date has already been adapted
+     * @return false if the book cannot hold the instruction, which is then rejected instead of being added
+     */
+    default boolean canStore(Instruction instruction) {
+        return true;
+    }
+
+    /**
+     * @return number of instructions added so far
+     */
+    long size();
+
+    /**
+     * @param id id of an instruction
+     * @return true if an instruction with this id is in the book, always false for books that do not track ids
+     */
+    default boolean containsInstruction(String id) {
+        return false;
+    }
+
+    /**
+     * Replaces the instruction with the same id, as if it had been cancelled and the amended one added
+     *
+     * @param instruction corrected instruction, already validated and with its settlement date adapted
+     * @return false if no instruction with this id is in the book, the amended one is then not added
+     * @throws UnsupportedOperationException if the book does not track ids
+     * @throws IllegalStateException         if the book cannot take instructions out, such as a book with a ranking limit
+     */
+    default boolean amendInstruction(Instruction instruction) {
+        throw new UnsupportedOperationException("Instructions cannot be amended in " + getClass().getSimpleName());
+    }
+
+    /**
+     * @param id id of the instruction to take out of the book
+     * @return false if no instruction with this id is in the book
+     * @throws UnsupportedOperationException if the book does not track ids
+     * @throws IllegalStateException         if the book cannot take instructions out, such as a book with a ranking limit
+     */
+    default boolean cancelInstruction(String id) {
+        throw new UnsupportedOperationException("Instructions cannot be cancelled in " + getClass().getSimpleName());
+    }
+}
@@ -0,0 +1,27 @@
+package output;
+
+import java.time.LocalDate;
+
+/**
+ * Told about every change of a {@link ProcessedInstructions}, right after it has been made, on the thread making it
+ */
+public interface InstructionBookListener {
+
+    /**
+     * @param incoming true if the incoming ranking changed, false if the outgoing one
+     * @param fromRank position, from 0, of the first instruction of the ranking that may have changed, every
+     *                 instruction after it may have moved as well
+     */
+    void rankingChanged(boolean incoming, long fromRank);
+
+    /**
+     * @param incoming       true if the incoming instructions of the date changed, false if the outgoing ones
+     * @param settlementDate date whose instructions and totals changed
+     */
+    void dateChanged(boolean incoming, LocalDate settlementDate);
+
+    /**
+     * Any ranking and date may have changed, after a merge or a reprice
+     */
+    void bookChanged();
+}
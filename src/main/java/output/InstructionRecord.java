@@ -0,0 +1,78 @@
+package output;
+
+import domain.Instruction;
+import domain.InstructionSlabs;
+import domain.Type;
+
+import java.util.Currency;
+
+/**
+ * Flyweight view of one record of {@link InstructionSlabs}. Iterations move the same view from record to record,
+ * so keep the record number or call {@link #toInstruction()} to hold on to an instruction.
+ */
+public class InstructionRecord {
+
+    private final InstructionSlabs slabs;
+    private int record;
+
+    InstructionRecord(InstructionSlabs slabs) {
+        this.slabs = slabs;
+    }
+
+    void moveTo(int record) {
+        this.record = record;
+    }
+
+    public int getRecord() {
+        return record;
+    }
+
+    public String getEntity() {
+        return slabs.getEntity(record);
+    }
+
+    public Type getType() {
+        return slabs.getType(record);
+    }
+
+    public Currency getCurrency() {
+        return slabs.getCurrency(record);
+    }
+
+    public int getInstructionEpochDay() {
+        return slabs.getInstructionEpochDay(record);
+    }
+
+    public int getSettlementEpochDay() {
+        return slabs.getSettlementEpochDay(record);
+    }
+
+    public int getUnits() {
+        return slabs.getUnits(record);
+    }
+
+    /**
+     * @return fixed point price per unit
+     */
+    public long getPricePerUnit() {
+        return slabs.getPricePerUnit(record);
+    }
+
+    /**
+     * @return fixed point agreed fx
+     */
+    public long getAgreedFx() {
+        return slabs.getAgreedFx(record);
+    }
+
+    /**
+     * @return fixed point amount in USD
+     */
+    public long getAmountInUsd() {
+        return slabs.getAmountInUsd(record);
+    }
+
+    public Instruction toInstruction() {
+        return slabs.toInstruction(record);
+    }
+}
@@ -0,0 +1,182 @@
+package output;
+
+import com.google.common.collect.Maps;
+import domain.Instruction;
+import domain.InstructionSlabs;
+import utils.UsdAmountAccumulator;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Processed instructions for very large books: instructions are stored as records outside of the heap and the heap
+ * only holds primitive indexes over them, the rankings and the records of every settlement date, plus the totals
+ * per date. Rankings are read through a flyweight {@link InstructionRecord}.
+ * <p>
+ * Unlike {@link ProcessedInstructions} every instruction has its own place in the rankings, instructions with the same
+ * amount in USD in the order they were added. Only instructions whose amounts fit in fixed point can be stored, the
+ * others are rejected by {@link services.InstructionService}.
+ */
+public class OffHeapProcessedInstructions implements InstructionBook {
+
+    private final InstructionSlabs slabs = new InstructionSlabs();
+
+    //Incoming and outgoing records ordered by amount in USD
+    private final RecordRanking incomingRanking = new RecordRanking(slabs);
+    private final RecordRanking outgoingRanking = new RecordRanking(slabs);
+
+    //Incoming and outgoing totals grouped by settlement date, and over date windows
+    private final SortedMap<LocalDate, UsdAmountAccumulator> usdIncomingAmountPerDate = new TreeMap<>();
+    private final SortedMap<LocalDate, UsdAmountAccumulator> usdOutgoingAmountPerDate = new TreeMap<>();
+    private final SettlementAmountIndex usdIncomingAmountIndex = new SettlementAmountIndex(usdIncomingAmountPerDate);
+    private final SettlementAmountIndex usdOutgoingAmountIndex = new SettlementAmountIndex(usdOutgoingAmountPerDate);
+
+    //Incoming and outgoing records indexed by settlement date, each date ordered by amount in USD
+    private final SortedMap<LocalDate, RecordRanking> incomingRecordsPerDate = new TreeMap<>();
+    private final SortedMap<LocalDate, RecordRanking> outgoingRecordsPerDate = new TreeMap<>();
+
+    /**
+     * @return false if an amount of the instruction does not fit in fixed point
+     */
+    @Override
+    public boolean canStore(Instruction instruction) {
+        return InstructionSlabs.fits(instruction);
+    }
+
+    /**
+     * @throws IllegalArgumentException if an amount of the instruction does not fit in fixed point, see {@link #canStore(Instruction)}
+     */
+    @Override
+    public void addIncomingInstruction(Instruction instruction) {
+        addRecord(instruction, incomingRanking, usdIncomingAmountPerDate, usdIncomingAmountIndex, incomingRecordsPerDate);
+    }
+
+    /**
+     * @throws IllegalArgumentException if an amount of the instruction does not fit in fixed point, see {@link #canStore(Instruction)}
+     */
+    @Override
+    public void addOutgoingInstruction(Instruction instruction) {
+        addRecord(instruction, outgoingRanking, usdOutgoingAmountPerDate, usdOutgoingAmountIndex, outgoingRecordsPerDate);
+    }
+
+    private void addRecord(Instruction instruction, RecordRanking ranking, SortedMap<LocalDate, UsdAmountAccumulator> amountPerDateMap,
+                           SettlementAmountIndex amountIndex, SortedMap<LocalDate, RecordRanking> recordsPerDate) {
+        int record = slabs.add(instruction);
+        long amountInUsd = slabs.getAmountInUsd(record);
+        LocalDate settlementDate = instruction.getSettlementDate();
+        ranking.add(record);
+        amountPerDateMap.computeIfAbsent(settlementDate, date -> new UsdAmountAccumulator()).add(amountInUsd);
+        amountIndex.added(settlementDate, amountInUsd);
+        recordsPerDate.computeIfAbsent(settlementDate, date -> new RecordRanking(slabs)).add(record);
+    }
+
+    @Override
+    public long size() {
+        return slabs.size();
+    }
+
+    /**
+     * @return bytes held outside of the heap by the records
+     */
+    public long offHeapBytes() {
+        return slabs.offHeapBytes();
+    }
+
+    public int getIncomingCount() {
+        return incomingRanking.size();
+    }
+
+    public int getOutgoingCount() {
+        return outgoingRanking.size();
+    }
+
+    /**
+     * @return incoming records by amount in USD, largest first, all read through the same flyweight
+     */
+    public Iterable<InstructionRecord> getSortedIncomingRecords() {
+        return records(incomingRanking);
+    }
+
+    /**
+     * @return outgoing records by amount in USD, largest first, all read through the same flyweight
+     */
+    public Iterable<InstructionRecord> getSortedOutgoingRecords() {
+        return records(outgoingRanking);
+    }
+
+    public Iterable<InstructionRecord> getIncomingRecordsOn(LocalDate date) {
+        RecordRanking ranking = incomingRecordsPerDate.get(date);
+        return ranking == null ? Collections.emptyList() : records(ranking);
+    }
+
+    public Iterable<InstructionRecord> getOutgoingRecordsOn(LocalDate date) {
+        RecordRanking ranking = outgoingRecordsPerDate.get(date);
+        return ranking == null ? Collections.emptyList() : records(ranking);
+    }
+
+    private Iterable<InstructionRecord> records(RecordRanking ranking) {
+        return () -> {
+            ranking.sort();
+            return new Iterator<InstructionRecord>() {
+
+                private final InstructionRecord view = new InstructionRecord(slabs);
+                private final int size = ranking.size();
+                private int rank;
+
+                @Override
+                public boolean hasNext() {
+                    return rank < size;
+                }
+
+                @Override
+                public InstructionRecord next() {
+                    if (rank >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    view.moveTo(ranking.get(rank++));
+                    return view;
+                }
+            };
+        };
+    }
+
+    /**
+     * @return read-only view, each total is converted to a BigDecimal when read
+     */
+    public SortedMap<LocalDate, BigDecimal> getUsdIncomingAmountPerDate() {
+        return Maps.transformValues(usdIncomingAmountPerDate, UsdAmountAccumulator::toBigDecimal);
+    }
+
+    /**
+     * @return read-only view, each total is converted to a BigDecimal when read
+     */
+    public SortedMap<LocalDate, BigDecimal> getUsdOutgoingAmountPerDate() {
+        return Maps.transformValues(usdOutgoingAmountPerDate, UsdAmountAccumulator::toBigDecimal);
+    }
+
+    /**
+     * @return amount in USD of the incoming instructions settled between from and to, both inclusive
+     */
+    public BigDecimal getUsdIncomingAmountBetween(LocalDate from, LocalDate to) {
+        return usdIncomingAmountIndex.sum(from, to);
+    }
+
+    /**
+     * @return amount in USD of the outgoing instructions settled between from and to, both inclusive
+     */
+    public BigDecimal getUsdOutgoingAmountBetween(LocalDate from, LocalDate to) {
+        return usdOutgoingAmountIndex.sum(from, to);
+    }
+
+    /**
+     * @return incoming minus outgoing amount in USD settled between from and to, both inclusive
+     */
+    public BigDecimal getUsdNetPositionBetween(LocalDate from, LocalDate to) {
+        return getUsdIncomingAmountBetween(from, to).subtract(getUsdOutgoingAmountBetween(from, to));
+    }
+}
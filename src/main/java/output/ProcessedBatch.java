@@ -0,0 +1,120 @@
+package output;
+
+import com.google.common.collect.Maps;
+import domain.InstructionBatch;
+import utils.IndexSort;
+import utils.UsdAmountAccumulator;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Processed columnar batch: rankings are arrays of batch rows sorted by the amount in USD column
+ */
+public class ProcessedBatch {
+
+    private final InstructionBatch batch;
+
+    //Incoming and outgoing rows ordered by amount in USD, equal amounts keep the batch order
+    private final int[] incomingRanking;
+    private final int[] outgoingRanking;
+
+    //Incoming and outgoing totals grouped by settlement date
+    private final SortedMap<LocalDate, UsdAmountAccumulator> usdIncomingAmountPerDate = new TreeMap<>();
+    private final SortedMap<LocalDate, UsdAmountAccumulator> usdOutgoingAmountPerDate = new TreeMap<>();
+
+    private final int rejectedCount;
+
+    /**
+     * @param batch         batch whose settlement dates are adapted and amounts in USD computed
+     * @param acceptedRows  rows to rank, in batch order
+     * @param acceptedCount number of rows at the start of acceptedRows
+     */
+    public ProcessedBatch(InstructionBatch batch, int[] acceptedRows, int acceptedCount) {
+        this.batch = batch;
+        this.rejectedCount = batch.size() - acceptedCount;
+
+        int incomingCount = 0;
+        for (int i = 0; i < acceptedCount; i++) {
+            if (batch.isIncoming(acceptedRows[i])) {
+                incomingCount++;
+            }
+        }
+        incomingRanking = new int[incomingCount];
+        outgoingRanking = new int[acceptedCount - incomingCount];
+        int incoming = 0;
+        int outgoing = 0;
+        for (int i = 0; i < acceptedCount; i++) {
+            int row = acceptedRows[i];
+            if (batch.isIncoming(row)) {
+                incomingRanking[incoming++] = row;
+            } else {
+                outgoingRanking[outgoing++] = row;
+            }
+        }
+        IndexSort.sortDescending(incomingRanking, incomingRanking.length, batch.getAmountInUsdColumn());
+        IndexSort.sortDescending(outgoingRanking, outgoingRanking.length, batch.getAmountInUsdColumn());
+
+        accumulateAmountPerDate(incomingRanking, usdIncomingAmountPerDate);
+        accumulateAmountPerDate(outgoingRanking, usdOutgoingAmountPerDate);
+    }
+
+    /**
+     * Rows are grouped by epoch day in a hash map, dates are only created and sorted once per distinct day
+     */
+    private void accumulateAmountPerDate(int[] ranking, SortedMap<LocalDate, UsdAmountAccumulator> amountPerDateMap) {
+        Map<Integer, UsdAmountAccumulator> amountPerDay = new HashMap<>();
+        for (int row : ranking) {
+            amountPerDay.computeIfAbsent(batch.getSettlementEpochDay(row), day -> new UsdAmountAccumulator())
+                    .add(batch.getAmountInUsd(row));
+        }
+        amountPerDay.forEach((day, amountToDate) -> amountPerDateMap.put(LocalDate.ofEpochDay(day), amountToDate));
+    }
+
+    public InstructionBatch getBatch() {
+        return batch;
+    }
+
+    public int getIncomingCount() {
+        return incomingRanking.length;
+    }
+
+    public int getOutgoingCount() {
+        return outgoingRanking.length;
+    }
+
+    /**
+     * @param rank 0 for the largest amount in USD
+     * @return batch row of the incoming instruction at that rank
+     */
+    public int getIncomingRow(int rank) {
+        return incomingRanking[rank];
+    }
+
+    /**
+     * @param rank 0 for the largest amount in USD
+     * @return batch row of the outgoing instruction at that rank
+     */
+    public int getOutgoingRow(int rank) {
+        return outgoingRanking[rank];
+    }
+
+    /**
+     * @return rows that were not valid or whose amount in USD does not fit in fixed point
+     */
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public SortedMap<LocalDate, BigDecimal> getUsdIncomingAmountPerDate() {
+        return Maps.transformValues(usdIncomingAmountPerDate, UsdAmountAccumulator::toBigDecimal);
+    }
+
+    public SortedMap<LocalDate, BigDecimal> getUsdOutgoingAmountPerDate() {
+        return Maps.transformValues(usdOutgoingAmountPerDate, UsdAmountAccumulator::toBigDecimal);
+    }
+}
@@ -0,0 +1,98 @@
+package output;
+
+import domain.InstructionSlabs;
+import utils.IndexSort;
+
+import java.util.Arrays;
+
+/**
+ * Records of {@link InstructionSlabs} ordered by amount in USD, records with the same amount in the order they were
+ * added. Records are appended as they come and sorted into place the next time the ranking is read.
+ */
+class RecordRanking {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final InstructionSlabs slabs;
+
+    private int[] records = new int[INITIAL_CAPACITY];
+    private int size;
+    //Records before this position are already in order
+    private int sortedSize;
+
+    //Scratch space of sort(), grown with the records and reused across reads
+    private int[] merged = new int[INITIAL_CAPACITY];
+    private int[] added = new int[INITIAL_CAPACITY];
+    private int[] sortBuffer = new int[INITIAL_CAPACITY];
+    private long[] addedAmounts = new long[INITIAL_CAPACITY];
+
+    RecordRanking(InstructionSlabs slabs) {
+        this.slabs = slabs;
+    }
+
+    void add(int record) {
+        if (size == records.length) {
+            records = Arrays.copyOf(records, records.length * 2);
+        }
+        records[size++] = record;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param rank 0 for the largest amount in USD
+     */
+    int get(int rank) {
+        sort();
+        return records[rank];
+    }
+
+    /**
+     * Sorts the records added since the last read and merges them with the ones already in order, into a second array
+     * that then takes the place of the records
+     */
+    void sort() {
+        if (sortedSize == size) {
+            return;
+        }
+        int addedCount = size - sortedSize;
+        if (added.length < addedCount) {
+            int capacity = Math.max(addedCount, 2 * added.length);
+            added = new int[capacity];
+            sortBuffer = new int[capacity];
+            addedAmounts = new long[capacity];
+        }
+        for (int i = 0; i < addedCount; i++) {
+            added[i] = i;
+            addedAmounts[i] = slabs.getAmountInUsd(records[sortedSize + i]);
+        }
+        IndexSort.sortDescending(added, addedCount, addedAmounts, sortBuffer);
+
+        if (merged.length < records.length) {
+            merged = new int[records.length];
+        }
+        int sorted = 0;
+        int next = 0;
+        int position = 0;
+        while (sorted < sortedSize && next < addedCount) {
+            //Records already in order were added first, they go first among equal amounts
+            if (slabs.getAmountInUsd(records[sorted]) >= addedAmounts[added[next]]) {
+                merged[position++] = records[sorted++];
+            } else {
+                merged[position++] = records[sortedSize + added[next++]];
+            }
+        }
+        while (sorted < sortedSize) {
+            merged[position++] = records[sorted++];
+        }
+        while (next < addedCount) {
+            merged[position++] = records[sortedSize + added[next++]];
+        }
+        int[] previous = records;
+        records = merged;
+        merged = previous;
+        sortedSize = size;
+    }
+}
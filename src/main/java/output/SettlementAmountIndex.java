@@ -0,0 +1,187 @@
+package output;
+
+import domain.Instruction;
+import utils.FenwickTree;
+import utils.FixedPointMath;
+import utils.UsdAmountAccumulator;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Amounts in USD per settlement date as a Fenwick tree over epoch days, so the total of any date window costs O(log d).
+ * <p>
+ * The tree covers a window of twice the span of the dates seen so far and is rebuilt from the per-date totals when a
+ * date falls outside of it. If the totals stop fitting in fixed point, or the dates are too far apart, the index falls
+ * back to walking the per-date totals until a rebuild finds them fitting again: every removal rebuilds it while it has
+ * fallen back, in O(d log d).
+ */
+class SettlementAmountIndex {
+
+    static final int INITIAL_DAYS = 2 * 366;
+    //About 2,870 years, wider windows walk the totals per date instead
+    private static final int MAX_DAYS = 1 << 20;
+
+    private final SortedMap<LocalDate, UsdAmountAccumulator> amountPerDateMap;
+    //Smallest window of the tree
+    private final int initialDays;
+
+    private FenwickTree tree;
+    private long firstEpochDay;
+    private boolean overflowed;
+
+    /**
+     * @param amountPerDateMap totals per date the index is kept in line with
+     */
+    SettlementAmountIndex(SortedMap<LocalDate, UsdAmountAccumulator> amountPerDateMap) {
+        this(amountPerDateMap, INITIAL_DAYS);
+    }
+
+    /**
+     * @param amountPerDateMap totals per date the index is kept in line with
+     * @param initialDays      days the tree covers at least, it grows once the dates span more
+     */
+    SettlementAmountIndex(SortedMap<LocalDate, UsdAmountAccumulator> amountPerDateMap, int initialDays) {
+        this.amountPerDateMap = amountPerDateMap;
+        this.initialDays = initialDays;
+    }
+
+    /**
+     * @param instruction instruction whose amount has just been added to the totals per date
+     */
+    void added(Instruction instruction) {
+        if (overflowed) {
+            return;
+        }
+        if (!instruction.isUsdSortKeyExact()) {
+            overflowed = true;
+            return;
+        }
+        added(instruction.getSettlementDate(), instruction.getUsdSortKey());
+    }
+
+    /**
+     * @param settlementDate date whose total has just been increased
+     * @param amountInUsd    fixed point amount added to the total
+     */
+    void added(LocalDate settlementDate, long amountInUsd) {
+        if (overflowed) {
+            return;
+        }
+        long epochDay = settlementDate.toEpochDay();
+        if (tree == null || epochDay < firstEpochDay || epochDay - firstEpochDay >= tree.size()) {
+            //The totals already include the instruction
+            rebuild();
+            return;
+        }
+        try {
+            tree.add((int) (epochDay - firstEpochDay), amountInUsd);
+        } catch (ArithmeticException e) {
+            overflowed = true;
+        }
+    }
+
+    /**
+     * @param instruction instruction whose amount has just been taken out of the totals per date
+     */
+    void removed(Instruction instruction) {
+        if (overflowed || !instruction.isUsdSortKeyExact()) {
+            //The remaining totals may fit again
+            rebuild();
+            return;
+        }
+        added(instruction.getSettlementDate(), -instruction.getUsdSortKey());
+    }
+
+    /**
+     * @param before instruction whose amount had been added
+     * @param after  same instruction valued at another rate, the totals per date already hold its amount instead
+     */
+    void replaced(Instruction before, Instruction after) {
+        if (overflowed) {
+            return;
+        }
+        if (!before.isUsdSortKeyExact() || !after.isUsdSortKeyExact()) {
+            overflowed = true;
+            return;
+        }
+        long difference;
+        try {
+            difference = Math.subtractExact(after.getUsdSortKey(), before.getUsdSortKey());
+        } catch (ArithmeticException e) {
+            overflowed = true;
+            return;
+        }
+        added(after.getSettlementDate(), difference);
+    }
+
+    /**
+     * Recomputes the whole tree from the totals per date over a window sized from their span, reusing the current tree
+     * while its size is close enough. Clears the overflow once the totals fit again.
+     */
+    void rebuild() {
+        overflowed = false;
+        if (amountPerDateMap.isEmpty()) {
+            if (tree != null) {
+                tree.clear();
+            }
+            return;
+        }
+        long firstDay = amountPerDateMap.firstKey().toEpochDay();
+        long span = amountPerDateMap.lastKey().toEpochDay() - firstDay + 1;
+        if (span > MAX_DAYS / 2) {
+            overflowed = true;
+            return;
+        }
+        int days = Math.max(initialDays, 2 * (int) span);
+        if (tree == null || tree.size() < days || tree.size() > 2 * days) {
+            tree = new FenwickTree(days);
+        } else {
+            tree.clear();
+        }
+        //Leave as much room before the first date as after the last one
+        firstEpochDay = firstDay - (tree.size() - span) / 2;
+        try {
+            for (Map.Entry<LocalDate, UsdAmountAccumulator> entry : amountPerDateMap.entrySet()) {
+                tree.add((int) (entry.getKey().toEpochDay() - firstEpochDay), FixedPointMath.toFixed(entry.getValue().toBigDecimal()));
+            }
+        } catch (ArithmeticException e) {
+            overflowed = true;
+        }
+    }
+
+    /**
+     * @return total amount in USD settled between from and to, both inclusive
+     */
+    BigDecimal sum(LocalDate from, LocalDate to) {
+        if (to.isBefore(from)) {
+            return FixedPointMath.toBigDecimal(0);
+        }
+        if (overflowed) {
+            return walk(from, to);
+        }
+        if (tree == null) {
+            return FixedPointMath.toBigDecimal(0);
+        }
+        long fromPosition = Math.max(0, from.toEpochDay() - firstEpochDay);
+        long toPosition = Math.min(tree.size() - 1, to.toEpochDay() - firstEpochDay);
+        if (toPosition < fromPosition) {
+            return FixedPointMath.toBigDecimal(0);
+        }
+        try {
+            return FixedPointMath.toBigDecimal(tree.rangeSum((int) fromPosition, (int) toPosition));
+        } catch (ArithmeticException e) {
+            return walk(from, to);
+        }
+    }
+
+    private BigDecimal walk(LocalDate from, LocalDate to) {
+        UsdAmountAccumulator total = new UsdAmountAccumulator();
+        SortedMap<LocalDate, UsdAmountAccumulator> window = to.equals(LocalDate.MAX)
+                ? amountPerDateMap.tailMap(from) : amountPerDateMap.subMap(from, to.plusDays(1));
+        window.values().forEach(total::add);
+        return total.toBigDecimal();
+    }
+}
@@ -0,0 +1,281 @@
+package persistence;
+
+import domain.Instruction;
+import output.InstructionBook;
+import output.ProcessedInstructions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Processed instructions kept in a directory as the latest snapshot plus a journal of the instructions added, amended
+ * and cancelled after it.
+ * Opening the directory loads the snapshot and replays only the journal, so restarting costs the size of the snapshot
+ * plus the activity since it was taken, instead of processing every instruction again.
+ * <p>
+ * Instructions are journaled once they are applied, so a record the book rejects is never replayed: replays of an id,
+ * amendments and cancellations of an unknown one are not journaled either. A change whose record cannot be written is
+ * only in memory, and lost on restart. Changes are durable once {@link #commit()}
+ * returns, or once the next snapshot is taken. Not thread-safe, like {@link ProcessedInstructions}.
+ * <p>
+ * Snapshots are taken on the thread of the change that makes one due: that change waits for the whole book to be
+ * written and forced to disk, in O(n). Callers that cannot stall pass {@link #NEVER} and call {@link #snapshot()}
+ * themselves when they can afford it.
+ * <pre>
+ * snapshot  magic (int), version (short), last journal sequence covered (long),
+ *           state as written by {@link ProcessedInstructions#writeSnapshot}, CRC32 of everything before it (int)
+ * </pre>
+ */
+public class DurableProcessedInstructions implements InstructionBook, AutoCloseable {
+
+    public static final long NEVER = Long.MAX_VALUE;
+
+    static final String SNAPSHOT_FILE = "snapshot.bin";
+    static final String JOURNAL_FILE = "journal.bin";
+    private static final String TEMPORARY_SNAPSHOT_FILE = "snapshot.tmp";
+
+    private static final int MAGIC = 0x4A504D53;
+    private static final short VERSION = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final long snapshotInterval;
+    private final ProcessedInstructions processedInstructions;
+    private final InstructionJournal journal;
+
+    private long journaledSinceSnapshot;
+
+    private DurableProcessedInstructions(Path directory, long snapshotInterval, ProcessedInstructions processedInstructions,
+                                         InstructionJournal journal, long journaledSinceSnapshot) {
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        this.processedInstructions = processedInstructions;
+        this.journal = journal;
+        this.journaledSinceSnapshot = journaledSinceSnapshot;
+    }
+
+    /**
+     * Opens the directory, creating it if needed, and recovers the instructions stored in it
+     *
+     * @param directory        directory holding the snapshot and the journal
+     * @param rankingLimit     ranking limit of a new book, it should match the one of an existing snapshot
+     * @param snapshotInterval number of journaled instructions after which a snapshot is taken, by the change that
+     *                         makes it due, or {@link #NEVER}
+     */
+    public static DurableProcessedInstructions open(Path directory, int rankingLimit, long snapshotInterval) throws IOException {
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("Snapshot interval should be positive");
+        }
+        Files.createDirectories(directory);
+        //A snapshot interrupted before being renamed is incomplete
+        Files.deleteIfExists(directory.resolve(TEMPORARY_SNAPSHOT_FILE));
+
+        ProcessedInstructions processedInstructions = new ProcessedInstructions(rankingLimit);
+        long snapshotSequence = 0;
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = openSnapshot(snapshotFile)) {
+                snapshotSequence = in.readLong();
+                processedInstructions = ProcessedInstructions.readSnapshot(in);
+            }
+            if (processedInstructions.getRankingLimit() != rankingLimit) {
+                throw new IllegalArgumentException("The snapshot in " + directory + " has a ranking limit of " + processedInstructions.getRankingLimit());
+            }
+        }
+        //Replayed into the book itself, the records are already in the journal
+        InstructionJournal journal = InstructionJournal.open(directory.resolve(JOURNAL_FILE), snapshotSequence, processedInstructions);
+        return new DurableProcessedInstructions(directory, snapshotInterval, processedInstructions, journal,
+                journal.getLastSequence() - snapshotSequence);
+    }
+
+    /**
+     * @return input positioned after the header, once the checksum of the whole snapshot has been verified
+     */
+    private static DataInputStream openSnapshot(Path snapshotFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            long length = channel.size() - Integer.BYTES;
+            if (length < Integer.BYTES + Short.BYTES + Long.BYTES) {
+                throw new IOException("Truncated snapshot: " + snapshotFile);
+            }
+            CRC32 checksum = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = 0;
+            while (position < length) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, length - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Truncated snapshot: " + snapshotFile);
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                position += read;
+            }
+            ByteBuffer expected = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(expected, length);
+            if (expected.getInt(0) != (int) checksum.getValue()) {
+                throw new IOException("Corrupted snapshot: " + snapshotFile);
+            }
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile), BUFFER_SIZE));
+        if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+            in.close();
+            throw new IOException("Not a snapshot of processed instructions: " + snapshotFile);
+        }
+        return in;
+    }
+
+    @Override
+    public void addIncomingInstruction(Instruction instruction) {
+        addNewInstruction(instruction, true);
+    }
+
+    @Override
+    public void addOutgoingInstruction(Instruction instruction) {
+        addNewInstruction(instruction, false);
+    }
+
+    /**
+     * Only journaled if the book stored it
+     */
+    @Override
+    public boolean addNewInstruction(Instruction instruction, boolean incoming) {
+        if (!processedInstructions.addNewInstruction(instruction, incoming)) {
+            return false;
+        }
+        try {
+            journal.append(instruction, incoming);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        journaled();
+        return true;
+    }
+
+    @Override
+    public boolean containsInstruction(String id) {
+        return processedInstructions.containsInstruction(id);
+    }
+
+    /**
+     * Only journaled if an instruction with the same id was in the book
+     */
+    @Override
+    public boolean amendInstruction(Instruction instruction) {
+        if (!processedInstructions.amendInstruction(instruction)) {
+            return false;
+        }
+        try {
+            journal.appendAmendment(instruction);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        journaled();
+        return true;
+    }
+
+    /**
+     * Only journaled if an instruction with this id was in the book
+     */
+    @Override
+    public boolean cancelInstruction(String id) {
+        if (!processedInstructions.cancelInstruction(id)) {
+            return false;
+        }
+        try {
+            journal.appendCancellation(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        journaled();
+        return true;
+    }
+
+    /**
+     * Takes a snapshot once the interval is reached, on the caller's thread
+     */
+    private void journaled() {
+        if (++journaledSinceSnapshot >= snapshotInterval) {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Makes every instruction added so far durable
+     */
+    public void commit() throws IOException {
+        journal.commit();
+    }
+
+    /**
+     * Writes the whole state to a new snapshot, which replaces the previous one atomically, and empties the journal
+     */
+    public void snapshot() throws IOException {
+        journal.commit();
+        Path temporaryFile = directory.resolve(TEMPORARY_SNAPSHOT_FILE);
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32 checksum = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), checksum), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(journal.getLastSequence());
+            processedInstructions.writeSnapshot(out);
+            out.flush();
+            out.writeInt((int) checksum.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporaryFile, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(directory);
+        //Records left behind by a crash here are skipped on recovery, the snapshot covers their sequences
+        journal.reset();
+        journaledSinceSnapshot = 0;
+    }
+
+    /**
+     * Forces the entries of the directory to the storage device, so a file just moved into it is still there after a
+     * crash. Platforms that cannot open a directory, such as Windows, make the move durable on their own
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            //Directory cannot be opened for reading on this platform
+        }
+    }
+
+    /**
+     * @return instructions recovered and added so far, to be queried but not changed directly
+     */
+    public ProcessedInstructions getProcessedInstructions() {
+        return processedInstructions;
+    }
+
+    @Override
+    public long size() {
+        return processedInstructions.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -0,0 +1,218 @@
+package persistence;
+
+import domain.Instruction;
+import output.ProcessedInstructions;
+import utils.InstructionCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the instructions added to, amended in and cancelled from a book, numbered by a sequence that
+ * keeps growing across resets.
+ * <pre>
+ * record  payload length (int), payload, CRC32 of the payload (int)
+ * payload sequence (long), operation (byte), instruction as written by {@link InstructionCodec} or id (UTF) of a cancellation
+ * </pre>
+ * Appended records are buffered until {@link #commit()}. A record torn by a crash fails its checksum and is cut off,
+ * with everything after it, when the journal is opened again.
+ */
+public class InstructionJournal implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+    private static final byte ADD_OUTGOING = 0;
+    private static final byte ADD_INCOMING = 1;
+    private static final byte AMEND = 2;
+    private static final byte CANCEL = 3;
+
+    private final FileChannel channel;
+    private final DataOutputStream output;
+
+    //Payload of the record being appended and its checksum
+    private final RecordBuffer payload = new RecordBuffer();
+    private final DataOutputStream payloadOutput = new DataOutputStream(payload);
+    private final CRC32 checksum = new CRC32();
+
+    private long lastSequence;
+
+    private InstructionJournal(FileChannel channel, long lastSequence) {
+        this.channel = channel;
+        this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        this.lastSequence = lastSequence;
+    }
+
+    /**
+     * Opens the journal, creating it if needed, and replays it
+     *
+     * @param file          journal file
+     * @param afterSequence records up to this sequence are already in book and are skipped
+     * @param book          in-memory book the remaining records are applied to, in journal order. Not a durable book,
+     *                      which would journal the replayed records a second time
+     * @return journal positioned after its last intact record
+     */
+    public static InstructionJournal open(Path file, long afterSequence, ProcessedInstructions book) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long lastSequence = afterSequence;
+            long intactLength = 0;
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+            CRC32 checksum = new CRC32();
+            byte[] payload = new byte[256];
+            while (true) {
+                int payloadSize;
+                try {
+                    payloadSize = input.readInt();
+                    if (payloadSize <= 0 || payloadSize > MAX_PAYLOAD_SIZE) {
+                        break;
+                    }
+                    if (payload.length < payloadSize) {
+                        payload = new byte[Math.max(payloadSize, 2 * payload.length)];
+                    }
+                    input.readFully(payload, 0, payloadSize);
+                    checksum.reset();
+                    checksum.update(payload, 0, payloadSize);
+                    if (input.readInt() != (int) checksum.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 0, payloadSize));
+                long sequence = record.readLong();
+                byte operation = record.readByte();
+                if (sequence > afterSequence) {
+                    switch (operation) {
+                        case ADD_OUTGOING:
+                            book.addOutgoingInstruction(InstructionCodec.read(record));
+                            break;
+                        case ADD_INCOMING:
+                            book.addIncomingInstruction(InstructionCodec.read(record));
+                            break;
+                        case AMEND:
+                            book.amendInstruction(InstructionCodec.read(record));
+                            break;
+                        case CANCEL:
+                            book.cancelInstruction(record.readUTF());
+                            break;
+                        default:
+                            throw new IOException("Unknown journal operation " + operation + " in " + file);
+                    }
+                }
+                lastSequence = Math.max(lastSequence, sequence);
+                intactLength += Integer.BYTES + payloadSize + Integer.BYTES;
+            }
+            channel.truncate(intactLength);
+            channel.position(intactLength);
+            return new InstructionJournal(channel, lastSequence);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param incoming true if the instruction was added as incoming, false if outgoing
+     * @return sequence of the record, durable only once committed
+     */
+    public long append(Instruction instruction, boolean incoming) throws IOException {
+        startRecord(incoming ? ADD_INCOMING : ADD_OUTGOING);
+        InstructionCodec.write(instruction, payloadOutput);
+        return endRecord();
+    }
+
+    /**
+     * @param instruction corrected instruction, replacing the one with the same id
+     * @return sequence of the record, durable only once committed
+     */
+    public long appendAmendment(Instruction instruction) throws IOException {
+        startRecord(AMEND);
+        InstructionCodec.write(instruction, payloadOutput);
+        return endRecord();
+    }
+
+    /**
+     * @param id id of the cancelled instruction
+     * @return sequence of the record, durable only once committed
+     */
+    public long appendCancellation(String id) throws IOException {
+        startRecord(CANCEL);
+        payloadOutput.writeUTF(id);
+        return endRecord();
+    }
+
+    private void startRecord(byte operation) throws IOException {
+        payload.reset();
+        payloadOutput.writeLong(lastSequence + 1);
+        payloadOutput.writeByte(operation);
+    }
+
+    private long endRecord() throws IOException {
+        long sequence = lastSequence + 1;
+        checksum.reset();
+        checksum.update(payload.array(), 0, payload.size());
+
+        output.writeInt(payload.size());
+        output.write(payload.array(), 0, payload.size());
+        output.writeInt((int) checksum.getValue());
+        lastSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * Writes the buffered records and forces them to the storage device
+     */
+    public void commit() throws IOException {
+        output.flush();
+        channel.force(false);
+    }
+
+    /**
+     * Empties the journal once its records are covered by a snapshot, sequences continue from the last one
+     */
+    public void reset() throws IOException {
+        output.flush();
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(false);
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reusable record buffer whose bytes can be read without copying
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+
+        private RecordBuffer() {
+            super(256);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package persistence;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.SortedMultiset;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import domain.Instruction;
+import domain.Type;
+import output.InstructionBook;
+import output.ProcessedInstructions;
+import utils.ComparatorByUsdAmountDescending;
+import utils.InstructionCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Processed instructions partitioned by settlement date. Once a settlement date is older than the retention in memory,
+ * {@link #applyRetention(LocalDate)} writes its partition to a segment file and evicts it from the heap, so the heap
+ * only holds the active window. Only the totals of archived dates stay in memory; their instructions are read back
+ * lazily when a historical date is queried, and a few of them are kept in memory for the next queries.
+ * <p>
+ * Replays, amendments and cancellations of any date are recognised. The ids of an archived date are only on disk,
+ * memory holds a Bloom filter of them per date, read with its totals: an id is looked up in the filter of every
+ * archived date, and only read from the segments whose filter might hold it.
+ * <p>
+ * Active partitions are not durable, only segments are: a segment read back to be updated stays on disk until the
+ * partition is archived again. Not thread-safe, like {@link ProcessedInstructions}.
+ * <pre>
+ * segment  magic (int), version (short), settlement date (epoch day, long), instructions (long),
+ *          incoming and outgoing totals, Bloom filter of the ids, ids (int count, then UTF each),
+ *          state as written by {@link ProcessedInstructions#writeSnapshot}, CRC32 of everything before it (int)
+ * </pre>
+ */
+public class PartitionedProcessedInstructions implements InstructionBook {
+
+    public static final long FOREVER = Long.MAX_VALUE;
+
+    static final String SEGMENT_EXTENSION = ".seg";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    private static final int MAGIC = 0x4A504D50;
+    private static final short VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LOADED_SEGMENTS = 8;
+    //Partitions hold a single settlement date, their id filters grow from there
+    private static final int PARTITION_DAYS = 1;
+    private static final int PARTITION_EXPECTED_IDS = 64;
+    //Every archived date whose filter holds an id by mistake costs a read of its ids
+    private static final double ARCHIVED_ID_FALSE_POSITIVES = 0.001;
+
+    private static final ComparatorByUsdAmountDescending BY_USD_AMOUNT = new ComparatorByUsdAmountDescending();
+
+    private final Path directory;
+    private final int rankingLimit;
+    //Days a settled partition stays in memory, then on disk, after its settlement date
+    private final long daysInMemory;
+    private final long daysOnDisk;
+
+    //Sequence of the last instruction stored in any partition, so the merged rankings keep equal amounts in order
+    private long lastSequence;
+
+    //Partitions in memory by settlement date
+    private final NavigableMap<LocalDate, ProcessedInstructions> activePartitions = new TreeMap<>();
+
+    //Totals of every archived settlement date, their instructions are only on disk
+    private final NavigableMap<LocalDate, ArchivedTotals> archivedTotals = new TreeMap<>();
+    private long archivedSize;
+
+    //Archived partitions read back for historical queries, least recently used first
+    private final Map<LocalDate, ProcessedInstructions> loadedSegments = new LinkedHashMap<LocalDate, ProcessedInstructions>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LocalDate, ProcessedInstructions> eldest) {
+            return size() > MAX_LOADED_SEGMENTS;
+        }
+    };
+
+    //Ids of archived dates read back to look an id up, least recently used first
+    private final Map<LocalDate, Set<String>> loadedIds = new LinkedHashMap<LocalDate, Set<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LocalDate, Set<String>> eldest) {
+            return size() > MAX_LOADED_SEGMENTS;
+        }
+    };
+
+    private PartitionedProcessedInstructions(Path directory, int rankingLimit, long daysInMemory, long daysOnDisk) {
+        this.directory = directory;
+        this.rankingLimit = rankingLimit;
+        this.daysInMemory = daysInMemory;
+        this.daysOnDisk = daysOnDisk;
+    }
+
+    /**
+     * Opens the directory, creating it if needed, and reads the totals of the segments stored in it
+     *
+     * @param directory    directory holding a segment per archived settlement date
+     * @param rankingLimit ranking limit of every partition, see {@link ProcessedInstructions#ProcessedInstructions(int)}
+     * @param daysInMemory days after its settlement date a partition is archived
+     * @param daysOnDisk   days after its settlement date a segment is deleted, or {@link #FOREVER}
+     */
+    public static PartitionedProcessedInstructions open(Path directory, int rankingLimit, long daysInMemory, long daysOnDisk) throws IOException {
+        if (daysInMemory <= 0 || daysOnDisk < daysInMemory) {
+            throw new IllegalArgumentException("Days in memory should be positive and no more than days on disk");
+        }
+        Files.createDirectories(directory);
+        PartitionedProcessedInstructions partitioned = new PartitionedProcessedInstructions(directory, rankingLimit, daysInMemory, daysOnDisk);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMPORARY_EXTENSION)) {
+                    //An archive interrupted before being renamed is incomplete, its partition was lost with the heap
+                    Files.delete(file);
+                } else if (name.endsWith(SEGMENT_EXTENSION)) {
+                    ArchivedTotals totals = readTotals(file);
+                    partitioned.archivedTotals.put(totals.settlementDate, totals);
+                    partitioned.archivedSize += totals.size;
+                }
+            }
+        }
+        return partitioned;
+    }
+
+    @Override
+    public void addIncomingInstruction(Instruction instruction) {
+        addNewInstruction(instruction, true);
+    }
+
+    @Override
+    public void addOutgoingInstruction(Instruction instruction) {
+        addNewInstruction(instruction, false);
+    }
+
+    /**
+     * Replays of an archived instruction are recognised without reading its partition back
+     */
+    @Override
+    public boolean addNewInstruction(Instruction instruction, boolean incoming) {
+        if (containsInstruction(instruction.getId())) {
+            return false;
+        }
+        return partitionForUpdate(instruction.getSettlementDate()).addNewInstruction(instruction, incoming);
+    }
+
+    @Override
+    public boolean containsInstruction(String id) {
+        return settlementDateOf(id) != null;
+    }
+
+    /**
+     * The partition of an archived instruction is read back first, the amended one can settle on another date
+     */
+    @Override
+    public boolean amendInstruction(Instruction instruction) {
+        LocalDate amendedDate = settlementDateOf(instruction.getId());
+        if (amendedDate == null) {
+            return false;
+        }
+        LocalDate settlementDate = instruction.getSettlementDate();
+        if (amendedDate.equals(settlementDate)) {
+            return partitionForUpdate(settlementDate).amendInstruction(instruction);
+        }
+        partitionForUpdate(amendedDate).cancelInstruction(instruction.getId());
+        partitionForUpdate(settlementDate).addNewInstruction(instruction, instruction.getType() == Type.SELL);
+        return true;
+    }
+
+    /**
+     * The partition of an archived instruction is read back first
+     */
+    @Override
+    public boolean cancelInstruction(String id) {
+        LocalDate settlementDate = settlementDateOf(id);
+        return settlementDate != null && partitionForUpdate(settlementDate).cancelInstruction(id);
+    }
+
+    /**
+     * @return settlement date of the instruction with this id, active or archived, or null if it is not in the book
+     */
+    private LocalDate settlementDateOf(String id) {
+        if (id == null) {
+            return null;
+        }
+        for (Map.Entry<LocalDate, ProcessedInstructions> entry : activePartitions.entrySet()) {
+            if (entry.getValue().containsInstruction(id)) {
+                return entry.getKey();
+            }
+        }
+        //Replays and corrections mostly follow recent trades
+        for (ArchivedTotals totals : archivedTotals.descendingMap().values()) {
+            if (totals.ids.mightContain(id) && archivedIds(totals.settlementDate).contains(id)) {
+                return totals.settlementDate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return active partition of the date, an archived one is read back and becomes active again until the next
+     * {@link #applyRetention(LocalDate)}. Its segment is kept until then
+     */
+    private ProcessedInstructions partitionForUpdate(LocalDate settlementDate) {
+        ProcessedInstructions partition = activePartitions.get(settlementDate);
+        if (partition != null) {
+            return partition;
+        }
+        ArchivedTotals totals = archivedTotals.get(settlementDate);
+        if (totals == null) {
+            partition = newPartition();
+        } else {
+            partition = archivedPartition(settlementDate);
+            loadedSegments.remove(settlementDate);
+            loadedIds.remove(settlementDate);
+            archivedTotals.remove(settlementDate);
+            archivedSize -= totals.size;
+        }
+        activePartitions.put(settlementDate, partition);
+        return partition;
+    }
+
+    private ProcessedInstructions newPartition() {
+        return new ProcessedInstructions(rankingLimit, PARTITION_DAYS, PARTITION_EXPECTED_IDS, () -> ++lastSequence);
+    }
+
+    /**
+     * Archives the partitions settled more than the days in memory before today and deletes the segments settled
+     * more than the days on disk before today
+     *
+     * @param today reference date of the retention
+     * @return number of partitions archived
+     */
+    public int applyRetention(LocalDate today) throws IOException {
+        Objects.requireNonNull(today, "Please provide a valid date");
+        int archived = 0;
+        LocalDate firstActiveDate = today.minusDays(daysInMemory);
+        SortedMap<LocalDate, ProcessedInstructions> settled = activePartitions.headMap(firstActiveDate);
+        for (Iterator<Map.Entry<LocalDate, ProcessedInstructions>> partitions = settled.entrySet().iterator(); partitions.hasNext(); ) {
+            Map.Entry<LocalDate, ProcessedInstructions> entry = partitions.next();
+            if (entry.getValue().size() > 0) {
+                archive(entry.getKey(), entry.getValue());
+                archived++;
+            } else {
+                //Read back from its segment, then every instruction was cancelled
+                Files.deleteIfExists(segmentFile(entry.getKey()));
+            }
+            partitions.remove();
+        }
+        if (daysOnDisk != FOREVER) {
+            LocalDate firstKeptDate = today.minusDays(daysOnDisk);
+            SortedMap<LocalDate, ArchivedTotals> expired = archivedTotals.headMap(firstKeptDate);
+            if (!expired.isEmpty()) {
+                for (ArchivedTotals totals : expired.values()) {
+                    Files.deleteIfExists(segmentFile(totals.settlementDate));
+                    loadedSegments.remove(totals.settlementDate);
+                    loadedIds.remove(totals.settlementDate);
+                    archivedSize -= totals.size;
+                }
+                expired.clear();
+            }
+        }
+        return archived;
+    }
+
+    private void archive(LocalDate settlementDate, ProcessedInstructions partition) throws IOException {
+        Set<String> ids = partition.getInstructionIds();
+        BloomFilter<CharSequence> idFilter = newIdFilter(ids.size());
+        ids.forEach(idFilter::put);
+        ArchivedTotals totals = new ArchivedTotals(settlementDate, partition.size(),
+                partition.getUsdIncomingAmountBetween(settlementDate, settlementDate),
+                partition.getUsdOutgoingAmountBetween(settlementDate, settlementDate), idFilter);
+        Path temporaryFile = directory.resolve(settlementDate + TEMPORARY_EXTENSION);
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32 checksum = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), checksum), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            totals.write(out);
+            out.writeInt(ids.size());
+            for (String id : ids) {
+                out.writeUTF(id);
+            }
+            partition.writeSnapshot(out);
+            out.flush();
+            out.writeInt((int) checksum.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporaryFile, segmentFile(settlementDate), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        DurableProcessedInstructions.forceDirectory(directory);
+        archivedTotals.put(settlementDate, totals);
+        archivedSize += totals.size;
+    }
+
+    private static BloomFilter<CharSequence> newIdFilter(int expectedIds) {
+        return BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), Math.max(1, expectedIds), ARCHIVED_ID_FALSE_POSITIVES);
+    }
+
+    private Path segmentFile(LocalDate settlementDate) {
+        return directory.resolve(settlementDate + SEGMENT_EXTENSION);
+    }
+
+    /**
+     * @return totals at the head of the segment, with the filter of its ids
+     */
+    private static ArchivedTotals readTotals(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            checkHeader(in, file);
+            ArchivedTotals totals = ArchivedTotals.read(in);
+            if (!file.getFileName().toString().equals(totals.settlementDate + SEGMENT_EXTENSION)) {
+                throw new IOException("Segment of " + totals.settlementDate + " in " + file);
+            }
+            return totals;
+        }
+    }
+
+    /**
+     * @return ids of an archived date, from its partition if it has been read back or else from its segment
+     */
+    private Set<String> archivedIds(LocalDate settlementDate) {
+        ProcessedInstructions partition = loadedSegments.get(settlementDate);
+        if (partition != null) {
+            return partition.getInstructionIds();
+        }
+        Set<String> ids = loadedIds.get(settlementDate);
+        if (ids != null) {
+            return ids;
+        }
+        Path file = segmentFile(settlementDate);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            checkHeader(in, file);
+            ArchivedTotals.read(in);
+            int idCount = in.readInt();
+            ids = new HashSet<>(2 * idCount);
+            for (int i = 0; i < idCount; i++) {
+                ids.add(in.readUTF());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        loadedIds.put(settlementDate, ids);
+        return ids;
+    }
+
+    private ProcessedInstructions archivedPartition(LocalDate settlementDate) {
+        ProcessedInstructions partition = loadedSegments.get(settlementDate);
+        if (partition != null) {
+            return partition;
+        }
+        Path file = segmentFile(settlementDate);
+        CRC32 checksum = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE), checksum))) {
+            checkHeader(in, file);
+            ArchivedTotals.read(in);
+            for (int ids = in.readInt(); ids > 0; ids--) {
+                in.readUTF();
+            }
+            partition = ProcessedInstructions.readSnapshot(in, PARTITION_DAYS, PARTITION_EXPECTED_IDS, () -> ++lastSequence);
+            int expected = (int) checksum.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Corrupted segment: " + file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        loadedSegments.put(settlementDate, partition);
+        return partition;
+    }
+
+    private static void checkHeader(DataInputStream in, Path file) throws IOException {
+        if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+            throw new IOException("Not a segment of processed instructions: " + file);
+        }
+    }
+
+    /**
+     * @return instructions of active and archived partitions
+     */
+    @Override
+    public long size() {
+        long size = archivedSize;
+        for (ProcessedInstructions partition : activePartitions.values()) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return settlement dates kept in memory
+     */
+    public NavigableMap<LocalDate, ProcessedInstructions> getActivePartitions() {
+        return Collections.unmodifiableNavigableMap(activePartitions);
+    }
+
+    /**
+     * @return archived settlement dates, whose instructions are only on disk
+     */
+    public NavigableSet<LocalDate> getArchivedDates() {
+        return Collections.unmodifiableNavigableSet(archivedTotals.navigableKeySet());
+    }
+
+    /**
+     * @param date settlement date, possibly archived
+     * @return incoming instructions settled on the date, ordered by amount in USD
+     */
+    public SortedMultiset<Instruction> getIncomingInstructionsOn(LocalDate date) {
+        return partitionForQuery(date).getIncomingInstructionsOn(date);
+    }
+
+    /**
+     * @param date settlement date, possibly archived
+     * @return outgoing instructions settled on the date, ordered by amount in USD
+     */
+    public SortedMultiset<Instruction> getOutgoingInstructionsOn(LocalDate date) {
+        return partitionForQuery(date).getOutgoingInstructionsOn(date);
+    }
+
+    private ProcessedInstructions partitionForQuery(LocalDate date) {
+        ProcessedInstructions partition = activePartitions.get(date);
+        if (partition != null) {
+            return partition;
+        }
+        return archivedTotals.containsKey(date) ? archivedPartition(date) : newPartition();
+    }
+
+    /**
+     * @return incoming instructions of the active partitions ordered by amount in USD, merged lazily
+     */
+    public Iterable<Instruction> getSortedIncomingInstructions() {
+        List<Iterable<Instruction>> rankings = new ArrayList<>();
+        activePartitions.values().forEach(partition -> rankings.add(partition.getSortedIncomingInstructions()));
+        return Iterables.mergeSorted(rankings, BY_USD_AMOUNT);
+    }
+
+    /**
+     * @return outgoing instructions of the active partitions ordered by amount in USD, merged lazily
+     */
+    public Iterable<Instruction> getSortedOutgoingInstructions() {
+        List<Iterable<Instruction>> rankings = new ArrayList<>();
+        activePartitions.values().forEach(partition -> rankings.add(partition.getSortedOutgoingInstructions()));
+        return Iterables.mergeSorted(rankings, BY_USD_AMOUNT);
+    }
+
+    /**
+     * @return copy of the totals of every settlement date, active or archived
+     */
+    public SortedMap<LocalDate, BigDecimal> getUsdIncomingAmountPerDate() {
+        SortedMap<LocalDate, BigDecimal> amountPerDate = new TreeMap<>();
+        archivedTotals.forEach((date, totals) -> amountPerDate.put(date, totals.incomingAmount));
+        activePartitions.forEach((date, partition) -> amountPerDate.putAll(partition.getUsdIncomingAmountPerDate()));
+        return amountPerDate;
+    }
+
+    /**
+     * @return copy of the totals of every settlement date, active or archived
+     */
+    public SortedMap<LocalDate, BigDecimal> getUsdOutgoingAmountPerDate() {
+        SortedMap<LocalDate, BigDecimal> amountPerDate = new TreeMap<>();
+        archivedTotals.forEach((date, totals) -> amountPerDate.put(date, totals.outgoingAmount));
+        activePartitions.forEach((date, partition) -> amountPerDate.putAll(partition.getUsdOutgoingAmountPerDate()));
+        return amountPerDate;
+    }
+
+    /**
+     * @return total amount in USD of the incoming instructions settled between from and to, both inclusive, archived
+     * dates included without reading their segments
+     */
+    public BigDecimal getUsdIncomingAmountBetween(LocalDate from, LocalDate to) {
+        BigDecimal amount = BigDecimal.ZERO;
+        for (ArchivedTotals totals : archivedTotals.subMap(from, true, to, true).values()) {
+            amount = amount.add(totals.incomingAmount);
+        }
+        for (Map.Entry<LocalDate, ProcessedInstructions> entry : activePartitions.subMap(from, true, to, true).entrySet()) {
+            amount = amount.add(entry.getValue().getUsdIncomingAmountBetween(entry.getKey(), entry.getKey()));
+        }
+        return amount;
+    }
+
+    /**
+     * @return total amount in USD of the outgoing instructions settled between from and to, both inclusive, archived
+     * dates included without reading their segments
+     */
+    public BigDecimal getUsdOutgoingAmountBetween(LocalDate from, LocalDate to) {
+        BigDecimal amount = BigDecimal.ZERO;
+        for (ArchivedTotals totals : archivedTotals.subMap(from, true, to, true).values()) {
+            amount = amount.add(totals.outgoingAmount);
+        }
+        for (Map.Entry<LocalDate, ProcessedInstructions> entry : activePartitions.subMap(from, true, to, true).entrySet()) {
+            amount = amount.add(entry.getValue().getUsdOutgoingAmountBetween(entry.getKey(), entry.getKey()));
+        }
+        return amount;
+    }
+
+    /**
+     * @return incoming minus outgoing amount in USD settled between from and to, both inclusive
+     */
+    public BigDecimal getUsdNetPositionBetween(LocalDate from, LocalDate to) {
+        return getUsdIncomingAmountBetween(from, to).subtract(getUsdOutgoingAmountBetween(from, to));
+    }
+
+    /**
+     * Number of instructions, totals and filter of the ids of an archived settlement date, kept in memory and at the
+     * head of its segment
+     */
+    private static final class ArchivedTotals {
+
+        private final LocalDate settlementDate;
+        private final long size;
+        private final BigDecimal incomingAmount;
+        private final BigDecimal outgoingAmount;
+        private final BloomFilter<CharSequence> ids;
+
+        private ArchivedTotals(LocalDate settlementDate, long size, BigDecimal incomingAmount, BigDecimal outgoingAmount,
+                               BloomFilter<CharSequence> ids) {
+            this.settlementDate = settlementDate;
+            this.size = size;
+            this.incomingAmount = incomingAmount;
+            this.outgoingAmount = outgoingAmount;
+            this.ids = ids;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(settlementDate.toEpochDay());
+            out.writeLong(size);
+            InstructionCodec.writeDecimal(incomingAmount, out);
+            InstructionCodec.writeDecimal(outgoingAmount, out);
+            ids.writeTo(out);
+        }
+
+        private static ArchivedTotals read(DataInputStream in) throws IOException {
+            return new ArchivedTotals(LocalDate.ofEpochDay(in.readLong()), in.readLong(),
+                    InstructionCodec.readDecimal(in), InstructionCodec.readDecimal(in),
+                    BloomFilter.readFrom(in, Funnels.stringFunnel(Charsets.UTF_8)));
+        }
+    }
+}
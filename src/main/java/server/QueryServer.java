@@ -0,0 +1,349 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import domain.Instruction;
+import output.ProcessedInstructions;
+import services.ReportCache;
+import services.ReportService;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embedded HTTP endpoint answering JSON queries against a live book:
+ * <pre>
+ * GET /rankings/{incoming|outgoing}?offset=0&amp;limit=100         instructions ordered by amount in USD
+ * GET /dates/{yyyy-MM-dd}/{incoming|outgoing}?offset=0&amp;limit=100 instructions settled on the date
+ * GET /totals/{incoming|outgoing}?from=yyyy-MM-dd&amp;to=yyyy-MM-dd  amount in USD per settlement date
+ * </pre>
+ * Pages of up to {@link #CACHED_ROWS} instructions are served from a {@link ReportCache}, larger ones, of up to
+ * {@link #MAX_STREAMED_ROWS} instructions, and totals are streamed in chunks while they are written.
+ * <p>
+ * Requests run on the given executor, those it rejects are answered with 503 right away. They copy what they answer
+ * under the read lock of {@link #getLock()} and write it to the client once the lock is released: whoever changes the
+ * book while the server runs should hold its write lock.
+ */
+public class QueryServer implements AutoCloseable {
+
+    public static final int CACHED_ROWS = 1_000;
+    public static final int MAX_STREAMED_ROWS = 100_000;
+    public static final long DEFAULT_CACHED_CHARACTERS = 16 * 1024 * 1024;
+
+    private static final Logger LOG = Logger.getLogger(QueryServer.class.getName());
+
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String JSON = "application/json; charset=utf-8";
+
+    private final ProcessedInstructions processedInstructions;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReportCache reportCache;
+    private final HttpServer server;
+    private final Executor executor;
+
+    private QueryServer(ProcessedInstructions processedInstructions, HttpServer server, Executor executor, long cachedCharacters) {
+        this.processedInstructions = processedInstructions;
+        this.reportCache = new ReportCache(processedInstructions, ReportService.Format.JSON, cachedCharacters);
+        this.server = server;
+        this.executor = executor;
+        //Requests are handed to the executor by the thread accepting connections, so a rejection can still be answered
+        server.createContext("/", this::dispatch);
+    }
+
+    /**
+     * @param address  address to listen on, port 0 for any free port
+     * @param executor executor running the requests, left running on {@link #close()}. A bounded pool such as
+     *                 {@link #boundedExecutor(int, int)}, or a thread per request executor on runtimes with virtual threads
+     * @return server accepting requests
+     */
+    public static QueryServer start(ProcessedInstructions processedInstructions, InetSocketAddress address, Executor executor) throws IOException {
+        return start(processedInstructions, address, executor, DEFAULT_CACHED_CHARACTERS);
+    }
+
+    /**
+     * @param cachedCharacters characters of rendered pages kept at most, see {@link ReportCache}
+     * @return server accepting requests
+     */
+    public static QueryServer start(ProcessedInstructions processedInstructions, InetSocketAddress address, Executor executor, long cachedCharacters) throws IOException {
+        Objects.requireNonNull(processedInstructions, "Please provide valid processed instructions");
+        Objects.requireNonNull(executor, "Please provide a valid executor");
+        QueryServer queryServer = new QueryServer(processedInstructions, HttpServer.create(address, 0), executor, cachedCharacters);
+        queryServer.server.start();
+        return queryServer;
+    }
+
+    /**
+     * @param threads       threads answering requests
+     * @param queueCapacity requests waiting for a thread, once full new requests are rejected with 503
+     */
+    public static ThreadPoolExecutor boundedExecutor(int threads, int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "query-server-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return lock whose write lock should be held while the book is changed
+     */
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * Stops accepting requests and waits for the ones in progress
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        reportCache.close();
+    }
+
+    private void dispatch(HttpExchange exchange) {
+        try {
+            executor.execute(() -> handle(exchange));
+        } catch (RejectedExecutionException e) {
+            fail(exchange, 503, "Too many queries in progress, please retry later");
+            exchange.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange) {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+            URI uri = exchange.getRequestURI();
+            String[] path = uri.getPath().split("/");
+            Map<String, String> parameters = parameters(uri.getRawQuery());
+            if (path.length == 3 && path[1].equals("rankings")) {
+                sendRanking(exchange, isIncoming(path[2]), null, parameters);
+            } else if (path.length == 4 && path[1].equals("dates")) {
+                sendRanking(exchange, isIncoming(path[3]), LocalDate.parse(path[2]), parameters);
+            } else if (path.length == 3 && path[1].equals("totals")) {
+                sendTotals(exchange, isIncoming(path[2]), parameters);
+            } else {
+                sendError(exchange, 404, "Unknown query " + uri.getPath());
+            }
+        } catch (IllegalArgumentException | DateTimeException e) {
+            fail(exchange, 400, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Query " + exchange.getRequestURI() + " failed", e);
+            fail(exchange, 500, "Query failed");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendRanking(HttpExchange exchange, boolean incoming, LocalDate date, Map<String, String> parameters) throws IOException {
+        int offset = intParameter(parameters, "offset", 0);
+        int limit = intParameter(parameters, "limit", DEFAULT_LIMIT);
+        if (limit > MAX_STREAMED_ROWS) {
+            throw new IllegalArgumentException("limit should be at most " + MAX_STREAMED_ROWS);
+        }
+        String report = null;
+        List<Instruction> page = null;
+        lock.readLock().lock();
+        try {
+            if (limit > CACHED_ROWS) {
+                Iterable<Instruction> instructions;
+                if (date == null) {
+                    instructions = incoming ? processedInstructions.getSortedIncomingInstructions() : processedInstructions.getSortedOutgoingInstructions();
+                } else {
+                    instructions = incoming ? processedInstructions.getIncomingInstructionsOn(date) : processedInstructions.getOutgoingInstructionsOn(date);
+                }
+                page = page(instructions, offset, limit);
+            } else if (date == null) {
+                report = incoming ? reportCache.getIncomingRanking(offset, limit) : reportCache.getOutgoingRanking(offset, limit);
+            } else {
+                report = incoming ? reportCache.getIncomingByDate(date, offset, limit) : reportCache.getOutgoingByDate(date, offset, limit);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        if (report != null) {
+            byte[] body = report.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            return;
+        }
+        //Length 0 sends the body in chunks, written as the report is rendered
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            ReportService reportService = new ReportService(out, ReportService.Format.JSON);
+            reportService.writeReport(ReportService.title(incoming, date), page, 0, ReportService.UNLIMITED);
+            reportService.flush();
+        }
+    }
+
+    /**
+     * Instructions stored by a book only have their sequence changed, the page keeps them rather than copies
+     *
+     * @return instructions of the page, at most limit
+     */
+    private static List<Instruction> page(Iterable<Instruction> instructions, int offset, int limit) {
+        List<Instruction> page = new ArrayList<>(CACHED_ROWS);
+        Iterator<Instruction> iterator = instructions.iterator();
+        for (int skipped = 0; skipped < offset && iterator.hasNext(); skipped++) {
+            iterator.next();
+        }
+        while (page.size() < limit && iterator.hasNext()) {
+            page.add(iterator.next());
+        }
+        return page;
+    }
+
+    private void sendTotals(HttpExchange exchange, boolean incoming, Map<String, String> parameters) throws IOException {
+        LocalDate from = parameters.containsKey("from") ? LocalDate.parse(parameters.get("from")) : null;
+        LocalDate to = parameters.containsKey("to") ? LocalDate.parse(parameters.get("to")) : null;
+        SortedMap<LocalDate, BigDecimal> amountPerDate;
+        lock.readLock().lock();
+        try {
+            amountPerDate = incoming
+                    ? processedInstructions.getUsdIncomingAmountPerDate()
+                    : processedInstructions.getUsdOutgoingAmountPerDate();
+            if (from != null) {
+                amountPerDate = amountPerDate.tailMap(from);
+            }
+            if (to != null) {
+                amountPerDate = amountPerDate.headMap(to.plusDays(1));
+            }
+            amountPerDate = new TreeMap<>(amountPerDate);
+        } finally {
+            lock.readLock().unlock();
+        }
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            writer.write("{\"totals\":[");
+            boolean first = true;
+            for (Map.Entry<LocalDate, BigDecimal> entry : amountPerDate.entrySet()) {
+                writer.write(first ? "{\"settlementDate\":\"" : ",{\"settlementDate\":\"");
+                writer.write(entry.getKey().toString());
+                writer.write("\",\"amountInUsd\":");
+                writer.write(entry.getValue().setScale(2, RoundingMode.HALF_UP).toPlainString());
+                writer.write('}');
+                first = false;
+            }
+            writer.write("]}\n");
+        }
+    }
+
+    /**
+     * Answers with the error unless the headers were already sent, the exchange is then only closed
+     */
+    private static void fail(HttpExchange exchange, int status, String message) {
+        if (exchange.getResponseCode() != -1) {
+            return;
+        }
+        try {
+            sendError(exchange, status, message);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Error " + status + " could not be sent", e);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder body = new StringBuilder("{\"error\":\"");
+        String text = String.valueOf(message);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                body.append('\\').append(c);
+            } else if (c >= 0x20) {
+                body.append(c);
+            }
+        }
+        byte[] bytes = body.append("\"}\n").toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static boolean isIncoming(String direction) {
+        switch (direction) {
+            case "incoming":
+                return true;
+            case "outgoing":
+                return false;
+            default:
+                throw new IllegalArgumentException("Expected incoming or outgoing but found " + direction);
+        }
+    }
+
+    private static Map<String, String> parameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name, int defaultValue) {
+        String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " should be a number but found " + value);
+        }
+        if (parsed < 0) {
+            throw new IllegalArgumentException(name + " should not be negative");
+        }
+        return parsed;
+    }
+}
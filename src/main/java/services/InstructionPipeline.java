@@ -0,0 +1,262 @@
+package services;
+
+import domain.Instruction;
+import output.InstructionBook;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ingestion split in three stages, each on its own thread: validation, settlement date adjustment and indexing into
+ * the result. Instructions go through a pre-allocated ring of slots. Every stage owns a sequence, only moves up to
+ * the sequence of the stage before it and hands over everything it has processed at once by publishing its own, so
+ * nothing is locked or allocated per instruction.
+ * <p>
+ * Instructions are published by a single thread and every stage keeps their order, so the result is the same as with
+ * {@link InstructionService#addInstructions(Iterator, InstructionBook)}. The publisher is held back once the ring is
+ * full, and the result should only be read after {@link #flush()}.
+ */
+public class InstructionPipeline<B extends InstructionBook> implements AutoCloseable {
+
+    private static final int MAX_SPINS = 100;
+    private static final int MAX_YIELDS = 1000;
+    //Longest park of an idle stage, in case the publication that should have woken it up came before it parked
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final InstructionService instructionService;
+    private final B processedInstructions;
+    private final InstructionService.IngestionSummary summary;
+
+    //Slots reused every capacity instructions, the validation result travels with the instruction
+    private final Instruction[] instructions;
+    private final boolean[] valid;
+    private final int mask;
+
+    //Last sequence published, validated, adjusted and indexed. Each one only moves past the one before it
+    private final Sequence published = new Sequence();
+    private final Sequence validated = new Sequence();
+    private final Sequence adjusted = new Sequence();
+    private final Sequence indexed = new Sequence();
+
+    private final Thread[] stages;
+    private volatile boolean running = true;
+    private volatile Throwable failure;
+
+    //Publisher side only: last sequence given and start of the ingestion not flushed yet
+    private long nextSequence;
+    private long flushStart;
+
+    InstructionPipeline(InstructionService instructionService, B processedInstructions, int bufferSize) {
+        if (bufferSize <= 0 || bufferSize > 1 << 30) {
+            throw new IllegalArgumentException("Buffer size should be positive and at most 2^30");
+        }
+        this.instructionService = instructionService;
+        this.processedInstructions = Objects.requireNonNull(processedInstructions, "Please provide a valid result");
+        this.summary = instructionService.new IngestionSummary();
+        int capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+        capacity = Math.max(capacity, 1);
+        this.instructions = new Instruction[capacity];
+        this.valid = new boolean[capacity];
+        this.mask = capacity - 1;
+
+        stages = new Thread[]{
+                new Thread(() -> runStage(published, validated, this::validate), "instruction-pipeline-validate"),
+                new Thread(() -> runStage(validated, adjusted, this::adjust), "instruction-pipeline-adjust"),
+                new Thread(() -> runStage(adjusted, indexed, this::index), "instruction-pipeline-index")};
+        for (Thread stage : stages) {
+            stage.setDaemon(true);
+            stage.start();
+        }
+    }
+
+    /**
+     * Hands the instruction to the first stage, waiting for a free slot if the ring is full. Not thread-safe, every
+     * instruction should be published by the same thread.
+     *
+     * @param instruction incoming or outgoing instruction
+     */
+    public void publish(Instruction instruction) {
+        Objects.requireNonNull(instruction, "Please provide a valid instruction");
+        checkRunning();
+        if (flushStart == 0) {
+            flushStart = System.nanoTime();
+        }
+        long sequence = nextSequence + 1;
+        long wrapPoint = sequence - instructions.length;
+        for (int idle = 0; indexed.get() < wrapPoint; idle++) {
+            checkRunning();
+            idle(idle, indexed, wrapPoint);
+        }
+        instructions[(int) sequence & mask] = instruction;
+        nextSequence = sequence;
+        published.publish(sequence);
+    }
+
+    /**
+     * @param instructions incoming and outgoing instructions, published in order
+     */
+    public void publish(Iterator<Instruction> instructions) {
+        Objects.requireNonNull(instructions, "Please provide a valid list of instructions");
+        while (instructions.hasNext()) {
+            publish(instructions.next());
+        }
+    }
+
+    /**
+     * Waits for every published instruction to be indexed, then records the ingestion latency and logs the summary
+     *
+     * @return the result, holding every instruction published so far
+     * @throws IllegalStateException if a stage failed or the pipeline is closed
+     */
+    public B flush() {
+        for (int idle = 0; indexed.get() < nextSequence; idle++) {
+            checkRunning();
+            idle(idle, indexed, nextSequence);
+        }
+        checkRunning();
+        if (flushStart != 0) {
+            instructionService.getMetrics().getIngestionLatency().record(System.nanoTime() - flushStart);
+            flushStart = 0;
+        }
+        summary.log();
+        summary.reset();
+        return processedInstructions;
+    }
+
+    /**
+     * Indexes every instruction published so far and stops the stages
+     */
+    @Override
+    public void close() {
+        try {
+            if (running) {
+                flush();
+            }
+        } finally {
+            running = false;
+            for (Thread stage : stages) {
+                LockSupport.unpark(stage);
+            }
+            for (Thread stage : stages) {
+                try {
+                    stage.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void validate(int slot) {
+        valid[slot] = instructionService.validate(instructions[slot], summary);
+    }
+
+    private void adjust(int slot) {
+        if (valid[slot]) {
+            instructionService.adjust(instructions[slot], summary);
+        }
+    }
+
+    private void index(int slot) {
+        Instruction instruction = instructions[slot];
+        //Cleared so the ring does not keep indexed instructions alive
+        instructions[slot] = null;
+        if (valid[slot]) {
+            instructionService.save(instruction, processedInstructions, summary);
+        }
+    }
+
+    /**
+     * Processes every slot the previous stage has released, then releases them all to the next stage.
+     * A failing instruction stops the pipeline, the slots are still released so no stage waits forever.
+     */
+    private void runStage(Sequence previous, Sequence own, SlotHandler handler) {
+        long next = own.get() + 1;
+        int idle = 0;
+        while (running) {
+            long available = previous.get();
+            if (available < next) {
+                idle(idle, previous, next);
+                idle = Math.min(idle + 1, MAX_YIELDS);
+                continue;
+            }
+            idle = 0;
+            for (long sequence = next; sequence <= available; sequence++) {
+                try {
+                    if (failure == null) {
+                        handler.process((int) sequence & mask);
+                    }
+                } catch (RuntimeException | Error e) {
+                    failure = e;
+                }
+            }
+            own.publish(available);
+            next = available + 1;
+        }
+    }
+
+    private void checkRunning() {
+        if (failure != null) {
+            throw new IllegalStateException("The instruction pipeline failed", failure);
+        }
+        if (!running) {
+            throw new IllegalStateException("The instruction pipeline is closed");
+        }
+    }
+
+    /**
+     * Spins first for the lowest latency, then gives the core away, then parks until the awaited sequence is published
+     */
+    private static void idle(int idle, Sequence awaited, long sequence) {
+        if (idle < MAX_SPINS) {
+            Thread.onSpinWait();
+        } else if (idle < MAX_YIELDS) {
+            Thread.yield();
+        } else {
+            awaited.await(sequence);
+        }
+    }
+
+    private interface SlotHandler {
+        void process(int slot);
+    }
+
+    /**
+     * Sequence padded so the sequences of the stages do not share cache lines, with the one thread waiting for it
+     */
+    @SuppressWarnings("unused")
+    private static final class Sequence extends AtomicLong {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient volatile Thread waiter;
+        private long p1, p2, p3, p4, p5, p6, p7;
+
+        /**
+         * Sets the sequence and wakes up the thread waiting for it, if it has parked
+         */
+        private void publish(long sequence) {
+            lazySet(sequence);
+            Thread parked = waiter;
+            if (parked != null) {
+                LockSupport.unpark(parked);
+            }
+        }
+
+        /**
+         * Parks until the sequence reaches the given one, a wake-up missed while the waiter registers only costs the
+         * longest park
+         */
+        private void await(long sequence) {
+            waiter = Thread.currentThread();
+            if (get() < sequence) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+            waiter = null;
+        }
+    }
+}
@@ -1,27 +1,71 @@
 package services;
 
-import com.google.common.collect.TreeMultiset;
 import domain.Instruction;
+import domain.InstructionBatch;
+import domain.SymbolDictionary;
 import domain.Type;
+import metrics.InstructionMetrics;
+import output.InstructionBook;
+import output.ProcessedBatch;
 import output.ProcessedInstructions;
 import utils.InstructionValidator;
+import utils.SettlementCalendar;
+import utils.SettlementCalendars;
 
 import java.math.BigDecimal;
-import java.time.DayOfWeek;
 import java.time.LocalDate;
-import java.time.temporal.TemporalAdjusters;
 import java.util.Currency;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
-import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 public class InstructionService {
 
     private final Logger LOG = Logger.getLogger(InstructionService.class.getName());
 
+    private static final String INVALID_VALUES = "Both conversion factor and price per unit should have valid values";
+    private static final String NEGATIVE_AMOUNT = "Conversion factor, price per unit and units should not be negative";
+    private static final String NOT_STORABLE = "Their amounts do not fit in the book they were added to";
+
+    //Calendars of services created without their own, never registered to after creation
+    private static final SettlementCalendars WEEKENDS_ONLY = SettlementCalendars.weekendsOnly();
+
     private final InstructionValidator instructionValidator = new InstructionValidator();
 
+    private final SettlementCalendars settlementCalendars;
+
+    private final InstructionMetrics metrics;
+
+    public InstructionService() {
+        this(WEEKENDS_ONLY);
+    }
+
+    /**
+     * @param settlementCalendars working days per currency used to adapt settlement dates
+     */
+    public InstructionService(SettlementCalendars settlementCalendars) {
+        this(settlementCalendars, new InstructionMetrics());
+    }
+
+    /**
+     * @param settlementCalendars working days per currency used to adapt settlement dates
+     * @param metrics             counters and latencies the service records to, possibly shared with other services
+     */
+    public InstructionService(SettlementCalendars settlementCalendars, InstructionMetrics metrics) {
+        this.settlementCalendars = Objects.requireNonNull(settlementCalendars, "Please provide valid settlement calendars");
+        this.metrics = Objects.requireNonNull(metrics, "Please provide valid metrics");
+    }
+
+    public InstructionMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * @param instructions list of incoming and outgoing instructions
      * @return object with instructions ordered by amount in USD and classified by settlement date
@@ -29,97 +73,374 @@ public class InstructionService {
     public ProcessedInstructions addInstructions(List<Instruction> instructions) {
         Objects.requireNonNull(instructions, "Please provide a valid list of instructions");
         ProcessedInstructions processedInstructions = new ProcessedInstructions();
-        for (Instruction instruction : instructions) {
-            if (instructionValidator.isValid(instruction)) {
-                addInstruction(instruction, processedInstructions);
-            } else {
-                LOG.warning("Instruction " + instruction + " could not be added. Both conversion factor and price per unit should have valid values");
-            }
-        }
+        addInstructions(instructions.iterator(), processedInstructions);
+        return processedInstructions;
+    }
+
+    /**
+     * Same result as {@link #addInstructions(List)}, the list is split across the common fork-join pool
+     *
+     * @param instructions list of incoming and outgoing instructions
+     * @return object with instructions ordered by amount in USD and classified by settlement date
+     */
+    public ProcessedInstructions addInstructionsInParallel(List<Instruction> instructions) {
+        return addInstructionsInParallel(instructions, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same result as {@link #addInstructions(List)}: every worker fills its own partial result and
+     * the partial results are merged in list order
+     *
+     * @param instructions list of incoming and outgoing instructions
+     * @param pool         pool running the workers
+     * @return object with instructions ordered by amount in USD and classified by settlement date
+     */
+    public ProcessedInstructions addInstructionsInParallel(List<Instruction> instructions, ForkJoinPool pool) {
+        Objects.requireNonNull(instructions, "Please provide a valid list of instructions");
+        long start = System.nanoTime();
+        IngestionSummary summary = new IngestionSummary();
+        ProcessedInstructions processedInstructions = pool.invoke(new AddInstructionsTask(instructions, summary));
+        metrics.getIngestionLatency().record(System.nanoTime() - start);
+        summary.log();
         return processedInstructions;
     }
 
-    private void addInstruction(Instruction instruction, ProcessedInstructions processedInstructions) {
-        adaptSettlementDates(instruction);
-        if (instruction.getType() == Type.SELL) {
-            saveIncomingInstruction(instruction, processedInstructions);
-        } else {
-            saveOutgoingInstruction(instruction, processedInstructions);
+    /**
+     * Folds the instructions into an existing result, pulling them one at a time
+     *
+     * @param instructions          incoming and outgoing instructions, consumed lazily
+     * @param processedInstructions long-lived result the instructions are added to
+     */
+    public void addInstructions(Iterator<Instruction> instructions, InstructionBook processedInstructions) {
+        Objects.requireNonNull(instructions, "Please provide a valid list of instructions");
+        long start = System.nanoTime();
+        IngestionSummary summary = new IngestionSummary();
+        addInstructions(instructions, processedInstructions, summary);
+        metrics.getIngestionLatency().record(System.nanoTime() - start);
+        summary.log();
+    }
+
+    private void addInstructions(Iterator<Instruction> instructions, InstructionBook processedInstructions, IngestionSummary summary) {
+        while (instructions.hasNext()) {
+            addInstruction(instructions.next(), processedInstructions, summary);
         }
     }
 
-    private void saveIncomingInstruction(Instruction instruction, ProcessedInstructions processedInstructions) {
-        saveInstruction(instruction, processedInstructions.getSortedIncomingInstructions(),
-                processedInstructions.getUsdIncomingAmountPerDate());
+    /**
+     * @param instructions          sequential stream of incoming and outgoing instructions, consumed lazily
+     * @param processedInstructions long-lived result the instructions are added to
+     */
+    public void addInstructions(Stream<Instruction> instructions, InstructionBook processedInstructions) {
+        Objects.requireNonNull(instructions, "Please provide a valid list of instructions");
+        addInstructions(instructions.sequential().iterator(), processedInstructions);
     }
 
-    private void saveOutgoingInstruction(Instruction instruction, ProcessedInstructions processedInstructions) {
-        saveInstruction(instruction, processedInstructions.getSortedOutgoingInstructions(),
-                processedInstructions.getUsdOutgoingAmountPerDate());
+    /**
+     * @param processedInstructions long-lived result the published instructions are added to
+     * @param batchSize             maximum number of instructions requested from the publisher at a time
+     * @return subscriber to be attached to a publisher of instructions
+     */
+    public <B extends InstructionBook> InstructionSubscriber<B> subscriber(B processedInstructions, int batchSize) {
+        return new InstructionSubscriber<>(this, processedInstructions, batchSize);
     }
 
     /**
-     * @param instruction      instruction to be saved
-     * @param instructions     sorted set by amount in USD
-     * @param amountPerDateMap map which contains accumulated amount per date
+     * @param processedInstructions long-lived result the published instructions are added to, only touched by the
+     *                              last stage of the pipeline
+     * @param bufferSize            number of instructions in flight between the stages, rounded up to a power of two
+     * @return started pipeline, to be closed once every instruction has been published
      */
-    private void saveInstruction(Instruction instruction, TreeMultiset<Instruction> instructions,
-                                 SortedMap<LocalDate, BigDecimal> amountPerDateMap) {
-        instructions.add(instruction);
-        accumulateAmountToDate(instruction, amountPerDateMap);
+    public <B extends InstructionBook> InstructionPipeline<B> pipeline(B processedInstructions, int bufferSize) {
+        return new InstructionPipeline<>(this, processedInstructions, bufferSize);
     }
 
     /**
-     * @param instruction      instruction with settlementDate
-     * @param amountPerDateMap map which stores the total amount in USD per date
+     * Processes a columnar batch in place: settlement dates are adapted, the amount in USD column is filled
+     * and rows are ranked by sorting their indexes
+     *
+     * @param batch incoming and outgoing instructions
+     * @return rankings and totals over the rows of the batch, rows that are not valid or whose amount in USD
+     * overflows are rejected
      */
-    private void accumulateAmountToDate(Instruction instruction, SortedMap<LocalDate, BigDecimal> amountPerDateMap) {
-        LocalDate settlementDate = instruction.getSettlementDate();
-        BigDecimal amountToDate = amountPerDateMap.getOrDefault(settlementDate, BigDecimal.ZERO);
-        amountPerDateMap.put(settlementDate, amountToDate.add(InstructionService.getAmountInUSD(instruction)));
+    public ProcessedBatch processBatch(InstructionBatch batch) {
+        Objects.requireNonNull(batch, "Please provide a valid batch of instructions");
+        long start = System.nanoTime();
+        SettlementCalendar[] calendarPerCurrency = new SettlementCalendar[batch.currencyCount()];
+        for (int currencyId = 0; currencyId < calendarPerCurrency.length; currencyId++) {
+            calendarPerCurrency[currencyId] = settlementCalendars.forCurrencyId(currencyId);
+        }
+        //Counted per currency id and recorded once per batch
+        int[] acceptedPerCurrency = new int[calendarPerCurrency.length];
+        int[] rejectedPerCurrency = new int[calendarPerCurrency.length];
+        int[] adjustedPerCurrency = new int[calendarPerCurrency.length];
+        int[] acceptedRows = new int[batch.size()];
+        int acceptedCount = 0;
+        //Rejections per reason, rows without a known currency are recorded apart
+        int invalidCount = 0;
+        int negativeCount = 0;
+        int tooLargeCount = 0;
+        int rejectedWithoutCurrency = 0;
+        for (int row = 0; row < batch.size(); row++) {
+            int currencyId = batch.getCurrencyId(row);
+            if (!instructionValidator.isValid(batch, row)) {
+                if (instructionValidator.hasNegativeAmount(batch, row)) {
+                    negativeCount++;
+                } else {
+                    invalidCount++;
+                }
+                if (currencyId == SymbolDictionary.UNKNOWN) {
+                    rejectedWithoutCurrency++;
+                } else {
+                    rejectedPerCurrency[currencyId]++;
+                }
+                continue;
+            }
+            try {
+                batch.setAmountInUsd(row, batch.computeAmountInUsd(row));
+            } catch (ArithmeticException e) {
+                tooLargeCount++;
+                rejectedPerCurrency[currencyId]++;
+                continue;
+            }
+            int settlementDay = batch.getSettlementEpochDay(row);
+            int workingDay = Math.toIntExact(calendarPerCurrency[currencyId].nextWorkingEpochDay(settlementDay));
+            if (workingDay != settlementDay) {
+                batch.setSettlementEpochDay(row, workingDay);
+                adjustedPerCurrency[currencyId]++;
+            }
+            acceptedPerCurrency[currencyId]++;
+            acceptedRows[acceptedCount++] = row;
+        }
+        for (int currencyId = 0; currencyId < calendarPerCurrency.length; currencyId++) {
+            Currency currency = batch.getCurrencyById(currencyId);
+            metrics.recordAccepted(currency, acceptedPerCurrency[currencyId]);
+            metrics.recordRejected(currency, rejectedPerCurrency[currencyId]);
+            metrics.recordAdjusted(currency, adjustedPerCurrency[currencyId]);
+        }
+        metrics.recordRejected(null, rejectedWithoutCurrency);
+        if (invalidCount > 0) {
+            LOG.warning(invalidCount + " instructions of the batch could not be added. Entity and currency should have valid values");
+        }
+        if (negativeCount > 0) {
+            LOG.warning(negativeCount + " instructions of the batch could not be added. " + NEGATIVE_AMOUNT);
+        }
+        if (tooLargeCount > 0) {
+            LOG.warning(tooLargeCount + " instructions of the batch could not be added. Their amount in USD is too large");
+        }
+        ProcessedBatch processedBatch = new ProcessedBatch(batch, acceptedRows, acceptedCount);
+        metrics.getIngestionLatency().record(System.nanoTime() - start);
+        return processedBatch;
     }
 
     /**
-     * @param instruction Change the settlement date to the next working day if necessary
+     * @param instruction           incoming or outgoing instruction
+     * @param processedInstructions result the instruction is added to
+     * @return false if the instruction was not valid or was already in the result, and has been discarded
+     */
+    public boolean addInstruction(Instruction instruction, InstructionBook processedInstructions) {
+        return addInstruction(instruction, processedInstructions, null);
+    }
+
+    /**
+     * @param summary counts logged once the whole ingestion is done, null when the caller adds a single instruction
      */
-    private void adaptSettlementDates(Instruction instruction) {
-        if (isInDirhams(instruction) || isInRiyals(instruction)) {
-            calculateSettlementDateForMiddleEastCurrency(instruction);
-        } else {
-            calculateSettlementDateForWesternCurrency(instruction);
+    private boolean addInstruction(Instruction instruction, InstructionBook processedInstructions, IngestionSummary summary) {
+        if (!validate(instruction, summary)) {
+            return false;
         }
+        adjust(instruction, summary);
+        return save(instruction, processedInstructions, summary);
     }
 
-    private void calculateSettlementDateForWesternCurrency(Instruction instruction) {
-        calculateSettlementDate(instruction, DayOfWeek.MONDAY, DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+    /**
+     * Validates and adapts the corrected instruction like a new one, then replaces the one with the same id
+     *
+     * @param instruction           corrected instruction, with the id of the one it replaces
+     * @param processedInstructions result holding the instruction to replace
+     * @return false if the instruction was not valid, cannot be held by the result or no instruction with its id is in
+     * the result
+     */
+    public boolean amendInstruction(Instruction instruction, InstructionBook processedInstructions) {
+        Objects.requireNonNull(instruction, "Please provide a valid instruction");
+        if (instruction.getId() == null) {
+            throw new IllegalArgumentException("Only instructions with an id can be amended");
+        }
+        if (!validate(instruction, null)) {
+            return false;
+        }
+        adjust(instruction, null);
+        if (!processedInstructions.canStore(instruction)) {
+            metrics.recordRejected(instruction.getCurrency());
+            return false;
+        }
+        return processedInstructions.amendInstruction(instruction);
     }
 
-    private void calculateSettlementDateForMiddleEastCurrency(Instruction instruction) {
-        calculateSettlementDate(instruction, DayOfWeek.SUNDAY, DayOfWeek.FRIDAY, DayOfWeek.SATURDAY);
+    /**
+     * @param id                    id of the instruction to cancel
+     * @param processedInstructions result holding the instruction
+     * @return false if no instruction with this id is in the result
+     */
+    public boolean cancelInstruction(String id, InstructionBook processedInstructions) {
+        Objects.requireNonNull(id, "Please provide a valid id");
+        return processedInstructions.cancelInstruction(id);
     }
 
-    private void calculateSettlementDate(Instruction instruction, DayOfWeek firstWeekDay, DayOfWeek firstRestDay, DayOfWeek secondRestDay) {
-        LocalDate settlementDate = instruction.getSettlementDate();
-        if (settlementDate.getDayOfWeek() == firstRestDay || settlementDate.getDayOfWeek() == secondRestDay) {
-            LocalDate nextWorkingDate = settlementDate.with(TemporalAdjusters.next(firstWeekDay));
-            instruction.setSettlementDate(nextWorkingDate);
-            LOG.info("The settlement date was changed because the instruction date falls on weekend");
+    /**
+     * @return false if the instruction is not valid, it is then counted as rejected
+     */
+    boolean validate(Instruction instruction, IngestionSummary summary) {
+        if (instructionValidator.isValid(instruction)) {
+            return true;
+        }
+        metrics.recordRejected(instruction.getCurrency());
+        boolean negative = instructionValidator.hasNegativeAmount(instruction);
+        if (summary != null) {
+            (negative ? summary.negative : summary.rejected).increment();
+        }
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Instruction " + instruction + " could not be added. " + (negative ? NEGATIVE_AMOUNT : INVALID_VALUES));
+        }
+        return false;
+    }
+
+    void adjust(Instruction instruction, IngestionSummary summary) {
+        if (adaptSettlementDates(instruction) && summary != null) {
+            summary.adjusted.increment();
+        }
+    }
+
+    /**
+     * @return false if the result cannot hold the instruction, it is then counted as rejected, or if an instruction with
+     * the same id is already in the result, the replay is then counted and ignored
+     */
+    boolean save(Instruction instruction, InstructionBook processedInstructions, IngestionSummary summary) {
+        if (!processedInstructions.canStore(instruction)) {
+            metrics.recordRejected(instruction.getCurrency());
+            if (summary != null) {
+                summary.notStorable.increment();
+            }
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Instruction " + instruction + " could not be added. " + NOT_STORABLE);
+            }
+            return false;
+        }
+        boolean saved = instruction.getType() == Type.SELL
+                ? saveIncomingInstruction(instruction, processedInstructions)
+                : saveOutgoingInstruction(instruction, processedInstructions);
+        if (!saved) {
+            if (summary != null) {
+                summary.replayed.increment();
+            }
+            return false;
         }
+        metrics.recordAccepted(instruction.getCurrency());
+        return true;
+    }
+
+    private boolean saveIncomingInstruction(Instruction instruction, InstructionBook processedInstructions) {
+        return processedInstructions.addNewInstruction(instruction, true);
+    }
+
+    private boolean saveOutgoingInstruction(Instruction instruction, InstructionBook processedInstructions) {
+        return processedInstructions.addNewInstruction(instruction, false);
     }
 
-    private boolean isInRiyals(Instruction instruction) {
-        return matchesCurrency(instruction, "SAR");
+    /**
+     * @param instruction Change the settlement date to the next working day if necessary
+     * @return true if the settlement date was changed
+     */
+    private boolean adaptSettlementDates(Instruction instruction) {
+        LocalDate settlementDate = instruction.getSettlementDate();
+        LocalDate nextWorkingDate = settlementCalendars.forCurrencyId(instruction.getCurrencyId()).nextWorkingDay(settlementDate);
+        if (nextWorkingDate.equals(settlementDate)) {
+            return false;
+        }
+        instruction.setSettlementDate(nextWorkingDate);
+        metrics.recordAdjusted(instruction.getCurrency());
+        return true;
     }
 
-    private boolean isInDirhams(Instruction instruction) {
-        return matchesCurrency(instruction, "AED");
+    /**
+     * Rejected instructions, changed settlement dates and ignored replays of one ingestion, logged once instead of
+     * per instruction
+     */
+    class IngestionSummary {
+
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder negative = new LongAdder();
+        private final LongAdder notStorable = new LongAdder();
+        private final LongAdder adjusted = new LongAdder();
+        private final LongAdder replayed = new LongAdder();
+
+        void reset() {
+            rejected.reset();
+            negative.reset();
+            notStorable.reset();
+            adjusted.reset();
+            replayed.reset();
+        }
+
+        void log() {
+            long rejectedCount = rejected.sum();
+            if (rejectedCount > 0) {
+                LOG.warning(rejectedCount + " instructions could not be added. " + INVALID_VALUES);
+            }
+            long negativeCount = negative.sum();
+            if (negativeCount > 0) {
+                LOG.warning(negativeCount + " instructions could not be added. " + NEGATIVE_AMOUNT);
+            }
+            long notStorableCount = notStorable.sum();
+            if (notStorableCount > 0) {
+                LOG.warning(notStorableCount + " instructions could not be added. " + NOT_STORABLE);
+            }
+            long adjustedCount = adjusted.sum();
+            if (adjustedCount > 0) {
+                LOG.info(adjustedCount + " settlement dates were changed because they fall on a non working day");
+            }
+            long replayedCount = replayed.sum();
+            if (replayedCount > 0) {
+                LOG.info(replayedCount + " instructions were ignored because an instruction with the same id had already been added");
+            }
+        }
     }
 
-    private boolean matchesCurrency(Instruction instruction, String sar) {
-        return instruction.getCurrency().equals(Currency.getInstance(sar));
+    /**
+     * Splits the list in halves until they are small enough to be processed sequentially. The halves are merged back
+     * on one thread each, see {@link ProcessedInstructions#merge(ProcessedInstructions)}: the last merge alone takes
+     * about a seventh of the time it takes to add every instruction sequentially, which bounds the speedup
+     */
+    private class AddInstructionsTask extends RecursiveTask<ProcessedInstructions> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int SEQUENTIAL_THRESHOLD = 4096;
+
+        private final List<Instruction> instructions;
+        private final IngestionSummary summary;
+
+        private AddInstructionsTask(List<Instruction> instructions, IngestionSummary summary) {
+            this.instructions = instructions;
+            this.summary = summary;
+        }
+
+        @Override
+        protected ProcessedInstructions compute() {
+            if (instructions.size() <= SEQUENTIAL_THRESHOLD) {
+                ProcessedInstructions processedInstructions = new ProcessedInstructions();
+                addInstructions(instructions.iterator(), processedInstructions, summary);
+                return processedInstructions;
+            }
+            int middle = instructions.size() / 2;
+            AddInstructionsTask second = new AddInstructionsTask(instructions.subList(middle, instructions.size()), summary);
+            second.fork();
+            ProcessedInstructions processedInstructions = new AddInstructionsTask(instructions.subList(0, middle), summary).compute();
+            processedInstructions.merge(second.join());
+            return processedInstructions;
+        }
     }
 
     public static BigDecimal getAmountInUSD(Instruction instruction) {
-        return instruction.getPricePerUnit().multiply(instruction.getAgreedFx()).multiply(new BigDecimal(instruction.getUnits()));
+        return instruction.getAmountInUsd();
     }
 }
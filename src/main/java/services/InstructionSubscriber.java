@@ -0,0 +1,83 @@
+package services;
+
+import domain.Instruction;
+import output.InstructionBook;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Adds published instructions to a long-lived result, never requesting more than one batch ahead
+ * so a fast producer is held back by the processing rate
+ */
+public class InstructionSubscriber<B extends InstructionBook> implements Flow.Subscriber<Instruction> {
+
+    private final InstructionService instructionService;
+    private final B processedInstructions;
+    private final int batchSize;
+    private final CompletableFuture<B> completion = new CompletableFuture<>();
+
+    private Flow.Subscription subscription;
+    private int pendingInBatch;
+
+    InstructionSubscriber(InstructionService instructionService, B processedInstructions, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size should be positive");
+        }
+        this.instructionService = instructionService;
+        this.processedInstructions = Objects.requireNonNull(processedInstructions, "Please provide a valid result");
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        requestBatch();
+    }
+
+    @Override
+    public void onNext(Instruction instruction) {
+        if (completion.isDone()) {
+            //Instructions already in flight when the subscription was cancelled
+            return;
+        }
+        try {
+            instructionService.addInstruction(instruction, processedInstructions);
+        } catch (RuntimeException e) {
+            subscription.cancel();
+            completion.completeExceptionally(e);
+            return;
+        }
+        if (--pendingInBatch == 0) {
+            requestBatch();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        completion.complete(processedInstructions);
+    }
+
+    /**
+     * @return completed with the result once the publisher completes, or exceptionally if it fails or an instruction
+     * could not be added, the subscription is then cancelled
+     */
+    public CompletableFuture<B> getCompletion() {
+        return completion;
+    }
+
+    private void requestBatch() {
+        pendingInBatch = batchSize;
+        subscription.request(batchSize);
+    }
+}
@@ -0,0 +1,261 @@
+package services;
+
+import output.InstructionBookListener;
+import output.ProcessedInstructions;
+
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Reports of a live book rendered once and served again until the book changes in a way that affects them. Rankings
+ * are cached per page: a change at some rank only drops the pages reaching below it. Reports of a settlement date
+ * carry the version of their date and are rendered again once an instruction of that date changes.
+ * <p>
+ * The least recently used reports are dropped once the rendered reports exceed the given number of characters.
+ * Thread-safe, the book itself should only be changed by one thread at a time and not while reports are read.
+ */
+public class ReportCache implements InstructionBookListener, AutoCloseable {
+
+    private final ProcessedInstructions processedInstructions;
+    private final long maxCharacters;
+
+    private final StringWriter output = new StringWriter();
+    private final ReportService reportService;
+
+    //Rendered reports, least recently used first
+    private final LinkedHashMap<Query, CachedReport> reports = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedCharacters;
+
+    //Cached ranking pages by the rank right after their last instruction, per incoming and outgoing
+    private final NavigableMap<Long, Set<Query>> incomingPagesByEnd = new TreeMap<>();
+    private final NavigableMap<Long, Set<Query>> outgoingPagesByEnd = new TreeMap<>();
+
+    //Version of every settlement date changed since the cache was created
+    private final Map<LocalDate, Long> incomingDateVersions = new HashMap<>();
+    private final Map<LocalDate, Long> outgoingDateVersions = new HashMap<>();
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Starts listening to the book, see {@link #close()}
+     *
+     * @param format        format of the rendered reports
+     * @param maxCharacters characters of rendered reports kept at most
+     */
+    public ReportCache(ProcessedInstructions processedInstructions, ReportService.Format format, long maxCharacters) {
+        if (maxCharacters <= 0) {
+            throw new IllegalArgumentException("Maximum number of characters should be positive");
+        }
+        this.processedInstructions = Objects.requireNonNull(processedInstructions, "Please provide valid processed instructions");
+        this.reportService = new ReportService(output, format);
+        this.maxCharacters = maxCharacters;
+        processedInstructions.addListener(this);
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public synchronized String getIncomingRanking(int offset, int limit) {
+        return get(new Query(true, null, offset, limit));
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public synchronized String getOutgoingRanking(int offset, int limit) {
+        return get(new Query(false, null, offset, limit));
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public synchronized String getIncomingByDate(LocalDate date, int offset, int limit) {
+        return get(new Query(true, Objects.requireNonNull(date, "Please provide a valid date"), offset, limit));
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public synchronized String getOutgoingByDate(LocalDate date, int offset, int limit) {
+        return get(new Query(false, Objects.requireNonNull(date, "Please provide a valid date"), offset, limit));
+    }
+
+    private String get(Query query) {
+        if (query.offset < 0 || query.limit < 0) {
+            throw new IllegalArgumentException("Offset and limit should not be negative");
+        }
+        long version = query.date == null ? 0 : dateVersions(query.incoming).getOrDefault(query.date, 0L);
+        CachedReport cached = reports.get(query);
+        if (cached != null && cached.version == version) {
+            hits++;
+            return cached.text;
+        }
+        misses++;
+        if (cached != null) {
+            evict(query, cached);
+        }
+        String text = render(query);
+        reports.put(query, new CachedReport(text, version));
+        cachedCharacters += text.length();
+        if (query.date == null) {
+            pagesByEnd(query.incoming).computeIfAbsent(query.end(), end -> new HashSet<>()).add(query);
+        }
+        //A report larger than the whole cache is still returned, only not kept
+        for (Iterator<Map.Entry<Query, CachedReport>> eldest = reports.entrySet().iterator(); cachedCharacters > maxCharacters && eldest.hasNext(); ) {
+            Map.Entry<Query, CachedReport> entry = eldest.next();
+            eldest.remove();
+            forget(entry.getKey(), entry.getValue());
+        }
+        return text;
+    }
+
+    private String render(Query query) {
+        output.getBuffer().setLength(0);
+        if (query.date == null && query.incoming) {
+            reportService.writeIncomingRanking(processedInstructions, query.offset, query.limit);
+        } else if (query.date == null) {
+            reportService.writeOutgoingRanking(processedInstructions, query.offset, query.limit);
+        } else if (query.incoming) {
+            reportService.writeIncomingByDate(processedInstructions, query.date, query.offset, query.limit);
+        } else {
+            reportService.writeOutgoingByDate(processedInstructions, query.date, query.offset, query.limit);
+        }
+        reportService.flush();
+        return output.toString();
+    }
+
+    private void evict(Query query, CachedReport cached) {
+        reports.remove(query);
+        forget(query, cached);
+    }
+
+    /**
+     * Keeps the size and the page index in line with a report taken out of the cache
+     */
+    private void forget(Query query, CachedReport cached) {
+        cachedCharacters -= cached.text.length();
+        if (query.date == null) {
+            NavigableMap<Long, Set<Query>> pagesByEnd = pagesByEnd(query.incoming);
+            Set<Query> pages = pagesByEnd.get(query.end());
+            if (pages != null && pages.remove(query) && pages.isEmpty()) {
+                pagesByEnd.remove(query.end());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void rankingChanged(boolean incoming, long fromRank) {
+        NavigableMap<Long, Set<Query>> changedPages = pagesByEnd(incoming).tailMap(fromRank, false);
+        for (Set<Query> pages : changedPages.values()) {
+            for (Query query : pages) {
+                cachedCharacters -= reports.remove(query).text.length();
+            }
+        }
+        changedPages.clear();
+    }
+
+    @Override
+    public synchronized void dateChanged(boolean incoming, LocalDate settlementDate) {
+        dateVersions(incoming).merge(settlementDate, 1L, Long::sum);
+    }
+
+    @Override
+    public synchronized void bookChanged() {
+        reports.clear();
+        incomingPagesByEnd.clear();
+        outgoingPagesByEnd.clear();
+        cachedCharacters = 0;
+    }
+
+    private NavigableMap<Long, Set<Query>> pagesByEnd(boolean incoming) {
+        return incoming ? incomingPagesByEnd : outgoingPagesByEnd;
+    }
+
+    private Map<LocalDate, Long> dateVersions(boolean incoming) {
+        return incoming ? incomingDateVersions : outgoingDateVersions;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Stops listening to the book
+     */
+    @Override
+    public void close() {
+        processedInstructions.removeListener(this);
+    }
+
+    /**
+     * Report requested, a ranking when date is null
+     */
+    private static final class Query {
+
+        private final boolean incoming;
+        private final LocalDate date;
+        private final int offset;
+        private final int limit;
+
+        private Query(boolean incoming, LocalDate date, int offset, int limit) {
+            this.incoming = incoming;
+            this.date = date;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        /**
+         * @return rank right after the last instruction the page can show
+         */
+        private long end() {
+            return (long) offset + limit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Query that = (Query) o;
+            return incoming == that.incoming && offset == that.offset && limit == that.limit && Objects.equals(date, that.date);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(incoming, date, offset, limit);
+        }
+    }
+
+    private static final class CachedReport {
+
+        private final String text;
+        //Version of the settlement date the report was rendered at, 0 for rankings
+        private final long version;
+
+        private CachedReport(String text, long version) {
+            this.text = text;
+            this.version = version;
+        }
+    }
+}
@@ -1,64 +1,609 @@
 package services;
 
-import com.google.common.collect.TreeMultiset;
 import domain.Instruction;
+import metrics.InstructionMetrics;
+import output.InstructionRecord;
+import output.OffHeapProcessedInstructions;
 import output.ProcessedInstructions;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.RoundingMode;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.function.Consumer;
 
+/**
+ * Renders rankings as fixed width text, CSV or JSON through a large buffer. Numbers and dates are written digit by digit,
+ * rows are built in a reused StringBuilder.
+ * <p>
+ * Output is only guaranteed to reach the underlying writer or stream after {@link #flush()}.
+ */
 public class ReportService {
 
-    private static final String ROWS_FORMAT = "%10s%10s%10s%19s%18s%10s%16s%15s\n";
-    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/uuuu");
+    public enum Format {
+        FIXED_WIDTH, CSV, JSON
+    }
+
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String[] HEADERS = {"Entity", "AgreedFx", "Currency",
+            "Instruction Date", "Settlement Date", "Units", "Price per unit", "Amount in USD"};
+    private static final String[] FIELDS = {"entity", "agreedFx", "currency",
+            "instructionDate", "settlementDate", "units", "pricePerUnit", "amountInUsd"};
+    private static final int[] WIDTHS = {10, 10, 10, 19, 18, 10, 16, 15};
+
+    //Amounts are fixed point with 6 decimals and printed with 2
+    private static final long FIXED_TO_CENTS = 10_000L;
+    private static final long FIXED_FACTOR = 1_000_000L;
+
+    private final Writer writer;
+    private final Format format;
+    private final InstructionMetrics metrics;
+    private final StringBuilder row = new StringBuilder(256);
+    //Value being aligned in a fixed width column
+    private final StringBuilder field = new StringBuilder(32);
+
+    private final FieldAppender<Instruction> instructionFields = this::appendField;
+    private final FieldAppender<InstructionRecord> recordFields = this::appendField;
+
+    public ReportService(Writer writer, Format format) {
+        this(writer, format, null);
+    }
+
+    public ReportService(OutputStream outputStream, Format format) {
+        this(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), format);
+    }
+
+    /**
+     * @param metrics the duration of every report is recorded to, null to record nothing
+     */
+    public ReportService(Writer writer, Format format, InstructionMetrics metrics) {
+        this.writer = new BufferedWriter(Objects.requireNonNull(writer, "Please provide a valid writer"), BUFFER_SIZE);
+        this.format = Objects.requireNonNull(format, "Please provide a valid format");
+        this.metrics = metrics;
+    }
 
     public static void printIncomingRanking(ProcessedInstructions processedInstructions) {
-        System.out.println("\nINCOMING INSTRUCTIONS:\n");
+        printIncomingRanking(processedInstructions, System.out);
+    }
 
-        printRecords(processedInstructions.getSortedIncomingInstructions());
+    /**
+     * @param out stream the fixed width report is printed to, in the stream's own encoding
+     */
+    public static void printIncomingRanking(ProcessedInstructions processedInstructions, PrintStream out) {
+        print(out, report -> report.writeIncomingRanking(processedInstructions));
     }
 
     public static void printOutgoingRanking(ProcessedInstructions processedInstructions) {
-        System.out.println("\nOUTGOING INSTRUCTIONS:\n");
-
-        printRecords(processedInstructions.getSortedOutgoingInstructions());
+        printOutgoingRanking(processedInstructions, System.out);
     }
 
-    private static void printRecords(TreeMultiset<Instruction> incomingInstructions) {
-        System.out.format(ROWS_FORMAT, "Entity", "AgreedFx", "Currency",
-                "Instruction Date", "Settlement Date", "Units", "Price per unit", "Amount in USD");
-        for (Instruction instruction : incomingInstructions) {
-            System.out.format(ROWS_FORMAT, instruction.getEntity(),
-                    instruction.getAgreedFx().setScale(2, RoundingMode.HALF_UP), instruction.getCurrency(),
-                    instruction.getInstructionDate(), instruction.getSettlementDate(), instruction.getUnits(), instruction.getPricePerUnit(),
-                    InstructionService.getAmountInUSD(instruction).setScale(2, RoundingMode.HALF_UP));
-        }
+    /**
+     * @param out stream the fixed width report is printed to, in the stream's own encoding
+     */
+    public static void printOutgoingRanking(ProcessedInstructions processedInstructions, PrintStream out) {
+        print(out, report -> report.writeOutgoingRanking(processedInstructions));
     }
 
     public static void printIncomingByDate(ProcessedInstructions processedInstructions, LocalDate date) {
-        System.out.println(String.format("\nINCOMING INSTRUCTIONS ON %s:\n", date.format(DATE_FORMAT)));
+        printIncomingByDate(processedInstructions, date, System.out);
+    }
 
-        printByDate(processedInstructions.getSortedIncomingInstructions(), date);
+    /**
+     * @param out stream the fixed width report is printed to, in the stream's own encoding
+     */
+    public static void printIncomingByDate(ProcessedInstructions processedInstructions, LocalDate date, PrintStream out) {
+        print(out, report -> report.writeIncomingByDate(processedInstructions, date));
     }
 
     public static void printOutgoingByDate(ProcessedInstructions processedInstructions, LocalDate date) {
-        System.out.println(String.format("\nOUTGOING INSTRUCTIONS ON %s:\n", date.format(DATE_FORMAT)));
+        printOutgoingByDate(processedInstructions, date, System.out);
+    }
+
+    /**
+     * @param out stream the fixed width report is printed to, in the stream's own encoding
+     */
+    public static void printOutgoingByDate(ProcessedInstructions processedInstructions, LocalDate date, PrintStream out) {
+        print(out, report -> report.writeOutgoingByDate(processedInstructions, date));
+    }
+
+    private static void print(PrintStream out, Consumer<ReportService> report) {
+        ReportService reportService = new ReportService(new PrintStreamWriter(Objects.requireNonNull(out, "Please provide a valid stream")), Format.FIXED_WIDTH);
+        report.accept(reportService);
+        reportService.flush();
+    }
+
+    public void writeIncomingRanking(ProcessedInstructions processedInstructions) {
+        writeIncomingRanking(processedInstructions, 0, UNLIMITED);
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public void writeIncomingRanking(ProcessedInstructions processedInstructions, int offset, int limit) {
+        writeReport("INCOMING INSTRUCTIONS", processedInstructions.getSortedIncomingInstructions(), offset, limit);
+    }
+
+    public void writeOutgoingRanking(ProcessedInstructions processedInstructions) {
+        writeOutgoingRanking(processedInstructions, 0, UNLIMITED);
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public void writeOutgoingRanking(ProcessedInstructions processedInstructions, int offset, int limit) {
+        writeReport("OUTGOING INSTRUCTIONS", processedInstructions.getSortedOutgoingInstructions(), offset, limit);
+    }
+
+    public void writeIncomingByDate(ProcessedInstructions processedInstructions, LocalDate date) {
+        writeIncomingByDate(processedInstructions, date, 0, UNLIMITED);
+    }
 
-        printByDate(processedInstructions.getSortedOutgoingInstructions(), date);
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public void writeIncomingByDate(ProcessedInstructions processedInstructions, LocalDate date, int offset, int limit) {
+        writeReport(titleOnDate("INCOMING INSTRUCTIONS ON ", date), processedInstructions.getIncomingInstructionsOn(date), offset, limit);
     }
 
-    private static void printByDate(TreeMultiset<Instruction> instructions, LocalDate date) {
-        System.out.format(ROWS_FORMAT, "Entity", "AgreedFx", "Currency",
-                "Instruction Date", "Settlement Date", "Units", "Price per unit", "Amount in USD");
-        List<Instruction> filteredInstructions = instructions.stream().filter(i -> i.getSettlementDate().equals(date)).collect(Collectors.toList());
-        for (Instruction instruction : filteredInstructions) {
-            System.out.format(ROWS_FORMAT, instruction.getEntity(),
-                    instruction.getAgreedFx().setScale(2, RoundingMode.HALF_UP), instruction.getCurrency(),
-                    instruction.getInstructionDate(), instruction.getSettlementDate(), instruction.getUnits(), instruction.getPricePerUnit(),
-                    InstructionService.getAmountInUSD(instruction).setScale(2, RoundingMode.HALF_UP));
+    public void writeOutgoingByDate(ProcessedInstructions processedInstructions, LocalDate date) {
+        writeOutgoingByDate(processedInstructions, date, 0, UNLIMITED);
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public void writeOutgoingByDate(ProcessedInstructions processedInstructions, LocalDate date, int offset, int limit) {
+        writeReport(titleOnDate("OUTGOING INSTRUCTIONS ON ", date), processedInstructions.getOutgoingInstructionsOn(date), offset, limit);
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public void writeIncomingRanking(OffHeapProcessedInstructions processedInstructions, int offset, int limit) {
+        writeRecords("INCOMING INSTRUCTIONS", processedInstructions.getSortedIncomingRecords(), offset, limit);
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public void writeOutgoingRanking(OffHeapProcessedInstructions processedInstructions, int offset, int limit) {
+        writeRecords("OUTGOING INSTRUCTIONS", processedInstructions.getSortedOutgoingRecords(), offset, limit);
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public void writeIncomingByDate(OffHeapProcessedInstructions processedInstructions, LocalDate date, int offset, int limit) {
+        writeRecords(titleOnDate("INCOMING INSTRUCTIONS ON ", date), processedInstructions.getIncomingRecordsOn(date), offset, limit);
+    }
+
+    /**
+     * @param offset number of instructions skipped from the top of the ranking
+     * @param limit  maximum number of instructions written
+     */
+    public void writeOutgoingByDate(OffHeapProcessedInstructions processedInstructions, LocalDate date, int offset, int limit) {
+        writeRecords(titleOnDate("OUTGOING INSTRUCTIONS ON ", date), processedInstructions.getOutgoingRecordsOn(date), offset, limit);
+    }
+
+    /**
+     * @param date settlement date of the report, null for a ranking
+     * @return title the report of the incoming or outgoing instructions is written with
+     */
+    public static String title(boolean incoming, LocalDate date) {
+        if (date == null) {
+            return incoming ? "INCOMING INSTRUCTIONS" : "OUTGOING INSTRUCTIONS";
+        }
+        return titleOnDate(incoming ? "INCOMING INSTRUCTIONS ON " : "OUTGOING INSTRUCTIONS ON ", date);
+    }
+
+    /**
+     * @param title        shown above fixed width reports and as the title of JSON reports, ignored in CSV
+     * @param instructions instructions in report order
+     * @param offset       number of instructions skipped
+     * @param limit        maximum number of instructions written
+     */
+    public void writeReport(String title, Iterable<Instruction> instructions, int offset, int limit) {
+        write(title, instructions, instructionFields, offset, limit);
+    }
+
+    /**
+     * Same as {@link #writeReport(String, Iterable, int, int)} for records read through a flyweight
+     */
+    public void writeRecords(String title, Iterable<InstructionRecord> records, int offset, int limit) {
+        write(title, records, recordFields, offset, limit);
+    }
+
+    private <T> void write(String title, Iterable<T> rows, FieldAppender<T> fields, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit should not be negative");
+        }
+        long start = System.nanoTime();
+        Iterator<T> iterator = rows.iterator();
+        for (int skipped = 0; skipped < offset && iterator.hasNext(); skipped++) {
+            iterator.next();
+        }
+        writeHeader(title);
+        for (int written = 0; written < limit && iterator.hasNext(); written++) {
+            writeRow(iterator.next(), fields, written == 0);
+        }
+        writeFooter();
+        if (metrics != null) {
+            metrics.getReportLatency().record(System.nanoTime() - start);
+        }
+    }
+
+    public void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeHeader(String title) {
+        row.setLength(0);
+        switch (format) {
+            case FIXED_WIDTH:
+                row.append('\n').append(title).append(":\n\n");
+                for (int i = 0; i < HEADERS.length; i++) {
+                    int start = row.length();
+                    row.append(HEADERS[i]);
+                    alignRight(start, WIDTHS[i]);
+                }
+                row.append('\n');
+                break;
+            case CSV:
+                for (int i = 0; i < FIELDS.length; i++) {
+                    row.append(i == 0 ? "" : ",").append(FIELDS[i]);
+                }
+                row.append('\n');
+                break;
+            case JSON:
+                row.append("{\"title\":");
+                appendJsonString(title);
+                row.append(",\"instructions\":[");
+                break;
+        }
+        write();
+    }
+
+    private <T> void writeRow(T item, FieldAppender<T> fields, boolean first) {
+        row.setLength(0);
+        switch (format) {
+            case FIXED_WIDTH:
+                for (int i = 0; i < WIDTHS.length; i++) {
+                    int start = row.length();
+                    fields.append(item, i);
+                    alignRight(start, WIDTHS[i]);
+                }
+                row.append('\n');
+                break;
+            case CSV:
+                for (int i = 0; i < FIELDS.length; i++) {
+                    if (i > 0) {
+                        row.append(',');
+                    }
+                    int start = row.length();
+                    fields.append(item, i);
+                    if (i == 0) {
+                        escapeCsv(start);
+                    }
+                }
+                row.append('\n');
+                break;
+            case JSON:
+                row.append(first ? "{" : ",{");
+                for (int i = 0; i < FIELDS.length; i++) {
+                    row.append(i == 0 ? "\"" : ",\"").append(FIELDS[i]).append("\":");
+                    //Entity, currency and dates are strings
+                    boolean quoted = i == 0 || i == 2 || i == 3 || i == 4;
+                    if (quoted) {
+                        row.append('"');
+                    }
+                    int start = row.length();
+                    fields.append(item, i);
+                    if (i == 0) {
+                        escapeJson(start);
+                    }
+                    if (quoted) {
+                        row.append('"');
+                    }
+                }
+                row.append('}');
+                break;
+        }
+        write();
+    }
+
+    private void writeFooter() {
+        if (format == Format.JSON) {
+            row.setLength(0);
+            row.append("]}\n");
+            write();
+        }
+    }
+
+    private void appendField(Instruction instruction, int field) {
+        switch (field) {
+            case 0:
+                row.append(instruction.getEntity());
+                break;
+            case 1:
+                row.append(instruction.getAgreedFx().setScale(2, RoundingMode.HALF_UP).toPlainString());
+                break;
+            case 2:
+                row.append(instruction.getCurrency().getCurrencyCode());
+                break;
+            case 3:
+                appendIsoDate(instruction.getInstructionDate());
+                break;
+            case 4:
+                appendIsoDate(instruction.getSettlementDate());
+                break;
+            case 5:
+                row.append(instruction.getUnits());
+                break;
+            case 6:
+                row.append(instruction.getPricePerUnit().toPlainString());
+                break;
+            default:
+                appendAmountInUsd(instruction);
+                break;
+        }
+    }
+
+    private void appendField(InstructionRecord record, int field) {
+        switch (field) {
+            case 0:
+                row.append(record.getEntity());
+                break;
+            case 1:
+                appendFixedInCents(record.getAgreedFx());
+                break;
+            case 2:
+                row.append(record.getCurrency().getCurrencyCode());
+                break;
+            case 3:
+                appendIsoDate(LocalDate.ofEpochDay(record.getInstructionEpochDay()));
+                break;
+            case 4:
+                appendIsoDate(LocalDate.ofEpochDay(record.getSettlementEpochDay()));
+                break;
+            case 5:
+                row.append(record.getUnits());
+                break;
+            case 6:
+                appendFixed(record.getPricePerUnit());
+                break;
+            default:
+                appendFixedInCents(record.getAmountInUsd());
+                break;
+        }
+    }
+
+    private void appendAmountInUsd(Instruction instruction) {
+        if (!instruction.isUsdSortKeyExact()) {
+            row.append(instruction.getAmountInUsd().setScale(2, RoundingMode.HALF_UP).toPlainString());
+            return;
+        }
+        appendFixedInCents(instruction.getUsdSortKey());
+    }
+
+    /**
+     * @param amount fixed point amount, written with 2 decimals rounded half up
+     */
+    private void appendFixedInCents(long amount) {
+        if (amount < 0) {
+            row.append('-');
+            amount = -amount;
+        }
+        long cents = amount / FIXED_TO_CENTS + (amount % FIXED_TO_CENTS >= FIXED_TO_CENTS / 2 ? 1 : 0);
+        row.append(cents / 100).append('.');
+        appendTwoDigits((int) (cents % 100));
+    }
+
+    /**
+     * @param value fixed point value, written without trailing zeros
+     */
+    private void appendFixed(long value) {
+        if (value < 0) {
+            row.append('-');
+            value = -value;
+        }
+        row.append(value / FIXED_FACTOR);
+        long fraction = value % FIXED_FACTOR;
+        if (fraction == 0) {
+            return;
+        }
+        row.append('.');
+        for (long digit = FIXED_FACTOR / 10; fraction > 0; digit /= 10) {
+            row.append((char) ('0' + fraction / digit));
+            fraction %= digit;
+        }
+    }
+
+    /**
+     * Same text as {@link LocalDate#toString()}
+     */
+    private void appendIsoDate(LocalDate date) {
+        appendYear(row, date.getYear());
+        row.append('-');
+        appendTwoDigits(date.getMonthValue());
+        row.append('-');
+        appendTwoDigits(date.getDayOfMonth());
+    }
+
+    /**
+     * Writes the year with at least four digits, with a sign if negative or beyond 9999
+     */
+    private static void appendYear(StringBuilder text, int year) {
+        if (year < 0) {
+            text.append('-');
+            year = -year;
+        } else if (year > 9999) {
+            text.append('+');
+        }
+        if (year < 1000) {
+            text.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+        }
+        text.append(year);
+    }
+
+    private void appendTwoDigits(int value) {
+        row.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    /**
+     * Moves the value written since start after the spaces padding it to width, in one copy
+     */
+    private void alignRight(int start, int width) {
+        int padding = width - (row.length() - start);
+        if (padding <= 0) {
+            return;
+        }
+        field.setLength(0);
+        field.append(row, start, row.length());
+        row.setLength(start);
+        for (int i = 0; i < padding; i++) {
+            row.append(' ');
+        }
+        row.append(field);
+    }
+
+    /**
+     * Quotes the field written since start if it needs to
+     */
+    private void escapeCsv(int start) {
+        for (int i = start; i < row.length(); i++) {
+            char c = row.charAt(i);
+            if (c == ',' || c == '"' || c == '\n') {
+                String value = row.substring(start);
+                row.setLength(start);
+                appendCsvString(value);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Escapes the string written since start if it needs to
+     */
+    private void escapeJson(int start) {
+        for (int i = start; i < row.length(); i++) {
+            char c = row.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                String value = row.substring(start);
+                row.setLength(start);
+                appendJsonEscaped(value);
+                return;
+            }
+        }
+    }
+
+    private void appendCsvString(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            row.append(value);
+            return;
+        }
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                row.append('"');
+            }
+            row.append(c);
+        }
+        row.append('"');
+    }
+
+    private void appendJsonString(String value) {
+        row.append('"');
+        appendJsonEscaped(value);
+        row.append('"');
+    }
+
+    private void appendJsonEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                row.append('\\').append(c);
+            } else if (c < 0x20) {
+                row.append("\\u00");
+                row.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else {
+                row.append(c);
+            }
+        }
+    }
+
+    private static String titleOnDate(String title, LocalDate date) {
+        StringBuilder titleOnDate = new StringBuilder(title);
+        int day = date.getDayOfMonth();
+        int month = date.getMonthValue();
+        titleOnDate.append(day / 10).append(day % 10).append('/').append(month / 10).append(month % 10).append('/');
+        appendYear(titleOnDate, date.getYear());
+        return titleOnDate.toString();
+    }
+
+    /**
+     * Appends one field of a row to the row being built, fields are numbered as in FIELDS
+     */
+    private interface FieldAppender<T> {
+
+        void append(T item, int field);
+    }
+
+    private void write() {
+        try {
+            writer.append(row);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes through a print stream so its own encoding is kept, flushing the writer flushes the stream
+     */
+    private static final class PrintStreamWriter extends Writer {
+
+        private final PrintStream out;
+
+        private PrintStreamWriter(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            out.append(CharBuffer.wrap(buffer, offset, length));
+        }
+
+        @Override
+        public void flush() {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            out.flush();
         }
     }
 }
@@ -1,9 +1,6 @@
 package utils;
 
 import domain.Instruction;
-import services.InstructionService;
-
-import java.math.BigDecimal;
 import java.util.Comparator;
 
 public class ComparatorByUsdAmountDescending implements Comparator<Instruction> {
@@ -15,9 +12,20 @@ public class ComparatorByUsdAmountDescending implements Comparator<Instruction>
         if (instruction2 == null) {
             return 1;
         }
-        BigDecimal usdAmount1 = InstructionService.getAmountInUSD(instruction1);
-        BigDecimal usdAmount2 = InstructionService.getAmountInUSD(instruction2);
-        // Change sign to sort descendingly
-        return -usdAmount1.compareTo(usdAmount2);
+        int byAmount = compareUsdAmounts(instruction1, instruction2);
+        //Equal amounts keep the order their book stored them in, only the same instruction is equal to itself
+        return byAmount != 0 ? byAmount : Long.compare(instruction1.getSequence(), instruction2.getSequence());
+    }
+
+    /**
+     * @return order of the amounts in USD alone, the largest first
+     */
+    public static int compareUsdAmounts(Instruction instruction1, Instruction instruction2) {
+        // Swap operands to sort descendingly
+        int bySortKey = Long.compare(instruction2.getUsdSortKey(), instruction1.getUsdSortKey());
+        if (bySortKey == 0 && !(instruction1.isUsdSortKeyExact() && instruction2.isUsdSortKeyExact())) {
+            bySortKey = instruction2.getAmountInUsd().compareTo(instruction1.getAmountInUsd());
+        }
+        return bySortKey;
     }
 }
@@ -0,0 +1,56 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Binary indexed tree of longs: point updates and prefix sums in O(log n)
+ * <p>
+ * Sums are exact, {@link ArithmeticException} is thrown as soon as a partial sum overflows.
+ */
+public class FenwickTree {
+
+    //1-based, tree[i] holds the sum of the (i & -i) values ending at i
+    private final long[] tree;
+
+    public FenwickTree(int size) {
+        tree = new long[size + 1];
+    }
+
+    /**
+     * Sets every value back to 0, keeping the size
+     */
+    public void clear() {
+        Arrays.fill(tree, 0);
+    }
+
+    public int size() {
+        return tree.length - 1;
+    }
+
+    public void add(int position, long delta) {
+        for (int i = position + 1; i < tree.length; i += i & -i) {
+            tree[i] = Math.addExact(tree[i], delta);
+        }
+    }
+
+    /**
+     * @return sum of the values at positions 0 to position, inclusive
+     */
+    public long prefixSum(int position) {
+        long sum = 0;
+        for (int i = Math.min(position + 1, tree.length - 1); i > 0; i -= i & -i) {
+            sum = Math.addExact(sum, tree[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * @return sum of the values at positions from to to, inclusive
+     */
+    public long rangeSum(int from, int to) {
+        if (to < from) {
+            return 0;
+        }
+        return Math.subtractExact(prefixSum(to), from > 0 ? prefixSum(from - 1) : 0);
+    }
+}
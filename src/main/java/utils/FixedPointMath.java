@@ -0,0 +1,140 @@
+package utils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Money as a long holding the value multiplied by 10^SCALE, rounded half up.
+ * <p>
+ * Operations throw {@link ArithmeticException} when the result does not fit in a long, callers then fall back to BigDecimal.
+ */
+public final class FixedPointMath {
+
+    public static final int SCALE = 6;
+    public static final RoundingMode ROUNDING = RoundingMode.HALF_UP;
+
+    private static final long FACTOR = 1_000_000L;
+    private static final int MAX_INTEGER_DIGITS = 13;
+    private static final long LOW_32_BITS = 0xFFFFFFFFL;
+    //Powers of ten up to the largest divisor the 128 bit division handles
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+            100_000_000L, 1_000_000_000L};
+
+    private FixedPointMath() {
+    }
+
+    /**
+     * @param value any decimal value
+     * @return value rounded to SCALE decimals as a fixed point long
+     * @throws ArithmeticException if the value does not fit
+     */
+    public static long toFixed(BigDecimal value) {
+        return value.setScale(SCALE, ROUNDING).unscaledValue().longValueExact();
+    }
+
+    /**
+     * @param value any decimal value
+     * @return false if {@link #toFixed(BigDecimal)} would throw
+     */
+    public static boolean fits(BigDecimal value) {
+        //Fewer integer digits than Long.MAX_VALUE / FACTOR always fit, even once rounded
+        if (value.precision() - value.scale() < MAX_INTEGER_DIGITS) {
+            return true;
+        }
+        try {
+            toFixed(value);
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param value fixed point long
+     * @return the same value as a BigDecimal with scale SCALE
+     */
+    public static BigDecimal toBigDecimal(long value) {
+        return BigDecimal.valueOf(value, SCALE);
+    }
+
+    /**
+     * @param value any decimal value
+     * @return value rounded the same way as the fixed point operations
+     */
+    public static BigDecimal round(BigDecimal value) {
+        return value.setScale(SCALE, ROUNDING);
+    }
+
+    /**
+     * @return a * b with a single rounding, through a 128 bit intermediate product
+     * @throws ArithmeticException if an operand is negative or the result does not fit
+     */
+    public static long multiply(long a, long b) {
+        return multiplyAndDivide(a, b, FACTOR);
+    }
+
+    /**
+     * Multiplies two decimals given as unscaled value and scale, such as {@link BigDecimal#unscaledValue()} and
+     * {@link BigDecimal#scale()}, without rounding them first
+     *
+     * @return a * 10^-aScale * b * 10^-bScale as a fixed point long, with a single rounding
+     * @throws ArithmeticException if an operand or scale is negative, the scales are too large or the result does not fit
+     */
+    public static long multiply(long a, int aScale, long b, int bScale) {
+        if (aScale < 0 || bScale < 0) {
+            throw new ArithmeticException("Fixed point scales should not be negative");
+        }
+        int scale = aScale + bScale;
+        if (scale <= SCALE) {
+            return multiplyAndDivide(Math.multiplyExact(a, POWERS_OF_TEN[SCALE - scale]), b, 1);
+        }
+        if (scale - SCALE >= POWERS_OF_TEN.length) {
+            throw new ArithmeticException("Fixed point scale too large");
+        }
+        return multiplyAndDivide(a, b, POWERS_OF_TEN[scale - SCALE]);
+    }
+
+    /**
+     * @param divisor power of ten up to 10^9
+     */
+    private static long multiplyAndDivide(long a, long b, long divisor) {
+        if (a < 0 || b < 0) {
+            throw new ArithmeticException("Fixed point operands should not be negative");
+        }
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        if (high == 0 && low >= 0) {
+            return roundHalfUp(low / divisor, low % divisor, divisor);
+        }
+        if (high >= divisor) {
+            throw new ArithmeticException("Fixed point overflow");
+        }
+        //Long division of the 96 significant bits by the divisor, 32 bits at a time
+        long upper = (high << 32) | (low >>> 32);
+        long upperQuotient = upper / divisor;
+        long lower = ((upper % divisor) << 32) | (low & LOW_32_BITS);
+        if (upperQuotient >= 1L << 31) {
+            throw new ArithmeticException("Fixed point overflow");
+        }
+        return roundHalfUp((upperQuotient << 32) + lower / divisor, lower % divisor, divisor);
+    }
+
+    /**
+     * @return a * units, units being a plain integer
+     * @throws ArithmeticException if the result does not fit
+     */
+    public static long multiply(long a, int units) {
+        return Math.multiplyExact(a, units);
+    }
+
+    /**
+     * @throws ArithmeticException if the result does not fit
+     */
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    private static long roundHalfUp(long quotient, long remainder, long divisor) {
+        return divisor > 1 && remainder >= divisor / 2 ? Math.addExact(quotient, 1) : quotient;
+    }
+}
@@ -0,0 +1,83 @@
+package utils;
+
+import domain.SymbolDictionary;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Live FX rates to USD per currency. Rates are read without locking and replaced a batch at a time.
+ */
+public class FxRates {
+
+    private final SymbolDictionary dictionary = SymbolDictionary.global();
+
+    //Rate per currency id of the global symbol dictionary, null while the currency has no rate. Copied on write
+    private volatile BigDecimal[] ratePerCurrencyId = new BigDecimal[0];
+
+    /**
+     * @return rate to USD of the currency, or null if it has none
+     */
+    public BigDecimal get(Currency currency) {
+        return getByCurrencyId(dictionary.currencyId(Objects.requireNonNull(currency, "Please provide a valid currency")));
+    }
+
+    /**
+     * @param currencyId id of the currency in the global {@link SymbolDictionary}
+     * @return rate to USD of the currency, or null if it has none
+     */
+    public BigDecimal getByCurrencyId(int currencyId) {
+        BigDecimal[] rates = ratePerCurrencyId;
+        return currencyId >= 0 && currencyId < rates.length ? rates[currencyId] : null;
+    }
+
+    /**
+     * @return copy of every rate set, by currency
+     */
+    public Map<Currency, BigDecimal> toMap() {
+        BigDecimal[] rates = ratePerCurrencyId;
+        Map<Currency, BigDecimal> map = new LinkedHashMap<>();
+        for (int currencyId = 0; currencyId < rates.length; currencyId++) {
+            if (rates[currencyId] != null) {
+                map.put(dictionary.currency(currencyId), rates[currencyId]);
+            }
+        }
+        return map;
+    }
+
+    public boolean isEmpty() {
+        return Arrays.stream(ratePerCurrencyId).allMatch(Objects::isNull);
+    }
+
+    /**
+     * @param rates new positive rates to USD per currency
+     * @return the rates that changed, the others already had an equal value
+     */
+    public synchronized Map<Currency, BigDecimal> update(Map<Currency, BigDecimal> rates) {
+        Objects.requireNonNull(rates, "Please provide valid FX rates");
+        Map<Currency, BigDecimal> changed = new LinkedHashMap<>();
+        BigDecimal[] updated = ratePerCurrencyId;
+        for (Map.Entry<Currency, BigDecimal> entry : rates.entrySet()) {
+            BigDecimal rate = Objects.requireNonNull(entry.getValue(), "Please provide a valid FX rate");
+            if (rate.signum() <= 0) {
+                throw new IllegalArgumentException("FX rate of " + entry.getKey() + " should be positive");
+            }
+            int currencyId = dictionary.currencyId(Objects.requireNonNull(entry.getKey(), "Please provide a valid currency"));
+            BigDecimal current = currencyId < updated.length ? updated[currencyId] : null;
+            if (current != null && current.compareTo(rate) == 0) {
+                continue;
+            }
+            if (updated == ratePerCurrencyId || currencyId >= updated.length) {
+                updated = Arrays.copyOf(updated, Math.max(updated.length, currencyId + 1));
+            }
+            updated[currencyId] = rate;
+            changed.put(entry.getKey(), rate);
+        }
+        ratePerCurrencyId = updated;
+        return changed;
+    }
+}
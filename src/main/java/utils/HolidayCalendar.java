@@ -0,0 +1,21 @@
+package utils;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Source of non working days other than the weekend, e.g. bank holidays of a market
+ */
+public interface HolidayCalendar {
+
+    HolidayCalendar NONE = date -> false;
+
+    boolean isHoliday(LocalDate date);
+
+    static HolidayCalendar of(Collection<LocalDate> holidays) {
+        Set<LocalDate> holidaySet = new HashSet<>(holidays);
+        return holidaySet::contains;
+    }
+}
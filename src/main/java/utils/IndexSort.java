@@ -0,0 +1,72 @@
+package utils;
+
+/**
+ * Sorts arrays of row indexes by a primitive key column without boxing
+ */
+public final class IndexSort {
+
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    private IndexSort() {
+    }
+
+    /**
+     * Stable: rows with the same key keep their relative order
+     *
+     * @param indexes rows to sort, sorted in place
+     * @param length  number of rows to sort at the start of indexes
+     * @param keys    key of every row
+     */
+    public static void sortDescending(int[] indexes, int length, long[] keys) {
+        sortDescending(indexes, length, keys, new int[length]);
+    }
+
+    /**
+     * Same as {@link #sortDescending(int[], int, long[])} with a scratch buffer reused across calls
+     *
+     * @param buffer scratch space of at least length rows, its content is overwritten
+     */
+    public static void sortDescending(int[] indexes, int length, long[] keys, int[] buffer) {
+        if (buffer.length < length) {
+            throw new IllegalArgumentException("Buffer of " + buffer.length + " rows is too small for " + length + " rows");
+        }
+        mergeSort(indexes, buffer, 0, length, keys);
+    }
+
+    private static void mergeSort(int[] indexes, int[] buffer, int from, int to, long[] keys) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(indexes, from, to, keys);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(indexes, buffer, from, middle, keys);
+        mergeSort(indexes, buffer, middle, to, keys);
+        if (keys[indexes[middle - 1]] >= keys[indexes[middle]]) {
+            //Already in order
+            return;
+        }
+        System.arraycopy(indexes, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right == to || (left < middle && keys[buffer[left]] >= keys[buffer[right]])) {
+                indexes[i] = buffer[left++];
+            } else {
+                indexes[i] = buffer[right++];
+            }
+        }
+    }
+
+    private static void insertionSort(int[] indexes, int from, int to, long[] keys) {
+        for (int i = from + 1; i < to; i++) {
+            int index = indexes[i];
+            long key = keys[index];
+            int j = i - 1;
+            while (j >= from && keys[indexes[j]] < key) {
+                indexes[j + 1] = indexes[j];
+                j--;
+            }
+            indexes[j + 1] = index;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package utils;
+
+import domain.Instruction;
+import domain.SymbolDictionary;
+import domain.Type;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Currency;
+
+/**
+ * Binary form of an instruction, either self-contained for records that cannot share a dictionary such as journals,
+ * or with entity and currency as indexes in a {@link SymbolTable} written once, such as snapshots.
+ * Amounts are written exactly, not rounded to fixed point.
+ */
+public final class InstructionCodec {
+
+    private InstructionCodec() {
+    }
+
+    /**
+     * @param instruction valid instruction
+     */
+    public static void write(Instruction instruction, DataOutput out) throws IOException {
+        out.writeUTF(instruction.getEntity());
+        out.writeByte(instruction.getType().Type());
+        out.writeUTF(instruction.getCurrency().getCurrencyCode());
+        writeValues(instruction, out);
+    }
+
+    /**
+     * @param instruction valid instruction whose entity and currency have been added to the table
+     * @param symbols     table written before the instruction
+     */
+    public static void write(Instruction instruction, SymbolTable symbols, DataOutput out) throws IOException {
+        out.writeInt(symbols.entityIndex(instruction.getEntityId()));
+        out.writeByte(instruction.getType().Type());
+        out.writeShort(symbols.currencyIndex(instruction.getCurrencyId()));
+        writeValues(instruction, out);
+    }
+
+    private static void writeValues(Instruction instruction, DataOutput out) throws IOException {
+        writeDecimal(instruction.getAgreedFx(), out);
+        out.writeLong(instruction.getInstructionDate().toEpochDay());
+        out.writeLong(instruction.getSettlementDate().toEpochDay());
+        out.writeInt(instruction.getUnits());
+        writeDecimal(instruction.getPricePerUnit(), out);
+        out.writeBoolean(instruction.getId() != null);
+        if (instruction.getId() != null) {
+            out.writeUTF(instruction.getId());
+        }
+    }
+
+    /**
+     * @throws IOException if the data is not an instruction written by {@link #write(Instruction, DataOutput)}
+     */
+    public static Instruction read(DataInput in) throws IOException {
+        Instruction instruction = new Instruction();
+        instruction.setEntity(in.readUTF());
+        instruction.setType(readType(in));
+        try {
+            instruction.setCurrency(Currency.getInstance(in.readUTF()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown currency", e);
+        }
+        return readValues(instruction, in);
+    }
+
+    /**
+     * @param symbols table read before the instruction
+     * @throws IOException if the data is not an instruction written by {@link #write(Instruction, SymbolTable, DataOutput)}
+     */
+    public static Instruction read(SymbolTable symbols, DataInput in) throws IOException {
+        Instruction instruction = new Instruction();
+        instruction.setEntityId(symbols.entityId(in.readInt()));
+        instruction.setType(readType(in));
+        instruction.setCurrencyId(symbols.currencyId(in.readShort()));
+        return readValues(instruction, in);
+    }
+
+    private static Type readType(DataInput in) throws IOException {
+        Type type = Type.of((char) in.readByte());
+        if (type == null) {
+            throw new IOException("Unknown instruction type");
+        }
+        return type;
+    }
+
+    private static Instruction readValues(Instruction instruction, DataInput in) throws IOException {
+        instruction.setAgreedFx(readDecimal(in));
+        instruction.setInstructionDate(LocalDate.ofEpochDay(in.readLong()));
+        instruction.setSettlementDate(LocalDate.ofEpochDay(in.readLong()));
+        instruction.setUnits(in.readInt());
+        instruction.setPricePerUnit(readDecimal(in));
+        if (in.readBoolean()) {
+            instruction.setId(in.readUTF());
+        }
+        return instruction;
+    }
+
+    public static void writeDecimal(BigDecimal value, DataOutput out) throws IOException {
+        byte[] unscaledValue = value.unscaledValue().toByteArray();
+        out.writeInt(value.scale());
+        out.writeInt(unscaledValue.length);
+        out.write(unscaledValue);
+    }
+
+    public static BigDecimal readDecimal(DataInput in) throws IOException {
+        int scale = in.readInt();
+        int length = in.readInt();
+        if (length <= 0 || length > 1024) {
+            throw new IOException("Invalid decimal length " + length);
+        }
+        byte[] unscaledValue = new byte[length];
+        in.readFully(unscaledValue);
+        return new BigDecimal(new BigInteger(unscaledValue), scale);
+    }
+
+    /**
+     * Entities and currencies of a set of instructions, numbered from 0 in order of first use so the numbers do not
+     * depend on the ids of the process that wrote them
+     */
+    public static final class SymbolTable {
+
+        private final SymbolDictionary dictionary = SymbolDictionary.global();
+
+        //Global ids per index, and index + 1 per global id (0 when not in the table)
+        private int[] entityIds = new int[16];
+        private int entityCount;
+        private int[] entityIndexes = new int[16];
+        private int[] currencyIds = new int[16];
+        private int currencyCount;
+        private int[] currencyIndexes = new int[16];
+
+        /**
+         * @param instruction instruction to be written with the table
+         */
+        public void add(Instruction instruction) {
+            if (indexOf(entityIndexes, instruction.getEntityId()) < 0) {
+                entityIndexes = grow(entityIndexes, instruction.getEntityId());
+                entityIds = grow(entityIds, entityCount);
+                entityIds[entityCount] = instruction.getEntityId();
+                entityIndexes[instruction.getEntityId()] = ++entityCount;
+            }
+            if (indexOf(currencyIndexes, instruction.getCurrencyId()) < 0) {
+                currencyIndexes = grow(currencyIndexes, instruction.getCurrencyId());
+                currencyIds = grow(currencyIds, currencyCount);
+                currencyIds[currencyCount] = instruction.getCurrencyId();
+                currencyIndexes[instruction.getCurrencyId()] = ++currencyCount;
+            }
+        }
+
+        private static int indexOf(int[] indexes, int id) {
+            return id < indexes.length ? indexes[id] - 1 : -1;
+        }
+
+        private static int[] grow(int[] values, int index) {
+            return index < values.length ? values : Arrays.copyOf(values, Math.max(index + 1, values.length * 2));
+        }
+
+        int entityIndex(int entityId) {
+            int index = indexOf(entityIndexes, entityId);
+            if (index < 0) {
+                throw new IllegalArgumentException("Entity not in the table: " + dictionary.entity(entityId));
+            }
+            return index;
+        }
+
+        int currencyIndex(int currencyId) {
+            int index = indexOf(currencyIndexes, currencyId);
+            if (index < 0) {
+                throw new IllegalArgumentException("Currency not in the table: " + dictionary.currency(currencyId));
+            }
+            return index;
+        }
+
+        int entityId(int index) throws IOException {
+            if (index < 0 || index >= entityCount) {
+                throw new IOException("Unknown entity index " + index);
+            }
+            return entityIds[index];
+        }
+
+        int currencyId(int index) throws IOException {
+            if (index < 0 || index >= currencyCount) {
+                throw new IOException("Unknown currency index " + index);
+            }
+            return currencyIds[index];
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(entityCount);
+            for (int i = 0; i < entityCount; i++) {
+                out.writeUTF(dictionary.entity(entityIds[i]));
+            }
+            out.writeShort(currencyCount);
+            for (int i = 0; i < currencyCount; i++) {
+                out.writeUTF(dictionary.currency(currencyIds[i]).getCurrencyCode());
+            }
+        }
+
+        /**
+         * @return table written by {@link #write(DataOutput)}, its symbols added to the global dictionary
+         */
+        public static SymbolTable read(DataInput in) throws IOException {
+            SymbolTable symbols = new SymbolTable();
+            int entities = in.readInt();
+            if (entities < 0) {
+                throw new IOException("Invalid number of entities " + entities);
+            }
+            symbols.entityIds = new int[entities];
+            for (int i = 0; i < entities; i++) {
+                symbols.entityIds[i] = symbols.dictionary.entityId(in.readUTF());
+            }
+            symbols.entityCount = entities;
+            int currencies = in.readShort();
+            if (currencies < 0) {
+                throw new IOException("Invalid number of currencies " + currencies);
+            }
+            symbols.currencyIds = new int[currencies];
+            for (int i = 0; i < currencies; i++) {
+                try {
+                    symbols.currencyIds[i] = symbols.dictionary.currencyId(Currency.getInstance(in.readUTF()));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown currency", e);
+                }
+            }
+            symbols.currencyCount = currencies;
+            return symbols;
+        }
+    }
+}
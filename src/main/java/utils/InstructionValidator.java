@@ -1,11 +1,37 @@
 package utils;
 
 import domain.Instruction;
+import domain.InstructionBatch;
+import domain.SymbolDictionary;
 
 public class InstructionValidator {
 
     public boolean isValid(Instruction instruction) {
-        return isValidEntityType(instruction) && isValidDates(instruction) && isValidPriceFx(instruction);
+        return isValidEntityType(instruction) && isValidDates(instruction) && isValidPriceFx(instruction) && !hasNegativeAmount(instruction);
+    }
+
+    /**
+     * @return true if the price per unit, the conversion factor or the units are negative, the instruction is then not valid
+     */
+    public boolean hasNegativeAmount(Instruction instruction) {
+        return instruction.getUnits() < 0
+                || (instruction.getPricePerUnit() != null && instruction.getPricePerUnit().signum() < 0)
+                || (instruction.getAgreedFx() != null && instruction.getAgreedFx().signum() < 0);
+    }
+
+    /**
+     * Same checks as {@link #isValid(Instruction)} for a row of a columnar batch, whose type and dates are always set
+     */
+    public boolean isValid(InstructionBatch batch, int row) {
+        return batch.getEntityId(row) != SymbolDictionary.UNKNOWN && batch.getCurrencyId(row) != SymbolDictionary.UNKNOWN
+                && !hasNegativeAmount(batch, row);
+    }
+
+    /**
+     * @return true if the price per unit, the conversion factor or the units of the row are negative
+     */
+    public boolean hasNegativeAmount(InstructionBatch batch, int row) {
+        return batch.getUnits(row) < 0 || batch.getPricePerUnit(row) < 0 || batch.getAgreedFx(row) < 0;
     }
 
     private boolean isValidEntityType(Instruction instruction) {
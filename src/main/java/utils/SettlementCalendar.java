@@ -0,0 +1,94 @@
+package utils;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Working days of a market, with the next working day of every date in a window precomputed
+ * so adapting a settlement date is an array lookup
+ */
+public class SettlementCalendar {
+
+    public static final LocalDate DEFAULT_FIRST_DATE = LocalDate.of(2000, 1, 1);
+    public static final LocalDate DEFAULT_LAST_DATE = LocalDate.of(2100, 12, 31);
+
+    //Longest run of non working days accepted when walking the calendar
+    private static final int MAX_NON_WORKING_DAYS = 366;
+
+    private final Set<DayOfWeek> workingDays;
+    private final HolidayCalendar holidays;
+    private final long firstEpochDay;
+
+    //Epoch day of the first working day on or after firstEpochDay + index
+    private final int[] nextWorkingEpochDays;
+
+    public SettlementCalendar(Set<DayOfWeek> workingDays, HolidayCalendar holidays) {
+        this(workingDays, holidays, DEFAULT_FIRST_DATE, DEFAULT_LAST_DATE);
+    }
+
+    /**
+     * @param workingDays days of the week on which instructions can settle
+     * @param holidays    non working days on top of the weekend
+     * @param firstDate   first date of the precomputed window
+     * @param lastDate    last date of the precomputed window, dates outside the window are walked day by day
+     */
+    public SettlementCalendar(Set<DayOfWeek> workingDays, HolidayCalendar holidays, LocalDate firstDate, LocalDate lastDate) {
+        if (workingDays.isEmpty()) {
+            throw new IllegalArgumentException("A settlement calendar needs at least one working day");
+        }
+        if (lastDate.isBefore(firstDate)) {
+            throw new IllegalArgumentException("The last date of the calendar should not be before the first one");
+        }
+        this.workingDays = EnumSet.copyOf(workingDays);
+        this.holidays = Objects.requireNonNull(holidays, "Please provide a valid holiday calendar");
+        this.firstEpochDay = firstDate.toEpochDay();
+        this.nextWorkingEpochDays = new int[Math.toIntExact(lastDate.toEpochDay() - firstEpochDay + 1)];
+
+        //Fill backwards so every date reuses the answer of the following one
+        int last = nextWorkingEpochDays.length - 1;
+        nextWorkingEpochDays[last] = Math.toIntExact(walkToWorkingDay(lastDate.toEpochDay()));
+        for (int i = last - 1; i >= 0; i--) {
+            long epochDay = firstEpochDay + i;
+            nextWorkingEpochDays[i] = isWorkingDay(epochDay) ? Math.toIntExact(epochDay) : nextWorkingEpochDays[i + 1];
+        }
+    }
+
+    /**
+     * @param date any date
+     * @return the same date if it is a working day, otherwise the next working day
+     */
+    public LocalDate nextWorkingDay(LocalDate date) {
+        long epochDay = date.toEpochDay();
+        long nextWorkingEpochDay = nextWorkingEpochDay(epochDay);
+        return nextWorkingEpochDay == epochDay ? date : LocalDate.ofEpochDay(nextWorkingEpochDay);
+    }
+
+    /**
+     * @param epochDay any date as an epoch day
+     * @return the same epoch day if it is a working day, otherwise the next working day
+     */
+    public long nextWorkingEpochDay(long epochDay) {
+        long index = epochDay - firstEpochDay;
+        if (index >= 0 && index < nextWorkingEpochDays.length) {
+            return nextWorkingEpochDays[(int) index];
+        }
+        return walkToWorkingDay(epochDay);
+    }
+
+    private long walkToWorkingDay(long epochDay) {
+        for (int i = 0; i <= MAX_NON_WORKING_DAYS; i++) {
+            if (isWorkingDay(epochDay + i)) {
+                return epochDay + i;
+            }
+        }
+        throw new IllegalStateException("No working day within a year after " + LocalDate.ofEpochDay(epochDay));
+    }
+
+    private boolean isWorkingDay(long epochDay) {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        return workingDays.contains(date.getDayOfWeek()) && !holidays.isHoliday(date);
+    }
+}
@@ -0,0 +1,74 @@
+package utils;
+
+import domain.SymbolDictionary;
+
+import java.time.DayOfWeek;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Settlement calendar of every currency, currencies without their own calendar settle Monday to Friday
+ */
+public class SettlementCalendars {
+
+    public static final Set<DayOfWeek> MONDAY_TO_FRIDAY = Collections.unmodifiableSet(EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY));
+    public static final Set<DayOfWeek> SUNDAY_TO_THURSDAY = Collections.unmodifiableSet(EnumSet.of(DayOfWeek.SUNDAY,
+            DayOfWeek.MONDAY, DayOfWeek.TUESDAY, DayOfWeek.WEDNESDAY, DayOfWeek.THURSDAY));
+
+    //Read without locking, registered under the lock of this object
+    private final Map<Currency, SettlementCalendar> calendarPerCurrency = new ConcurrentHashMap<>();
+    private final SettlementCalendar defaultCalendar;
+    //Calendar per id of the global symbol dictionary, copied on write and filled as currencies are looked up
+    private volatile SettlementCalendar[] calendarPerCurrencyId = new SettlementCalendar[0];
+
+    public SettlementCalendars(SettlementCalendar defaultCalendar) {
+        this.defaultCalendar = Objects.requireNonNull(defaultCalendar, "Please provide a valid default calendar");
+    }
+
+    /**
+     * @return weekends only: Saturday and Sunday, or Friday and Saturday for dirhams and riyals
+     */
+    public static SettlementCalendars weekendsOnly() {
+        SettlementCalendars calendars = new SettlementCalendars(new SettlementCalendar(MONDAY_TO_FRIDAY, HolidayCalendar.NONE));
+        SettlementCalendar middleEastCalendar = new SettlementCalendar(SUNDAY_TO_THURSDAY, HolidayCalendar.NONE);
+        calendars.register(Currency.getInstance("AED"), middleEastCalendar);
+        calendars.register(Currency.getInstance("SAR"), middleEastCalendar);
+        return calendars;
+    }
+
+    public synchronized void register(Currency currency, SettlementCalendar calendar) {
+        calendarPerCurrency.put(Objects.requireNonNull(currency), Objects.requireNonNull(calendar));
+        calendarPerCurrencyId = new SettlementCalendar[0];
+    }
+
+    public SettlementCalendar forCurrency(Currency currency) {
+        return calendarPerCurrency.getOrDefault(currency, defaultCalendar);
+    }
+
+    /**
+     * @param currencyId id of the currency in the global {@link SymbolDictionary}
+     * @return same calendar as {@link #forCurrency(Currency)}, found by array index once the currency has been looked up
+     */
+    public SettlementCalendar forCurrencyId(int currencyId) {
+        SettlementCalendar[] calendars = calendarPerCurrencyId;
+        if (currencyId < calendars.length && calendars[currencyId] != null) {
+            return calendars[currencyId];
+        }
+        return lookUp(currencyId);
+    }
+
+    private synchronized SettlementCalendar lookUp(int currencyId) {
+        SettlementCalendar calendar = forCurrency(SymbolDictionary.global().currency(currencyId));
+        SettlementCalendar[] calendars = Arrays.copyOf(calendarPerCurrencyId,
+                Math.max(calendarPerCurrencyId.length, SymbolDictionary.global().currencyCount()));
+        calendars[currencyId] = calendar;
+        calendarPerCurrencyId = calendars;
+        return calendar;
+    }
+}
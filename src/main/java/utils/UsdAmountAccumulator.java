@@ -0,0 +1,111 @@
+package utils;
+
+import domain.Instruction;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Running total of amounts in USD, kept as a fixed point long until it overflows and as a BigDecimal afterwards
+ */
+public class UsdAmountAccumulator implements Comparable<UsdAmountAccumulator> {
+
+    private long fixedTotal;
+    private BigDecimal overflowTotal;
+
+    public void add(Instruction instruction) {
+        if (overflowTotal == null && instruction.isUsdSortKeyExact()) {
+            add(instruction.getUsdSortKey());
+        } else {
+            add(instruction.getAmountInUsd());
+        }
+    }
+
+    /**
+     * @param instruction instruction added before, whose amount is taken back out of the total
+     */
+    public void subtract(Instruction instruction) {
+        if (overflowTotal == null && instruction.isUsdSortKeyExact()) {
+            try {
+                fixedTotal = Math.subtractExact(fixedTotal, instruction.getUsdSortKey());
+                return;
+            } catch (ArithmeticException e) {
+                overflowTotal = FixedPointMath.toBigDecimal(fixedTotal);
+            }
+        }
+        add(instruction.getAmountInUsd().negate());
+    }
+
+    public void add(UsdAmountAccumulator other) {
+        if (other.overflowTotal == null) {
+            add(other.fixedTotal);
+        } else {
+            add(other.overflowTotal);
+        }
+    }
+
+    /**
+     * @param fixedAmount amount in USD as a fixed point long
+     */
+    public void add(long fixedAmount) {
+        if (overflowTotal == null) {
+            try {
+                fixedTotal = FixedPointMath.add(fixedTotal, fixedAmount);
+                return;
+            } catch (ArithmeticException e) {
+                overflowTotal = FixedPointMath.toBigDecimal(fixedTotal);
+            }
+        }
+        overflowTotal = overflowTotal.add(FixedPointMath.toBigDecimal(fixedAmount));
+    }
+
+    private void add(BigDecimal amount) {
+        if (overflowTotal == null) {
+            overflowTotal = FixedPointMath.toBigDecimal(fixedTotal);
+        }
+        overflowTotal = overflowTotal.add(amount);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeBoolean(overflowTotal != null);
+        if (overflowTotal == null) {
+            out.writeLong(fixedTotal);
+        } else {
+            InstructionCodec.writeDecimal(overflowTotal, out);
+        }
+    }
+
+    /**
+     * @return total written by {@link #write(DataOutput)}
+     */
+    public static UsdAmountAccumulator read(DataInput in) throws IOException {
+        UsdAmountAccumulator accumulator = new UsdAmountAccumulator();
+        if (in.readBoolean()) {
+            accumulator.add(InstructionCodec.readDecimal(in));
+        } else {
+            accumulator.fixedTotal = in.readLong();
+        }
+        return accumulator;
+    }
+
+    /**
+     * @return -1, 0 or 1 as the total is negative, zero or positive
+     */
+    public int signum() {
+        return overflowTotal == null ? Long.signum(fixedTotal) : overflowTotal.signum();
+    }
+
+    public BigDecimal toBigDecimal() {
+        return overflowTotal != null ? overflowTotal : FixedPointMath.toBigDecimal(fixedTotal);
+    }
+
+    @Override
+    public int compareTo(UsdAmountAccumulator other) {
+        if (overflowTotal == null && other.overflowTotal == null) {
+            return Long.compare(fixedTotal, other.fixedTotal);
+        }
+        return toBigDecimal().compareTo(other.toBigDecimal());
+    }
+}
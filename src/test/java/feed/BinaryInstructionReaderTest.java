@@ -0,0 +1,154 @@
+package feed;
+
+import domain.Instruction;
+import domain.Type;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import output.ProcessedInstructions;
+import services.InstructionService;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class BinaryInstructionReaderTest {
+
+    private static final LocalDate JUL_20 = LocalDate.of(2018, 7, 20);
+    private static final LocalDate JUL_21 = LocalDate.of(2018, 7, 21);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadWrittenInstructions() throws IOException {
+        Path file = folder.newFile("instructions.bin").toPath();
+        try (BinaryInstructionWriter writer = new BinaryInstructionWriter(file)) {
+            writer.write(instruction("Nikon", Type.BUY, "GBP", "1.11", 3));
+            writer.write(instruction("Canon", Type.SELL, "AED", "0.27", 2));
+            writer.write(instruction("Nikon", Type.SELL, "JPY", "0.0079", 1));
+        }
+
+        try (BinaryInstructionReader reader = new BinaryInstructionReader(file)) {
+            assertEquals(3, reader.getRecordCount());
+
+            Instruction first = reader.next();
+            assertEquals("Nikon", first.getEntity());
+            assertEquals(Type.BUY, first.getType());
+            assertEquals(Currency.getInstance("GBP"), first.getCurrency());
+            assertEquals(JUL_20, first.getInstructionDate());
+            assertEquals(JUL_21, first.getSettlementDate());
+            assertEquals(3, first.getUnits());
+            assertEquals(0, new BigDecimal("100.5").compareTo(first.getPricePerUnit()));
+            assertEquals(0, new BigDecimal("1.11").compareTo(first.getAgreedFx()));
+
+            Instruction second = reader.next();
+            assertEquals("Canon", second.getEntity());
+            assertEquals(Currency.getInstance("AED"), second.getCurrency());
+
+            Instruction third = reader.next();
+            assertEquals("Nikon", third.getEntity());
+            assertEquals(0, new BigDecimal("0.0079").compareTo(third.getAgreedFx()));
+            assertFalse(reader.hasNext());
+        }
+    }
+
+    @Test
+    public void testReadIntoInstructionService() throws IOException {
+        Path file = folder.newFile("instructions.bin").toPath();
+        try (BinaryInstructionWriter writer = new BinaryInstructionWriter(file)) {
+            for (int i = 0; i < 5_000; i++) {
+                writer.write(instruction("Entity" + (i % 100), i % 2 == 0 ? Type.BUY : Type.SELL, "EUR", "0.87", i + 1));
+            }
+        }
+
+        ProcessedInstructions processedInstructions = new ProcessedInstructions();
+        try (BinaryInstructionReader reader = new BinaryInstructionReader(file)) {
+            new InstructionService().addInstructions(reader, processedInstructions);
+        }
+
+        assertEquals(2_500, processedInstructions.getSortedOutgoingInstructions().size());
+        assertEquals(2_500, processedInstructions.getSortedIncomingInstructions().size());
+        assertEquals(5_000, processedInstructions.getSortedIncomingInstructions().firstEntry().getElement().getUnits());
+    }
+
+    @Test
+    public void testHeaderPointingOutsideOfTheFileIsRefused() throws IOException {
+        Path file = folder.newFile("instructions.bin").toPath();
+        try (BinaryInstructionWriter writer = new BinaryInstructionWriter(file)) {
+            writer.write(instruction("Nikon", Type.BUY, "GBP", "1.11", 3));
+        }
+        long dictionaryOffset = BinaryInstructionFormat.HEADER_SIZE + BinaryInstructionFormat.RECORD_SIZE;
+
+        overwrite(file, BinaryInstructionFormat.RECORD_COUNT_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(0, 2));
+        assertRefused(file);
+        overwrite(file, BinaryInstructionFormat.RECORD_COUNT_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(0, 1));
+        overwrite(file, BinaryInstructionFormat.DICTIONARY_OFFSET_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(0, Files.size(file) + 1));
+        assertRefused(file);
+        overwrite(file, BinaryInstructionFormat.DICTIONARY_OFFSET_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(0, dictionaryOffset));
+        //One more name than the dictionary holds
+        overwrite(file, BinaryInstructionFormat.DICTIONARY_SIZE_OFFSET, ByteBuffer.allocate(Integer.BYTES).putInt(0, 2));
+        assertRefused(file);
+        overwrite(file, BinaryInstructionFormat.DICTIONARY_SIZE_OFFSET, ByteBuffer.allocate(Integer.BYTES).putInt(0, 1));
+        //A name longer than what is left of the file
+        overwrite(file, dictionaryOffset, ByteBuffer.allocate(Short.BYTES).putShort(0, (short) 100));
+        assertRefused(file);
+    }
+
+    @Test
+    public void testRecordWithUnknownEntityIsRejected() throws IOException {
+        Path file = folder.newFile("instructions.bin").toPath();
+        try (BinaryInstructionWriter writer = new BinaryInstructionWriter(file)) {
+            writer.write(instruction("Nikon", Type.BUY, "GBP", "1.11", 3));
+            writer.write(instruction("Canon", Type.SELL, "GBP", "1.11", 2));
+        }
+        //Entity id of the second record past the two names of the dictionary
+        overwrite(file, BinaryInstructionFormat.HEADER_SIZE + BinaryInstructionFormat.RECORD_SIZE + BinaryInstructionFormat.ENTITY_ID_OFFSET,
+                ByteBuffer.allocate(Integer.BYTES).putInt(0, 2));
+
+        ProcessedInstructions processedInstructions = new ProcessedInstructions();
+        try (BinaryInstructionReader reader = new BinaryInstructionReader(file)) {
+            new InstructionService().addInstructions(reader, processedInstructions);
+        }
+
+        assertEquals(1, processedInstructions.size());
+        assertEquals("Nikon", processedInstructions.getSortedOutgoingInstructions().firstEntry().getElement().getEntity());
+    }
+
+    private static void overwrite(Path file, long position, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(bytes, position);
+        }
+    }
+
+    private static void assertRefused(Path file) {
+        try (BinaryInstructionReader reader = new BinaryInstructionReader(file)) {
+            fail("A corrupted file should be refused, it has " + reader.getRecordCount() + " records");
+        } catch (IOException e) {
+            //Refused on open
+        }
+    }
+
+    private static Instruction instruction(String entity, Type type, String currency, String agreedFx, int units) {
+        Instruction instruction = new Instruction();
+        instruction.setEntity(entity);
+        instruction.setType(type);
+        instruction.setAgreedFx(new BigDecimal(agreedFx));
+        instruction.setCurrency(Currency.getInstance(currency));
+        instruction.setInstructionDate(JUL_20);
+        instruction.setSettlementDate(JUL_21);
+        instruction.setPricePerUnit(new BigDecimal("100.5"));
+        instruction.setUnits(units);
+        return instruction;
+    }
+}
@@ -0,0 +1,109 @@
+package feed;
+
+import domain.Instruction;
+import domain.SymbolDictionary;
+import domain.Type;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CsvInstructionReaderTest {
+
+    @Test
+    public void testReadInstructions() throws Exception {
+        String feed = "entity,type,agreedFx,currency,instructionDate,settlementDate,units,pricePerUnit\n"
+                + "Nikon,B,1.11,GBP,2018-07-21,2018-07-23,3,100\r\n"
+                + " Canon , S ,0.87,EUR,2018-07-22,2018-07-24,2,99.50";
+
+        List<Instruction> instructions = readAll(new CsvInstructionReader(new StringReader(feed), true));
+
+        assertEquals(2, instructions.size());
+        Instruction nikon = instructions.get(0);
+        assertEquals("Nikon", nikon.getEntity());
+        assertEquals(Type.BUY, nikon.getType());
+        assertEquals(new BigDecimal("1.11"), nikon.getAgreedFx());
+        assertEquals(Currency.getInstance("GBP"), nikon.getCurrency());
+        assertEquals(LocalDate.of(2018, 7, 21), nikon.getInstructionDate());
+        assertEquals(LocalDate.of(2018, 7, 23), nikon.getSettlementDate());
+        assertEquals(3, nikon.getUnits());
+        assertEquals(new BigDecimal("100"), nikon.getPricePerUnit());
+
+        Instruction canon = instructions.get(1);
+        assertEquals("Canon", canon.getEntity());
+        assertEquals(Type.SELL, canon.getType());
+        assertEquals(new BigDecimal("99.50"), canon.getPricePerUnit());
+    }
+
+    @Test
+    public void testSymbolsAreSharedThroughTheDictionary() throws Exception {
+        String feed = "Nikon,B,1.11,GBP,2018-07-21,2018-07-23,3,100\n"
+                + "Nikon,S,1.11,GBP,2018-07-22,2018-07-24,2,99.50\n";
+        Instruction built = new Instruction();
+        built.setEntity(new String("Nikon"));
+        built.setCurrency(Currency.getInstance("GBP"));
+
+        List<Instruction> instructions = readAll(new CsvInstructionReader(new StringReader(feed), false));
+
+        for (Instruction instruction : instructions) {
+            assertEquals(built.getEntityId(), instruction.getEntityId());
+            assertEquals(built.getCurrencyId(), instruction.getCurrencyId());
+            assertSame(built.getEntity(), instruction.getEntity());
+        }
+        assertEquals("Nikon", SymbolDictionary.global().entity(built.getEntityId()));
+        assertEquals(Currency.getInstance("GBP"), SymbolDictionary.global().currency(built.getCurrencyId()));
+    }
+
+    @Test
+    public void testRejectedLinesDoNotStopTheFeed() throws Exception {
+        String feed = "Nikon,X,1.11,GBP,2018-07-21,2018-07-23,3,100\n"
+                + "Canon,B,0.87,EUR,2018-07-22,2018-07-24,2\n"
+                + "\n"
+                + "Sony,B,0.87,EUR,2018-02-30,2018-07-24,2,100\n"
+                + "Fujifilm,S,0.0079,JPY,2018-07-23,2018-07-24,1,1a0\n"
+                + "Leica,S,1.1,ZZZ,2018-07-23,2018-07-24,1,100\n"
+                + "Pentax,S,0.0079,JPY,2018-07-23,2018-07-24,1,100\n";
+        CsvInstructionReader reader = new CsvInstructionReader(new StringReader(feed), false);
+
+        List<Instruction> instructions = readAll(reader);
+
+        assertEquals(1, instructions.size());
+        assertEquals("Pentax", instructions.get(0).getEntity());
+
+        List<RejectedLine> rejectedLines = reader.getRejectedLines();
+        assertEquals(5, rejectedLines.size());
+        assertEquals(1, rejectedLines.get(0).getLineNumber());
+        assertEquals("Type should be B or S", rejectedLines.get(0).getReason());
+        assertEquals("Expected 8 fields but found 7", rejectedLines.get(1).getReason());
+        assertEquals(4, rejectedLines.get(2).getLineNumber());
+        assertEquals("Unexpected character 'a' at column 48", rejectedLines.get(3).getReason());
+        assertEquals("Leica,S,1.1,ZZZ,2018-07-23,2018-07-24,1,100", rejectedLines.get(4).getLine());
+    }
+
+    @Test
+    public void testRejectedLinesLeaveNoEntityInTheDictionary() throws Exception {
+        String feed = "Rejected maker 1,B,1.11,GBP,2018-07-21,2018-07-23,3,1x0\n"
+                + "Rejected maker 2,S,0.87,ZZZ,2018-07-22,2018-07-24,2,100\n";
+        CsvInstructionReader reader = new CsvInstructionReader(new StringReader(feed), false);
+
+        assertEquals(0, readAll(reader).size());
+        assertEquals(2, reader.getRejectedLines().size());
+        assertEquals(SymbolDictionary.UNKNOWN, SymbolDictionary.global().findEntityId("Rejected maker 1"));
+        assertEquals(SymbolDictionary.UNKNOWN, SymbolDictionary.global().findEntityId("Rejected maker 2"));
+    }
+
+    private static List<Instruction> readAll(CsvInstructionReader reader) throws Exception {
+        List<Instruction> instructions = new ArrayList<>();
+        try (reader) {
+            reader.forEachRemaining(instructions::add);
+        }
+        return instructions;
+    }
+}
@@ -0,0 +1,24 @@
+package metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesWithinAFactorOfTwo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMaxNanos());
+        assertEquals(500_500.0, histogram.getMeanNanos(), 0.001);
+        //500 microseconds falls in the bucket [2^18, 2^19)
+        assertEquals((1L << 19) - 1, histogram.getPercentileNanos(50));
+        assertEquals(1_000_000, histogram.getPercentileNanos(99));
+        assertEquals(0, new LatencyHistogram().getPercentileNanos(99));
+    }
+}
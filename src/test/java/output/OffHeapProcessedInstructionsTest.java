@@ -0,0 +1,83 @@
+package output;
+
+import domain.Instruction;
+import domain.InstructionSlabs;
+import domain.Type;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class OffHeapProcessedInstructionsTest {
+
+    private static final LocalDate JUL_23 = LocalDate.of(2018, 7, 23);
+
+    @Test
+    public void testRecordRankingMergesLaterRecordsAfterEqualAmounts() {
+        InstructionSlabs slabs = new InstructionSlabs();
+        RecordRanking ranking = new RecordRanking(slabs);
+        for (int units : new int[]{5, 3, 5, 1}) {
+            ranking.add(slabs.add(instruction("Entity" + slabs.size(), Type.SELL, units, 1)));
+        }
+        assertEquals(Arrays.asList(0, 2, 1, 3), records(ranking));
+
+        //Added after a read, merged with the records already in order
+        for (int units : new int[]{5, 3, 7}) {
+            ranking.add(slabs.add(instruction("Entity" + slabs.size(), Type.SELL, units, 1)));
+        }
+        assertEquals(Arrays.asList(6, 0, 2, 4, 1, 5, 3), records(ranking));
+        ranking.add(slabs.add(instruction("Entity" + slabs.size(), Type.SELL, 1, 1)));
+        assertEquals(Arrays.asList(6, 0, 2, 4, 1, 5, 3, 7), records(ranking));
+    }
+
+    @Test
+    public void testRecordsAcrossSlabs() {
+        //More records than one slab holds
+        int count = 70_000;
+        OffHeapProcessedInstructions offHeapInstructions = new OffHeapProcessedInstructions();
+        ProcessedInstructions processedInstructions = new ProcessedInstructions();
+        for (int i = 0; i < count; i++) {
+            Instruction instruction = instruction("Entity" + i % 1_000, i % 3 == 0 ? Type.BUY : Type.SELL, 1 + i % 50, 1 + i % 997);
+            offHeapInstructions.addNewInstruction(instruction, instruction.getType() == Type.SELL);
+            processedInstructions.addNewInstruction(instruction.copy(), instruction.getType() == Type.SELL);
+        }
+
+        assertEquals(count, offHeapInstructions.size());
+        OffHeapProcessedInstructions oneSlab = new OffHeapProcessedInstructions();
+        oneSlab.addNewInstruction(instruction("Entity0", Type.SELL, 1, 1), true);
+        assertEquals(2 * oneSlab.offHeapBytes(), offHeapInstructions.offHeapBytes());
+        List<String> expected = new ArrayList<>();
+        processedInstructions.getSortedIncomingInstructions().forEach(instruction -> expected.add(instruction.getEntity() + " " + instruction.getAmountInUsd()));
+        List<String> actual = new ArrayList<>();
+        offHeapInstructions.getSortedIncomingRecords().forEach(record -> actual.add(record.getEntity() + " " + record.toInstruction().getAmountInUsd()));
+        assertEquals(expected, actual);
+        assertEquals(processedInstructions.getUsdOutgoingAmountPerDate(), offHeapInstructions.getUsdOutgoingAmountPerDate());
+    }
+
+    private static List<Integer> records(RecordRanking ranking) {
+        List<Integer> records = new ArrayList<>();
+        for (int rank = 0; rank < ranking.size(); rank++) {
+            records.add(ranking.get(rank));
+        }
+        return records;
+    }
+
+    private static Instruction instruction(String entity, Type type, int units, int pricePerUnit) {
+        Instruction instruction = new Instruction();
+        instruction.setEntity(entity);
+        instruction.setType(type);
+        instruction.setAgreedFx(BigDecimal.ONE);
+        instruction.setCurrency(Currency.getInstance("USD"));
+        instruction.setInstructionDate(JUL_23);
+        instruction.setSettlementDate(JUL_23.plusDays(units % 5));
+        instruction.setUnits(units);
+        instruction.setPricePerUnit(BigDecimal.valueOf(pricePerUnit));
+        return instruction;
+    }
+}
@@ -0,0 +1,200 @@
+package persistence;
+
+import com.google.common.collect.Multiset;
+import domain.Instruction;
+import domain.Type;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import output.EntityTotals;
+import output.InstructionBook;
+import output.ProcessedInstructions;
+import services.InstructionService;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DurableProcessedInstructionsTest {
+
+    private static final LocalDate JUL_20 = LocalDate.of(2018, 7, 20);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InstructionService instructionService = new InstructionService();
+
+    @Test
+    public void testRecoverFromSnapshotAndJournal() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("book");
+        List<Instruction> instructions = generateInstructions(1_000);
+        ProcessedInstructions expected = instructionService.addInstructions(generateInstructions(1_000));
+
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, 100, 300)) {
+            instructionService.addInstructions(instructions.iterator(), book);
+            book.commit();
+        }
+        //Three snapshots were taken, the journal only holds what came after the last one
+        ProcessedInstructions journaled = new ProcessedInstructions();
+        try (InstructionJournal journal = InstructionJournal.open(directory.resolve(DurableProcessedInstructions.JOURNAL_FILE), 0, journaled)) {
+            assertEquals(1_000, journal.getLastSequence());
+        }
+        assertEquals(100, journaled.size());
+
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, 100, 300)) {
+            assertSameState(limited(expected), book.getProcessedInstructions());
+        }
+    }
+
+    @Test
+    public void testTornJournalRecordIsCutOff() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("book");
+        List<Instruction> instructions = generateInstructions(10);
+
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, DurableProcessedInstructions.NEVER)) {
+            instructionService.addInstructions(instructions.subList(0, 5).iterator(), book);
+        }
+        Path journal = directory.resolve(DurableProcessedInstructions.JOURNAL_FILE);
+        Files.write(journal, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, DurableProcessedInstructions.NEVER)) {
+            assertEquals(5, book.size());
+            instructionService.addInstructions(instructions.subList(5, 10).iterator(), book);
+        }
+        long journalSize = Files.size(journal);
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, DurableProcessedInstructions.NEVER)) {
+            assertSameState(instructionService.addInstructions(generateInstructions(10)), book.getProcessedInstructions());
+        }
+        //Replayed records are not journaled again
+        assertEquals(journalSize, Files.size(journal));
+    }
+
+    @Test
+    public void testAmendmentsAndCancellationsAreRecovered() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("book");
+        List<Instruction> instructions = generateInstructions(500);
+        List<Instruction> amendments = generateInstructions(20);
+        for (int i = 0; i < 500; i++) {
+            instructions.get(i).setId("T" + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            amendments.get(i).setId("T" + (10 * i));
+            amendments.get(i).setUnits(amendments.get(i).getUnits() + 1);
+        }
+        ProcessedInstructions expected = new ProcessedInstructions();
+
+        //Snapshots are taken halfway through the amendments, the rest is replayed from the journal
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, 510)) {
+            for (InstructionBook target : new InstructionBook[]{book, expected}) {
+                instructionService.addInstructions(instructions.iterator(), target);
+                amendments.forEach(amendment -> instructionService.amendInstruction(amendment, target));
+                for (int i = 1; i < 500; i += 50) {
+                    instructionService.cancelInstruction("T" + i, target);
+                }
+            }
+            assertFalse(book.cancelInstruction("T1"));
+        }
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, 510)) {
+            assertSameState(expected, book.getProcessedInstructions());
+            assertTrue(book.containsInstruction("T0"));
+            assertFalse(book.containsInstruction("T1"));
+        }
+    }
+
+    @Test
+    public void testOnlyAppliedChangesAreJournaled() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("book");
+        List<Instruction> instructions = generateInstructions(10);
+        for (int i = 0; i < 10; i++) {
+            instructions.get(i).setId("T" + i);
+        }
+
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, 100, DurableProcessedInstructions.NEVER)) {
+            instructionService.addInstructions(instructions.iterator(), book);
+            //Replays, and changes the book rejects
+            instructionService.addInstructions(instructions.subList(0, 5).iterator(), book);
+            try {
+                book.cancelInstruction("T0");
+                fail("A book with a ranking limit cannot take instructions out");
+            } catch (IllegalStateException e) {
+                assertTrue(book.containsInstruction("T0"));
+            }
+        }
+        try (InstructionJournal journal = InstructionJournal.open(directory.resolve(DurableProcessedInstructions.JOURNAL_FILE), 0, new ProcessedInstructions())) {
+            assertEquals(10, journal.getLastSequence());
+        }
+        try (DurableProcessedInstructions book = DurableProcessedInstructions.open(directory, 100, DurableProcessedInstructions.NEVER)) {
+            assertEquals(10, book.size());
+        }
+    }
+
+    private ProcessedInstructions limited(ProcessedInstructions processedInstructions) {
+        ProcessedInstructions limited = new ProcessedInstructions(100);
+        limited.merge(processedInstructions);
+        return limited;
+    }
+
+    private static void assertSameState(ProcessedInstructions expected, ProcessedInstructions actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(entries(expected.getSortedIncomingInstructions().entrySet()), entries(actual.getSortedIncomingInstructions().entrySet()));
+        assertEquals(entries(expected.getSortedOutgoingInstructions().entrySet()), entries(actual.getSortedOutgoingInstructions().entrySet()));
+        assertEquals(expected.getUsdIncomingAmountPerDate(), actual.getUsdIncomingAmountPerDate());
+        assertEquals(expected.getUsdOutgoingAmountPerDate(), actual.getUsdOutgoingAmountPerDate());
+        for (LocalDate date : expected.getUsdIncomingAmountPerDate().keySet()) {
+            assertEquals(entries(expected.getIncomingInstructionsOn(date).entrySet()), entries(actual.getIncomingInstructionsOn(date).entrySet()));
+        }
+        assertEquals(expected.getUsdNetPositionBetween(JUL_20, JUL_20.plusDays(5)), actual.getUsdNetPositionBetween(JUL_20, JUL_20.plusDays(5)));
+        assertEquals(totals(expected.getEntitiesByIncomingAmount()), totals(actual.getEntitiesByIncomingAmount()));
+        assertEquals(totals(expected.getEntitiesByOutgoingAmount()), totals(actual.getEntitiesByOutgoingAmount()));
+    }
+
+    private static List<String> entries(Iterable<Multiset.Entry<Instruction>> entries) {
+        List<String> descriptions = new ArrayList<>();
+        for (Multiset.Entry<Instruction> entry : entries) {
+            Instruction instruction = entry.getElement();
+            descriptions.add(instruction.getEntity() + " " + instruction.getSettlementDate() + " " + instruction.getAmountInUsd() + " x" + entry.getCount());
+        }
+        return descriptions;
+    }
+
+    private static List<String> totals(Iterable<EntityTotals> entities) {
+        List<String> descriptions = new ArrayList<>();
+        for (EntityTotals totals : entities) {
+            descriptions.add(totals.getEntity() + " " + totals.getUsdIncomingAmount() + " " + totals.getUsdOutgoingAmount()
+                    + " " + totals.getIncomingCount() + " " + totals.getOutgoingCount());
+        }
+        return descriptions;
+    }
+
+    private static List<Instruction> generateInstructions(int count) {
+        Random random = new Random(42);
+        String[] currencies = {"GBP", "EUR", "AED", "SAR", "USD"};
+        List<Instruction> instructions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Instruction instruction = new Instruction();
+            //Few entities and amounts, so rankings hold ties
+            instruction.setEntity("Entity" + random.nextInt(20));
+            instruction.setType(random.nextBoolean() ? Type.BUY : Type.SELL);
+            instruction.setAgreedFx(BigDecimal.valueOf(1 + random.nextInt(3), 1));
+            instruction.setCurrency(Currency.getInstance(currencies[random.nextInt(currencies.length)]));
+            instruction.setInstructionDate(JUL_20);
+            instruction.setSettlementDate(JUL_20.plusDays(random.nextInt(10)));
+            instruction.setPricePerUnit(BigDecimal.valueOf(random.nextInt(20)));
+            instruction.setUnits(1 + random.nextInt(5));
+            instructions.add(instruction);
+        }
+        return instructions;
+    }
+}
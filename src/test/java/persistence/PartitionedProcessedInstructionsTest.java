@@ -0,0 +1,148 @@
+package persistence;
+
+import com.google.common.collect.Multiset;
+import domain.Instruction;
+import domain.Type;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import output.ProcessedInstructions;
+import services.InstructionService;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionedProcessedInstructionsTest {
+
+    private static final LocalDate JUL_20 = LocalDate.of(2018, 7, 20);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public ExpectedException expectedEx = ExpectedException.none();
+
+    private final InstructionService instructionService = new InstructionService();
+
+    @Test
+    public void testSettledPartitionsAreArchivedAndReadLazily() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("partitions");
+        LocalDate firstActiveDate = JUL_20.plusDays(5);
+        ProcessedInstructions expected = instructionService.addInstructions(generateInstructions(1_000));
+
+        PartitionedProcessedInstructions partitioned = PartitionedProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, 2, PartitionedProcessedInstructions.FOREVER);
+        instructionService.addInstructions(generateInstructions(1_000).iterator(), partitioned);
+        assertTrue(partitioned.applyRetention(firstActiveDate.plusDays(2)) > 0);
+
+        assertEquals(firstActiveDate, partitioned.getActivePartitions().firstKey());
+        assertEquals(partitioned.getArchivedDates(), expected.getUsdIncomingAmountPerDate().headMap(firstActiveDate).keySet());
+        assertEquals(expected.size(), partitioned.size());
+        assertEquals(expected.getUsdIncomingAmountPerDate(), partitioned.getUsdIncomingAmountPerDate());
+        assertEquals(expected.getUsdNetPositionBetween(JUL_20, JUL_20.plusDays(9)), partitioned.getUsdNetPositionBetween(JUL_20, JUL_20.plusDays(9)));
+        LocalDate archivedDate = partitioned.getArchivedDates().first();
+        assertEquals(entries(expected.getIncomingInstructionsOn(archivedDate).entrySet()), entries(partitioned.getIncomingInstructionsOn(archivedDate).entrySet()));
+        List<String> activeRanking = new ArrayList<>();
+        for (Instruction instruction : expected.getSortedOutgoingInstructions()) {
+            if (!instruction.getSettlementDate().isBefore(firstActiveDate)) {
+                activeRanking.add(instruction.getEntity() + " " + instruction.getSettlementDate() + " " + instruction.getAmountInUsd());
+            }
+        }
+        List<String> partitionedRanking = new ArrayList<>();
+        for (Instruction instruction : partitioned.getSortedOutgoingInstructions()) {
+            partitionedRanking.add(instruction.getEntity() + " " + instruction.getSettlementDate() + " " + instruction.getAmountInUsd());
+        }
+        assertEquals(activeRanking, partitionedRanking);
+
+        //Only the totals of the archived dates are read when the directory is opened again
+        PartitionedProcessedInstructions reopened = PartitionedProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, 2, PartitionedProcessedInstructions.FOREVER);
+        assertEquals(partitioned.getArchivedDates(), reopened.getArchivedDates());
+        assertEquals(expected.getUsdOutgoingAmountPerDate().headMap(firstActiveDate), reopened.getUsdOutgoingAmountPerDate());
+    }
+
+    @Test
+    public void testIdsOfArchivedInstructionsAreKnown() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("partitions");
+        LocalDate firstActiveDate = JUL_20.plusDays(5);
+        PartitionedProcessedInstructions partitioned = PartitionedProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, 2, PartitionedProcessedInstructions.FOREVER);
+        List<Instruction> input = withIds(generateInstructions(1_000));
+        instructionService.addInstructions(input.iterator(), partitioned);
+        partitioned.applyRetention(firstActiveDate.plusDays(2));
+        Instruction archived = input.stream().filter(instruction -> instruction.getSettlementDate().isBefore(firstActiveDate)).findFirst().get();
+        Path segment = directory.resolve(archived.getSettlementDate() + PartitionedProcessedInstructions.SEGMENT_EXTENSION);
+
+        //Replays of archived instructions are ignored without reading their segment back, active ones were not kept
+        PartitionedProcessedInstructions reopened = PartitionedProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, 2, PartitionedProcessedInstructions.FOREVER);
+        assertTrue(reopened.containsInstruction(archived.getId()));
+        assertFalse(reopened.containsInstruction("Unknown"));
+        instructionService.addInstructions(withIds(generateInstructions(1_000)).iterator(), reopened);
+        assertEquals(input.size(), reopened.size());
+        assertFalse(reopened.getActivePartitions().containsKey(archived.getSettlementDate()));
+
+        //Cancelling reads the partition back, its segment stays until the partition is archived again
+        assertTrue(instructionService.cancelInstruction(archived.getId(), reopened));
+        assertFalse(reopened.containsInstruction(archived.getId()));
+        assertTrue(reopened.getActivePartitions().containsKey(archived.getSettlementDate()));
+        assertTrue(Files.exists(segment));
+        reopened.applyRetention(firstActiveDate.plusDays(2));
+        assertFalse(reopened.getActivePartitions().containsKey(archived.getSettlementDate()));
+
+        PartitionedProcessedInstructions recovered = PartitionedProcessedInstructions.open(directory, ProcessedInstructions.UNLIMITED, 2, PartitionedProcessedInstructions.FOREVER);
+        assertFalse(recovered.containsInstruction(archived.getId()));
+        assertEquals(input.size() - 1, recovered.size() + reopened.getActivePartitions().values().stream().mapToLong(ProcessedInstructions::size).sum());
+        assertEquals(reopened.getUsdIncomingAmountPerDate().headMap(firstActiveDate), recovered.getUsdIncomingAmountPerDate());
+    }
+
+    @Test
+    public void testOpenRejectsNoDaysInMemory() throws IOException {
+        expectedEx.expect(IllegalArgumentException.class);
+        PartitionedProcessedInstructions.open(folder.getRoot().toPath(), ProcessedInstructions.UNLIMITED, 0, PartitionedProcessedInstructions.FOREVER);
+    }
+
+    private static List<String> entries(Iterable<Multiset.Entry<Instruction>> entries) {
+        List<String> descriptions = new ArrayList<>();
+        for (Multiset.Entry<Instruction> entry : entries) {
+            Instruction instruction = entry.getElement();
+            descriptions.add(instruction.getEntity() + " " + instruction.getSettlementDate() + " " + instruction.getAmountInUsd() + " x" + entry.getCount());
+        }
+        return descriptions;
+    }
+
+    private static List<Instruction> withIds(List<Instruction> instructions) {
+        for (int i = 0; i < instructions.size(); i++) {
+            instructions.get(i).setId("T" + i);
+        }
+        return instructions;
+    }
+
+    private static List<Instruction> generateInstructions(int count) {
+        Random random = new Random(42);
+        String[] currencies = {"GBP", "EUR", "AED", "SAR", "USD"};
+        List<Instruction> instructions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Instruction instruction = new Instruction();
+            //Few entities and amounts, so rankings hold ties
+            instruction.setEntity("Entity" + random.nextInt(20));
+            instruction.setType(random.nextBoolean() ? Type.BUY : Type.SELL);
+            instruction.setAgreedFx(BigDecimal.valueOf(1 + random.nextInt(3), 1));
+            instruction.setCurrency(Currency.getInstance(currencies[random.nextInt(currencies.length)]));
+            instruction.setInstructionDate(JUL_20);
+            instruction.setSettlementDate(JUL_20.plusDays(random.nextInt(10)));
+            instruction.setPricePerUnit(BigDecimal.valueOf(random.nextInt(20)));
+            instruction.setUnits(1 + random.nextInt(5));
+            instructions.add(instruction);
+        }
+        return instructions;
+    }
+}
@@ -0,0 +1,176 @@
+package server;
+
+import domain.Instruction;
+import domain.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import output.ProcessedInstructions;
+import services.InstructionService;
+import services.ReportService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueryServerTest {
+
+    private static final LocalDate JUL_23 = LocalDate.of(2018, 7, 23);
+
+    private final InstructionService instructionService = new InstructionService();
+    private ProcessedInstructions processedInstructions;
+    private ThreadPoolExecutor executor;
+    private QueryServer queryServer;
+
+    @Before
+    public void setUp() throws IOException {
+        List<Instruction> instructions = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            Instruction instruction = new Instruction();
+            instruction.setEntity("Entity" + i);
+            instruction.setType(i % 2 == 0 ? Type.SELL : Type.BUY);
+            instruction.setAgreedFx(BigDecimal.ONE);
+            instruction.setCurrency(Currency.getInstance("USD"));
+            instruction.setInstructionDate(JUL_23);
+            instruction.setSettlementDate(JUL_23.plusDays(i % 5));
+            instruction.setUnits(1 + i % 7);
+            instruction.setPricePerUnit(BigDecimal.valueOf(i));
+            instructions.add(instruction);
+        }
+        processedInstructions = instructionService.addInstructions(instructions);
+        executor = QueryServer.boundedExecutor(2, 16);
+        queryServer = QueryServer.start(processedInstructions, new InetSocketAddress("localhost", 0), executor);
+    }
+
+    @After
+    public void tearDown() {
+        queryServer.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRankingsServedAsJson() throws IOException {
+        StringWriter expected = new StringWriter();
+        ReportService reportService = new ReportService(expected, ReportService.Format.JSON);
+        reportService.writeIncomingRanking(processedInstructions, 10, 5);
+        reportService.writeOutgoingByDate(processedInstructions, JUL_23, 0, ReportService.UNLIMITED);
+        reportService.flush();
+
+        //Small pages come from the cache, the whole date is streamed
+        String actual = get("/rankings/incoming?offset=10&limit=5") + get("/dates/2018-07-23/outgoing?limit=100000");
+        assertEquals(expected.toString(), actual);
+
+        //Changes made under the write lock are seen by the next query
+        Instruction largest = new Instruction();
+        largest.setEntity("Largest");
+        largest.setType(Type.SELL);
+        largest.setAgreedFx(BigDecimal.ONE);
+        largest.setCurrency(Currency.getInstance("USD"));
+        largest.setInstructionDate(JUL_23);
+        largest.setSettlementDate(JUL_23);
+        largest.setUnits(1);
+        largest.setPricePerUnit(BigDecimal.valueOf(1_000_000));
+        queryServer.getLock().writeLock().lock();
+        try {
+            instructionService.addInstruction(largest, processedInstructions);
+        } finally {
+            queryServer.getLock().writeLock().unlock();
+        }
+        assertTrue(get("/rankings/incoming?limit=1").contains("\"entity\":\"Largest\""));
+    }
+
+    @Test
+    public void testTotalsPerDate() throws IOException {
+        StringBuilder expected = new StringBuilder("{\"totals\":[");
+        for (LocalDate date = JUL_23.plusDays(1); !date.isAfter(JUL_23.plusDays(2)); date = date.plusDays(1)) {
+            expected.append(date.equals(JUL_23.plusDays(1)) ? "" : ",").append("{\"settlementDate\":\"").append(date)
+                    .append("\",\"amountInUsd\":").append(processedInstructions.getUsdOutgoingAmountPerDate().get(date).setScale(2).toPlainString()).append('}');
+        }
+        expected.append("]}\n");
+
+        assertEquals(expected.toString(), get("/totals/outgoing?from=2018-07-24&to=2018-07-25"));
+    }
+
+    @Test
+    public void testInvalidQueries() throws IOException {
+        assertEquals(404, status("/positions"));
+        assertEquals(400, status("/rankings/sideways"));
+        assertEquals(400, status("/dates/2018-13-01/incoming"));
+        assertEquals(400, status("/rankings/incoming?limit=-1"));
+        assertEquals(400, status("/rankings/incoming?limit=" + (QueryServer.MAX_STREAMED_ROWS + 1)));
+    }
+
+    @Test
+    public void testQueriesBeyondTheQueueAreRejected() throws Exception {
+        ThreadPoolExecutor singleThread = QueryServer.boundedExecutor(1, 1);
+        QueryServer busyServer = QueryServer.start(processedInstructions, new InetSocketAddress("localhost", 0), singleThread, 1024);
+        List<Thread> clients = new ArrayList<>();
+        List<Integer> statuses = Collections.synchronizedList(new ArrayList<>());
+        //Holding the write lock keeps the first query running and the second one queued
+        busyServer.getLock().writeLock().lock();
+        try {
+            for (int i = 0; i < 2; i++) {
+                Thread client = new Thread(() -> {
+                    try {
+                        statuses.add(status(busyServer, "/rankings/incoming"));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                client.start();
+                clients.add(client);
+                while (singleThread.getActiveCount() + singleThread.getQueue().size() <= i) {
+                    Thread.sleep(1);
+                }
+            }
+            assertEquals(503, status(busyServer, "/rankings/incoming"));
+        } finally {
+            busyServer.getLock().writeLock().unlock();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        assertEquals(Arrays.asList(200, 200), statuses);
+        busyServer.close();
+        singleThread.shutdown();
+    }
+
+    private String get(String query) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + queryServer.getPort() + query).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            assertEquals(200, connection.getResponseCode());
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private int status(String query) throws IOException {
+        return status(queryServer, query);
+    }
+
+    private static int status(QueryServer server, String query) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + query).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
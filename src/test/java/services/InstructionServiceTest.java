@@ -2,24 +2,57 @@ package services;
 
 import com.google.common.collect.TreeMultiset;
 import domain.Instruction;
+import domain.InstructionBatch;
 import domain.Type;
+import metrics.InstructionMetrics;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import output.ConcurrentProcessedInstructions;
+import output.EntityTotals;
+import output.InstructionRecord;
+import output.OffHeapProcessedInstructions;
+import output.ProcessedBatch;
 import output.ProcessedInstructions;
+import utils.HolidayCalendar;
+import utils.SettlementCalendar;
+import utils.SettlementCalendars;
 
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class InstructionServiceTest {
 
@@ -45,7 +78,7 @@ public class InstructionServiceTest {
         instruction1 = new Instruction();
         instruction1.setEntity("Nikon");
         instruction1.setType(Type.BUY);
-        instruction1.setAgreedFx(new BigDecimal(1.11));
+        instruction1.setAgreedFx(new BigDecimal("1.11"));
         instruction1.setCurrency(Currency.getInstance("GBP"));
         instruction1.setInstructionDate(JUL_21);
         instruction1.setPricePerUnit(new BigDecimal(100));
@@ -54,7 +87,7 @@ public class InstructionServiceTest {
         instruction2 = new Instruction();
         instruction2.setEntity("Canon");
         instruction2.setType(Type.BUY);
-        instruction2.setAgreedFx(new BigDecimal(0.87));
+        instruction2.setAgreedFx(new BigDecimal("0.87"));
         instruction2.setCurrency(Currency.getInstance("EUR"));
         instruction2.setInstructionDate(JUL_22);
         instruction2.setPricePerUnit(new BigDecimal(100));
@@ -63,7 +96,7 @@ public class InstructionServiceTest {
         instruction3 = new Instruction();
         instruction3.setEntity("Fujifilm");
         instruction3.setType(Type.BUY);
-        instruction3.setAgreedFx(new BigDecimal(0.0079));
+        instruction3.setAgreedFx(new BigDecimal("0.0079"));
         instruction3.setCurrency(Currency.getInstance("JPY"));
         instruction3.setInstructionDate(JUL_23);
         instruction3.setPricePerUnit(new BigDecimal(100));
@@ -143,6 +176,23 @@ public class InstructionServiceTest {
         assertEquals(JUL_22, instructions[0].getSettlementDate());
     }
 
+    @Test
+    public void testAddInstructions_WithSettlementOnWeekendFollowedByHoliday() {
+        SettlementCalendars calendars = SettlementCalendars.weekendsOnly();
+        calendars.register(Currency.getInstance("GBP"),
+                new SettlementCalendar(SettlementCalendars.MONDAY_TO_FRIDAY, HolidayCalendar.of(Collections.singleton(JUL_23))));
+        //Saturday, the following Monday is a holiday
+        instruction1.setSettlementDate(JUL_21);
+        //Same dates in euros, without holidays
+        instruction2.setSettlementDate(JUL_21);
+
+        new InstructionService(calendars).addInstructions(Arrays.asList(instruction1, instruction2));
+
+        //Check settlement date has changed to the next Tuesday
+        assertEquals(JUL_24, instruction1.getSettlementDate());
+        assertEquals(JUL_23, instruction2.getSettlementDate());
+    }
+
     @Test
     public void testAddInstructions_AreOrderedByUsdAmount_In_Outcoming() {
         instruction3.setSettlementDate(JUL_23);
@@ -234,4 +284,628 @@ public class InstructionServiceTest {
         BigDecimal amountInUsdInstruction3 = InstructionService.getAmountInUSD(instruction3);
         assertEquals(amountInUsdInstruction2.add(amountInUsdInstruction3), actualAmountAprForth);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAddInstructions_IndexedBySettlementDate() {
+        instruction1.setSettlementDate(JUL_24);
+        instruction2.setSettlementDate(JUL_23);
+        instruction3.setSettlementDate(JUL_24);
+
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(Arrays.asList(instruction3, instruction2, instruction1));
+
+        //Check each date only holds its own instructions, ordered by amount in USD
+        assertArrayEquals(new Instruction[]{instruction1, instruction3}, processedInstructions.getOutgoingInstructionsOn(JUL_24).toArray());
+        assertArrayEquals(new Instruction[]{instruction2}, processedInstructions.getOutgoingInstructionsOn(JUL_23).toArray());
+
+        //Check dates without instructions are empty
+        Assert.assertTrue(processedInstructions.getOutgoingInstructionsOn(JUL_20).isEmpty());
+        Assert.assertTrue(processedInstructions.getIncomingInstructionsOn(JUL_24).isEmpty());
+    }
+
+    @Test
+    public void testAddInstructions_AmountTooLargeForFixedPoint() {
+        instruction1.setPricePerUnit(new BigDecimal("9000000000000"));
+        instruction1.setUnits(1_000);
+        instruction1.setSettlementDate(JUL_24);
+        instruction2.setSettlementDate(JUL_24);
+        instruction3.setSettlementDate(JUL_24);
+
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(Arrays.asList(instruction3, instruction1, instruction2));
+
+        //Check the amount falls back to BigDecimal and keeps its place in the ranking
+        Assert.assertFalse(instruction1.isUsdSortKeyExact());
+        assertEquals(new BigDecimal("9990000000000000.000000"), instruction1.getAmountInUsd());
+        assertArrayEquals(new Instruction[]{instruction1, instruction2, instruction3}, processedInstructions.getSortedOutgoingInstructions().toArray());
+
+        //Check the total for the date is exact
+        BigDecimal expectedTotal = instruction1.getAmountInUsd().add(instruction2.getAmountInUsd()).add(instruction3.getAmountInUsd());
+        assertEquals(expectedTotal, processedInstructions.getUsdOutgoingAmountPerDate().get(JUL_24));
+    }
+
+    @Test
+    public void testCancelInstruction_WindowTotalsOnceTheAmountTooLargeIsCancelled() {
+        instruction1.setPricePerUnit(new BigDecimal("9000000000000"));
+        instruction1.setUnits(1_000);
+        instruction1.setId("T1");
+        instruction1.setSettlementDate(JUL_24);
+        instruction2.setSettlementDate(JUL_24);
+        instruction3.setSettlementDate(JUL_24);
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(Arrays.asList(instruction1, instruction2, instruction3));
+
+        //Totals over windows are walked per date while they do not fit, then indexed again
+        assertTrue(instructionService.cancelInstruction("T1", processedInstructions));
+        instructionService.addInstructions(Collections.singletonList(instruction1.copy()).iterator(), processedInstructions);
+        assertTrue(instructionService.cancelInstruction("T1", processedInstructions));
+
+        BigDecimal expectedTotal = instruction2.getAmountInUsd().add(instruction3.getAmountInUsd());
+        assertEquals(expectedTotal, processedInstructions.getUsdOutgoingAmountBetween(JUL_20, JUL_24));
+    }
+
+    @Test
+    public void testAddInstructions_AmountRoundedOnceAndNegativesRejected() {
+        //Rounding the price to 6 decimals first would give 0
+        instruction1.setPricePerUnit(new BigDecimal("0.0000004"));
+        instruction1.setUnits(10);
+        instruction1.setAgreedFx(new BigDecimal("1.25"));
+        instruction1.setSettlementDate(JUL_24);
+        instruction2.setPricePerUnit(new BigDecimal("-1"));
+        instruction2.setSettlementDate(JUL_24);
+        instruction3.setSettlementDate(JUL_24);
+
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(Arrays.asList(instruction1, instruction2, instruction3));
+
+        assertTrue(instruction1.isUsdSortKeyExact());
+        assertEquals(new BigDecimal("0.000005"), instruction1.getAmountInUsd());
+        assertArrayEquals(new Instruction[]{instruction3, instruction1}, processedInstructions.getSortedOutgoingInstructions().toArray());
+    }
+
+    @Test
+    public void testAddInstructions_KeepsOnlyTopRankedWithExactTotals() {
+        instruction1.setSettlementDate(JUL_24);
+        instruction2.setSettlementDate(JUL_24);
+        instruction3.setSettlementDate(JUL_23);
+        ProcessedInstructions processedInstructions = new ProcessedInstructions(1);
+
+        instructionService.addInstructions(Arrays.asList(instruction3, instruction2, instruction1).iterator(), processedInstructions);
+
+        //Check only the largest amount is ranked, overall and per date
+        assertArrayEquals(new Instruction[]{instruction1}, processedInstructions.getSortedOutgoingInstructions().toArray());
+        assertArrayEquals(new Instruction[]{instruction1}, processedInstructions.getOutgoingInstructionsOn(JUL_24).toArray());
+        assertArrayEquals(new Instruction[]{instruction3}, processedInstructions.getOutgoingInstructionsOn(JUL_23).toArray());
+
+        //Check totals still include every instruction
+        assertEquals(instruction1.getAmountInUsd().add(instruction2.getAmountInUsd()),
+                processedInstructions.getUsdOutgoingAmountPerDate().get(JUL_24));
+    }
+
+    @Test
+    public void testAddInstructions_TopRankedSameAsFullRanking() {
+        ProcessedInstructions full = instructionService.addInstructions(generateInstructions(10_000));
+        ProcessedInstructions top = new ProcessedInstructions(100);
+        instructionService.addInstructions(generateInstructions(10_000).iterator(), top);
+
+        assertEquals(100, top.getSortedIncomingInstructions().size());
+        assertEquals(entities(full.getSortedIncomingInstructions()).subList(0, 100), entities(top.getSortedIncomingInstructions()));
+        assertEquals(full.getUsdIncomingAmountPerDate(), top.getUsdIncomingAmountPerDate());
+    }
+
+    @Test
+    public void testAddInstructions_TotalsPerEntity() {
+        instruction1.setSettlementDate(JUL_23);
+        instruction2.setSettlementDate(JUL_24);
+        instruction2.setEntity("Nikon");
+        instruction3.setSettlementDate(JUL_24);
+        instruction3.setType(Type.SELL);
+
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(Arrays.asList(instruction3, instruction2, instruction1));
+
+        //Check Nikon bought twice
+        EntityTotals nikon = processedInstructions.getEntityTotals("Nikon");
+        assertEquals(2, nikon.getOutgoingCount());
+        assertEquals(0, nikon.getIncomingCount());
+        assertEquals(instruction1.getAmountInUsd().add(instruction2.getAmountInUsd()), nikon.getUsdOutgoingAmount());
+
+        //Check entities are ranked by their totals
+        assertEquals(Collections.singletonList("Nikon"),
+                processedInstructions.getEntitiesByOutgoingAmount().stream().map(EntityTotals::getEntity).collect(Collectors.toList()));
+        assertEquals(Collections.singletonList("Fujifilm"),
+                processedInstructions.getEntitiesByIncomingAmount().stream().map(EntityTotals::getEntity).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testAddInstructionsInParallel_SameEntityRanking() {
+        ProcessedInstructions sequential = instructionService.addInstructions(generateEntityInstructions(20_000));
+        ProcessedInstructions parallel;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel = instructionService.addInstructionsInParallel(generateEntityInstructions(20_000), pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        List<String> sequentialRanking = sequential.getEntitiesByIncomingAmount().stream().map(EntityTotals::getEntity).collect(Collectors.toList());
+        assertEquals(100, sequentialRanking.size());
+        assertEquals(sequentialRanking,
+                parallel.getEntitiesByIncomingAmount().stream().map(EntityTotals::getEntity).collect(Collectors.toList()));
+        assertEquals(sequential.getEntityTotals("Entity7").getUsdIncomingAmount(), parallel.getEntityTotals("Entity7").getUsdIncomingAmount());
+    }
+
+    private static List<Instruction> generateEntityInstructions(int count) {
+        List<Instruction> instructions = generateInstructions(count);
+        for (int i = 0; i < count; i++) {
+            instructions.get(i).setEntity("Entity" + (i % 100));
+        }
+        return instructions;
+    }
+
+    @Test
+    public void testAddInstructions_AmountsOverDateWindows() {
+        List<Instruction> input = generateInstructions(5_000);
+        //Far away dates widen the indexed window
+        input.get(10).setSettlementDate(LocalDate.of(2030, 1, 2));
+        input.get(20).setSettlementDate(LocalDate.of(2001, 1, 2));
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(input);
+
+        for (LocalDate from = JUL_20.minusDays(2); from.isBefore(JUL_20.plusDays(14)); from = from.plusDays(3)) {
+            LocalDate to = from.plusDays(4);
+            BigDecimal incoming = sum(processedInstructions.getUsdIncomingAmountPerDate().subMap(from, to.plusDays(1)).values());
+            BigDecimal outgoing = sum(processedInstructions.getUsdOutgoingAmountPerDate().subMap(from, to.plusDays(1)).values());
+            assertEquals(incoming, processedInstructions.getUsdIncomingAmountBetween(from, to));
+            assertEquals(outgoing, processedInstructions.getUsdOutgoingAmountBetween(from, to));
+            assertEquals(incoming.subtract(outgoing), processedInstructions.getUsdNetPositionBetween(from, to));
+        }
+        BigDecimal allIncoming = sum(processedInstructions.getUsdIncomingAmountPerDate().values());
+        assertEquals(allIncoming, processedInstructions.getUsdIncomingAmountBetween(LocalDate.MIN, LocalDate.of(9999, 1, 1)));
+    }
+
+    private static BigDecimal sum(Collection<BigDecimal> amounts) {
+        return amounts.stream().reduce(new BigDecimal("0.000000"), BigDecimal::add);
+    }
+
+    @Test
+    public void testAddInstructionsInParallel_SameResultAsSequential() {
+        List<Instruction> sequentialInput = generateInstructions(20_000);
+        List<Instruction> parallelInput = generateInstructions(20_000);
+
+        ProcessedInstructions sequential = instructionService.addInstructions(sequentialInput);
+        ProcessedInstructions parallel;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel = instructionService.addInstructionsInParallel(parallelInput, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(entities(sequential.getSortedIncomingInstructions()), entities(parallel.getSortedIncomingInstructions()));
+        assertEquals(entities(sequential.getSortedOutgoingInstructions()), entities(parallel.getSortedOutgoingInstructions()));
+        assertEquals(sequential.getUsdIncomingAmountPerDate(), parallel.getUsdIncomingAmountPerDate());
+        assertEquals(sequential.getUsdOutgoingAmountPerDate(), parallel.getUsdOutgoingAmountPerDate());
+        assertEquals(entities(sequential.getOutgoingInstructionsOn(JUL_23)), entities(parallel.getOutgoingInstructionsOn(JUL_23)));
+    }
+
+    @Test
+    public void testAddInstructions_StreamedIntoExistingResult() {
+        instruction1.setSettlementDate(JUL_23);
+        instruction2.setSettlementDate(JUL_24);
+        instruction3.setSettlementDate(JUL_24);
+        ProcessedInstructions processedInstructions = new ProcessedInstructions();
+
+        instructionService.addInstructions(Stream.of(instruction3, instruction1), processedInstructions);
+        instructionService.addInstructions(Collections.singletonList(instruction2).iterator(), processedInstructions);
+
+        TreeMultiset<Instruction> outcomingInstructions = processedInstructions.getSortedOutgoingInstructions();
+        assertArrayEquals(new Instruction[]{instruction1, instruction2, instruction3}, outcomingInstructions.toArray());
+    }
+
+    @Test
+    public void testAddInstructions_FromPublisher() throws Exception {
+        List<Instruction> sequentialInput = generateInstructions(1_000);
+        List<Instruction> publishedInput = generateInstructions(1_000);
+
+        InstructionSubscriber<ProcessedInstructions> subscriber = instructionService.subscriber(new ProcessedInstructions(), 16);
+        try (SubmissionPublisher<Instruction> publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), 32)) {
+            publisher.subscribe(subscriber);
+            publishedInput.forEach(publisher::submit);
+        }
+        ProcessedInstructions published = subscriber.getCompletion().get(10, TimeUnit.SECONDS);
+        ProcessedInstructions sequential = instructionService.addInstructions(sequentialInput);
+
+        assertEquals(entities(sequential.getSortedIncomingInstructions()), entities(published.getSortedIncomingInstructions()));
+        assertEquals(sequential.getUsdOutgoingAmountPerDate(), published.getUsdOutgoingAmountPerDate());
+    }
+
+    @Test
+    public void testAddInstructions_FromPublisherFailsOnBookError() throws Exception {
+        IllegalStateException failure = new IllegalStateException("Book is closed");
+        ProcessedInstructions failingBook = new ProcessedInstructions() {
+            @Override
+            public boolean addNewInstruction(Instruction instruction, boolean incoming) {
+                throw failure;
+            }
+        };
+
+        InstructionSubscriber<ProcessedInstructions> subscriber = instructionService.subscriber(failingBook, 16);
+        try (SubmissionPublisher<Instruction> publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), 32)) {
+            publisher.subscribe(subscriber);
+            generateInstructions(100).forEach(publisher::submit);
+        }
+        try {
+            subscriber.getCompletion().get(10, TimeUnit.SECONDS);
+            Assert.fail("Completion should fail with the book error");
+        } catch (ExecutionException e) {
+            assertEquals(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testAddInstructions_FromSeveralThreadsIntoConcurrentResult() throws Exception {
+        List<Instruction> sequentialInput = generateInstructions(8_000);
+        List<Instruction> concurrentInput = generateInstructions(8_000);
+
+        ConcurrentProcessedInstructions concurrent = new ConcurrentProcessedInstructions();
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 4; i++) {
+            List<Instruction> slice = concurrentInput.subList(i * 2_000, (i + 1) * 2_000);
+            writers.execute(() -> instructionService.addInstructions(slice.iterator(), concurrent));
+        }
+        writers.shutdown();
+        Assert.assertTrue(writers.awaitTermination(10, TimeUnit.SECONDS));
+
+        ProcessedInstructions sequential = instructionService.addInstructions(sequentialInput);
+        ProcessedInstructions snapshot = concurrent.snapshot();
+
+        assertEquals(8_000, concurrent.size());
+        //Equal amounts arrive in another order from several threads
+        assertEquals(amounts(sequential.getSortedIncomingInstructions()), amounts(snapshot.getSortedIncomingInstructions()));
+        assertEquals(amounts(sequential.getSortedOutgoingInstructions()), amounts(snapshot.getSortedOutgoingInstructions()));
+        assertEquals(sequential.getUsdIncomingAmountPerDate(), concurrent.getUsdIncomingAmountPerDate());
+        assertEquals(sequential.getUsdOutgoingAmountPerDate(), snapshot.getUsdOutgoingAmountPerDate());
+        //Every snapshot is a copy of its own, changing one leaves the book and the next snapshots unchanged
+        snapshot.addIncomingInstruction(sequentialInput.get(0).copy());
+        assertEquals(8_000, concurrent.snapshot().size());
+    }
+
+    @Test
+    public void testProcessBatch_SameRankingAndTotalsAsInstructions() {
+        List<Instruction> input = generateInstructions(5_000);
+        InstructionBatch batch = new InstructionBatch(16);
+        input.forEach(batch::add);
+        //Negative price, rejected without reaching the totals
+        Instruction first = input.get(0);
+        batch.add(first.getEntityId(), first.getType(), first.getCurrencyId(), first.getInstructionDate(),
+                first.getSettlementDate(), first.getUnits(), -1, 1);
+
+        ProcessedBatch processedBatch = instructionService.processBatch(batch);
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(input);
+
+        assertEquals(1, processedBatch.getRejectedCount());
+        assertEquals(processedInstructions.getSortedOutgoingInstructions().size(), processedBatch.getOutgoingCount());
+        int rank = 0;
+        for (Instruction instruction : processedInstructions.getSortedOutgoingInstructions()) {
+            int row = processedBatch.getOutgoingRow(rank++);
+            assertEquals(instruction.getUsdSortKey(), batch.getAmountInUsd(row));
+        }
+        //Rows with the same amount keep the batch order, rows are in input order
+        Assert.assertSame(processedInstructions.getSortedIncomingInstructions().firstEntry().getElement(),
+                input.get(processedBatch.getIncomingRow(0)));
+        assertEquals(processedInstructions.getUsdIncomingAmountPerDate(), processedBatch.getUsdIncomingAmountPerDate());
+        assertEquals(processedInstructions.getUsdOutgoingAmountPerDate(), processedBatch.getUsdOutgoingAmountPerDate());
+    }
+
+    @Test
+    public void testProcessBatch_SameAmountsAsInstructionsWithMoreThanSixDecimals() {
+        List<Instruction> input = generateInstructions(1_000);
+        Random random = new Random(7);
+        for (Instruction instruction : input) {
+            instruction.setPricePerUnit(BigDecimal.valueOf(random.nextInt(100_000_000), 7 + random.nextInt(3)));
+            instruction.setAgreedFx(BigDecimal.valueOf(1 + random.nextInt(10_000_000), 7));
+        }
+        InstructionBatch batch = new InstructionBatch();
+        input.forEach(batch::add);
+
+        ProcessedBatch processedBatch = instructionService.processBatch(batch);
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(input);
+
+        assertEquals(0, processedBatch.getRejectedCount());
+        for (int row = 0; row < batch.size(); row++) {
+            assertEquals(input.get(row).getUsdSortKey(), batch.getAmountInUsd(row));
+        }
+        assertEquals(processedInstructions.getUsdIncomingAmountPerDate(), processedBatch.getUsdIncomingAmountPerDate());
+        assertEquals(processedInstructions.getUsdOutgoingAmountPerDate(), processedBatch.getUsdOutgoingAmountPerDate());
+    }
+
+    @Test
+    public void testAddInstructions_RecordsMetrics() throws Exception {
+        //Saturday
+        instruction1.setSettlementDate(JUL_21);
+        instruction2.setSettlementDate(JUL_23);
+        instruction3.setSettlementDate(JUL_23);
+        instruction3.setPricePerUnit(null);
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(Arrays.asList(instruction1, instruction2, instruction3));
+
+        InstructionMetrics metrics = instructionService.getMetrics();
+        assertEquals(1, metrics.getAcceptedCount(Currency.getInstance("GBP")));
+        assertEquals(1, metrics.getAdjustedCount(Currency.getInstance("GBP")));
+        assertEquals(0, metrics.getAdjustedCount(Currency.getInstance("EUR")));
+        assertEquals(1, metrics.getRejectedCount(Currency.getInstance("JPY")));
+        assertEquals(2, metrics.getAcceptedCount());
+        assertEquals(1, metrics.getIngestionLatency().getCount());
+
+        metrics.registerBook("processed", processedInstructions);
+        metrics.registerMBean("jpmorgan:type=InstructionMetrics,name=test");
+        ObjectName objectName = new ObjectName("jpmorgan:type=InstructionMetrics,name=test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(1L, server.getAttribute(objectName, "RejectedCount"));
+            assertEquals(1, ((TabularData) server.getAttribute(objectName, "BookSizes")).size());
+            assertEquals(2L, metrics.getBookSizes().get("processed").longValue());
+        } finally {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    @Test
+    public void testAddInstructions_OffHeapSameRankingAndTotals() {
+        List<Instruction> input = generateInstructions(5_000);
+        OffHeapProcessedInstructions offHeapInstructions = new OffHeapProcessedInstructions();
+        instructionService.addInstructions(input.iterator(), offHeapInstructions);
+        ProcessedInstructions processedInstructions = instructionService.addInstructions(input);
+
+        assertEquals(processedInstructions.size(), offHeapInstructions.size());
+        List<Long> expectedAmounts = new ArrayList<>();
+        processedInstructions.getSortedIncomingInstructions().forEach(instruction -> expectedAmounts.add(instruction.getUsdSortKey()));
+        List<Long> amounts = new ArrayList<>();
+        offHeapInstructions.getSortedIncomingRecords().forEach(record -> amounts.add(record.getAmountInUsd()));
+        assertEquals(expectedAmounts, amounts);
+
+        LocalDate date = processedInstructions.getUsdOutgoingAmountPerDate().firstKey();
+        InstructionRecord largest = offHeapInstructions.getOutgoingRecordsOn(date).iterator().next();
+        assertEquals(processedInstructions.getOutgoingInstructionsOn(date).firstEntry().getElement().getEntity(), largest.getEntity());
+        assertEquals(processedInstructions.getUsdIncomingAmountPerDate(), offHeapInstructions.getUsdIncomingAmountPerDate());
+        assertEquals(processedInstructions.getUsdOutgoingAmountPerDate(), offHeapInstructions.getUsdOutgoingAmountPerDate());
+        assertEquals(processedInstructions.getUsdNetPositionBetween(JUL_22, JUL_24), offHeapInstructions.getUsdNetPositionBetween(JUL_22, JUL_24));
+    }
+
+    @Test
+    public void testAddInstructions_OffHeapRejectsAmountsTooLargeForFixedPoint() {
+        instruction1.setPricePerUnit(new BigDecimal("9000000000000"));
+        instruction1.setUnits(1_000);
+        instruction1.setSettlementDate(JUL_24);
+        instruction2.setSettlementDate(JUL_24);
+        instruction3.setSettlementDate(JUL_24);
+        InstructionMetrics metrics = new InstructionMetrics();
+        InstructionService service = new InstructionService(SettlementCalendars.weekendsOnly(), metrics);
+        OffHeapProcessedInstructions offHeapInstructions = new OffHeapProcessedInstructions();
+
+        //The feed goes on past the instruction the book cannot hold
+        service.addInstructions(Arrays.asList(instruction3, instruction1, instruction2).iterator(), offHeapInstructions);
+
+        assertEquals(2, offHeapInstructions.size());
+        assertEquals(1, metrics.getRejectedCount(Currency.getInstance("GBP")));
+        assertEquals(instruction2.getAmountInUsd().add(instruction3.getAmountInUsd()), offHeapInstructions.getUsdOutgoingAmountPerDate().get(JUL_24));
+    }
+
+    @Test
+    public void testPipeline_SameResultAsAddedInline() {
+        List<Instruction> input = generateInstructions(50_000);
+        Instruction rejected = input.get(7);
+        rejected.setPricePerUnit(null);
+
+        InstructionMetrics metrics = new InstructionMetrics();
+        ProcessedInstructions processedInstructions;
+        //A small ring makes the publisher wait on the last stage
+        try (InstructionPipeline<ProcessedInstructions> pipeline =
+                     new InstructionService(SettlementCalendars.weekendsOnly(), metrics).pipeline(new ProcessedInstructions(), 64)) {
+            pipeline.publish(input.iterator());
+            processedInstructions = pipeline.flush();
+        }
+
+        assertEquals(input.size() - 1, processedInstructions.size());
+        assertEquals(1, metrics.getRejectedCount());
+        assertEquals(input.size() - 1, metrics.getAcceptedCount());
+        assertEquals(1, metrics.getIngestionLatency().getCount());
+        ProcessedInstructions expected = instructionService.addInstructions(
+                input.stream().filter(instruction -> instruction != rejected).collect(Collectors.toList()));
+        assertEquals(expected.getUsdIncomingAmountPerDate(), processedInstructions.getUsdIncomingAmountPerDate());
+        assertEquals(entities(expected.getSortedOutgoingInstructions()), entities(processedInstructions.getSortedOutgoingInstructions()));
+    }
+
+    @Test
+    public void testReprice_SameRankingAndTotalsAsAddedAtNewRates() {
+        Map<Currency, BigDecimal> rates = new HashMap<>();
+        rates.put(Currency.getInstance("GBP"), new BigDecimal("1.27"));
+        rates.put(Currency.getInstance("EUR"), new BigDecimal("1.05"));
+        List<Instruction> input = generateInstructions(6_000);
+        ProcessedInstructions repriced = instructionService.addInstructions(input.subList(0, 5_000));
+
+        long repricedCount = repriced.reprice(rates);
+        instructionService.addInstructions(input.subList(5_000, 6_000).iterator(), repriced);
+
+        List<Instruction> expectedInput = generateInstructions(6_000);
+        for (Instruction instruction : expectedInput) {
+            if (rates.containsKey(instruction.getCurrency())) {
+                instruction.setAgreedFx(rates.get(instruction.getCurrency()));
+            }
+        }
+        ProcessedInstructions expected = instructionService.addInstructions(expectedInput);
+        assertEquals(input.subList(0, 5_000).stream().filter(instruction -> rates.containsKey(instruction.getCurrency())).count(), repricedCount);
+        assertEquals(entities(expected.getSortedIncomingInstructions()), entities(repriced.getSortedIncomingInstructions()));
+        assertEquals(entities(expected.getOutgoingInstructionsOn(JUL_23)), entities(repriced.getOutgoingInstructionsOn(JUL_23)));
+        assertEquals(expected.getUsdIncomingAmountPerDate(), repriced.getUsdIncomingAmountPerDate());
+        assertEquals(expected.getUsdOutgoingAmountPerDate(), repriced.getUsdOutgoingAmountPerDate());
+        assertEquals(expected.getUsdNetPositionBetween(JUL_22, JUL_24), repriced.getUsdNetPositionBetween(JUL_22, JUL_24));
+        assertEquals(expected.getEntityTotals("Entity7").getUsdOutgoingAmount(), repriced.getEntityTotals("Entity7").getUsdOutgoingAmount());
+        assertEquals(new BigDecimal("1.27"), repriced.getLiveRate(Currency.getInstance("GBP")));
+        //Unchanged rates do not visit any instruction
+        assertEquals(0, repriced.reprice(rates));
+    }
+
+    @Test
+    public void testReprice_MergedBooksAreIndexedByCurrencyOnTheFirstReprice() {
+        Map<Currency, BigDecimal> rates = Collections.singletonMap(Currency.getInstance("GBP"), new BigDecimal("1.27"));
+        List<Instruction> input = withIds(generateInstructions(4_000));
+        ProcessedInstructions merged = instructionService.addInstructions(input.subList(0, 2_000));
+        merged.merge(instructionService.addInstructions(input.subList(2_000, 4_000)));
+
+        assertEquals(input.stream().filter(instruction -> rates.containsKey(instruction.getCurrency())).count(), merged.reprice(rates));
+        assertTrue(instructionService.cancelInstruction("T0", merged));
+        List<Instruction> expectedInput = new ArrayList<>(withIds(generateInstructions(4_000)).subList(1, 4_000));
+        for (Instruction instruction : expectedInput) {
+            if (rates.containsKey(instruction.getCurrency())) {
+                instruction.setAgreedFx(rates.get(instruction.getCurrency()));
+            }
+        }
+        ProcessedInstructions expected = instructionService.addInstructions(expectedInput);
+        assertEquals(entities(expected.getSortedIncomingInstructions()), entities(merged.getSortedIncomingInstructions()));
+        assertEquals(expected.getUsdOutgoingAmountPerDate(), merged.getUsdOutgoingAmountPerDate());
+    }
+
+    @Test
+    public void testIds_ReplaysIgnoredAmendmentsAndCancellationsApplied() {
+        ProcessedInstructions processed = instructionService.addInstructions(withIds(generateInstructions(3_000)));
+        instructionService.addInstructions(withIds(generateInstructions(1_000)).iterator(), processed);
+        for (Instruction amendment : amend(withIds(generateInstructions(100)))) {
+            assertTrue(instructionService.amendInstruction(amendment, processed));
+        }
+        for (int i = 100; i < 200; i++) {
+            assertTrue(instructionService.cancelInstruction("T" + i, processed));
+        }
+        assertFalse(instructionService.cancelInstruction("T150", processed));
+
+        List<Instruction> expectedInput = new ArrayList<>(withIds(generateInstructions(3_000)).subList(200, 3_000));
+        expectedInput.addAll(amend(withIds(generateInstructions(100))));
+        ProcessedInstructions expected = instructionService.addInstructions(expectedInput);
+        assertEquals(2_900, processed.size());
+        assertEquals(entities(expected.getSortedIncomingInstructions()), entities(processed.getSortedIncomingInstructions()));
+        assertEquals(entities(expected.getSortedOutgoingInstructions()), entities(processed.getSortedOutgoingInstructions()));
+        assertEquals(entities(expected.getIncomingInstructionsOn(JUL_23)), entities(processed.getIncomingInstructionsOn(JUL_23)));
+        assertEquals(expected.getUsdIncomingAmountPerDate(), processed.getUsdIncomingAmountPerDate());
+        assertEquals(expected.getUsdOutgoingAmountPerDate(), processed.getUsdOutgoingAmountPerDate());
+        assertEquals(expected.getUsdNetPositionBetween(JUL_22, JUL_24), processed.getUsdNetPositionBetween(JUL_22, JUL_24));
+        assertEquals(expected.getEntitiesByIncomingAmount().stream().map(EntityTotals::getEntity).collect(Collectors.toList()),
+                processed.getEntitiesByIncomingAmount().stream().map(EntityTotals::getEntity).collect(Collectors.toList()));
+        assertTrue(processed.containsInstruction("T50"));
+        assertFalse(processed.containsInstruction("T150"));
+        assertNull(processed.getEntityTotals("Entity150"));
+    }
+
+    @Test
+    public void testIds_LimitedBookNeitherAmendsNorCancels() {
+        ProcessedInstructions limited = new ProcessedInstructions(100);
+        instructionService.addInstructions(withIds(generateInstructions(1_000)).iterator(), limited);
+        try {
+            instructionService.amendInstruction(amend(withIds(generateInstructions(1))).get(0), limited);
+            Assert.fail("A limited book should not amend instructions");
+        } catch (IllegalStateException e) {
+            //Nothing was taken out of the rankings
+        }
+        try {
+            instructionService.cancelInstruction("T0", limited);
+            Assert.fail("A limited book should not cancel instructions");
+        } catch (IllegalStateException e) {
+            //Nothing was taken out of the rankings
+        }
+        ProcessedInstructions replays = new ProcessedInstructions(100);
+        instructionService.addInstructions(withIds(generateInstructions(10)).iterator(), replays);
+        try {
+            limited.merge(replays);
+            Assert.fail("A limited book should not merge replays");
+        } catch (IllegalStateException e) {
+            //Nothing was merged
+        }
+
+        ProcessedInstructions expected = new ProcessedInstructions(100);
+        instructionService.addInstructions(withIds(generateInstructions(1_000)).iterator(), expected);
+        assertEquals(1_000, limited.size());
+        assertEquals(entities(expected.getSortedIncomingInstructions()), entities(limited.getSortedIncomingInstructions()));
+        assertEquals(entities(expected.getSortedOutgoingInstructions()), entities(limited.getSortedOutgoingInstructions()));
+        assertEquals(expected.getUsdIncomingAmountPerDate(), limited.getUsdIncomingAmountPerDate());
+        assertTrue(limited.containsInstruction("T0"));
+    }
+
+    @Test
+    public void testIds_TradesWithEqualAmountsAreNotEqual() {
+        Instruction first = generateInstructions(1).get(0);
+        Instruction second = generateInstructions(1).get(0);
+        assertEquals(first.getAmountInUsd(), second.getAmountInUsd());
+        assertNotEquals(first, second);
+        assertEquals(first, first);
+
+        first.setId("T0");
+        second.setId("T1");
+        assertNotEquals(first, second);
+        //A replay or a correction of the same trade is the same instruction
+        Instruction replay = generateInstructions(1).get(0);
+        replay.setId("T0");
+        replay.setUnits(replay.getUnits() + 1);
+        assertEquals(first, replay);
+        assertEquals(first.hashCode(), replay.hashCode());
+    }
+
+    @Test
+    public void testIdsInParallel_ReplaysIgnoredAcrossWorkers() {
+        List<Instruction> input = withIds(generateInstructions(10_000));
+        input.addAll(withIds(generateInstructions(2_000)));
+        ProcessedInstructions parallel = instructionService.addInstructionsInParallel(input);
+
+        ProcessedInstructions expected = instructionService.addInstructions(withIds(generateInstructions(10_000)));
+        assertEquals(10_000, parallel.size());
+        assertEquals(entities(expected.getSortedIncomingInstructions()), entities(parallel.getSortedIncomingInstructions()));
+        assertEquals(entities(expected.getSortedOutgoingInstructions()), entities(parallel.getSortedOutgoingInstructions()));
+        assertEquals(expected.getUsdIncomingAmountPerDate(), parallel.getUsdIncomingAmountPerDate());
+        assertEquals(expected.getUsdOutgoingAmountPerDate(), parallel.getUsdOutgoingAmountPerDate());
+        assertEquals(expected.getEntityTotals("Entity42").getIncomingCount(), parallel.getEntityTotals("Entity42").getIncomingCount());
+    }
+
+    private static List<Instruction> withIds(List<Instruction> instructions) {
+        for (int i = 0; i < instructions.size(); i++) {
+            instructions.get(i).setId("T" + i);
+        }
+        return instructions;
+    }
+
+    /**
+     * Every instruction gets one more unit, every other one also changes side
+     */
+    private static List<Instruction> amend(List<Instruction> instructions) {
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction instruction = instructions.get(i);
+            instruction.setUnits(instruction.getUnits() + 1);
+            if (i % 2 == 0) {
+                instruction.setType(instruction.getType() == Type.BUY ? Type.SELL : Type.BUY);
+            }
+        }
+        return instructions;
+    }
+
+    private static List<Instruction> generateInstructions(int count) {
+        Random random = new Random(42);
+        String[] currencies = {"GBP", "EUR", "AED", "SAR", "USD"};
+        List<Instruction> instructions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Instruction instruction = new Instruction();
+            instruction.setEntity("Entity" + i);
+            instruction.setType(random.nextBoolean() ? Type.BUY : Type.SELL);
+            instruction.setAgreedFx(BigDecimal.valueOf(random.nextInt(200), 2));
+            instruction.setCurrency(Currency.getInstance(currencies[random.nextInt(currencies.length)]));
+            instruction.setInstructionDate(JUL_20);
+            instruction.setSettlementDate(JUL_20.plusDays(random.nextInt(10)));
+            instruction.setPricePerUnit(BigDecimal.valueOf(random.nextInt(1000)));
+            instruction.setUnits(1 + random.nextInt(50));
+            instructions.add(instruction);
+        }
+        return instructions;
+    }
+
+    private static List<String> entities(Iterable<Instruction> instructions) {
+        List<String> entities = new ArrayList<>();
+        instructions.forEach(instruction -> entities.add(instruction.getEntity()));
+        return entities;
+    }
+
+    private static List<BigDecimal> amounts(Iterable<Instruction> instructions) {
+        List<BigDecimal> amounts = new ArrayList<>();
+        instructions.forEach(instruction -> amounts.add(instruction.getAmountInUsd()));
+        return amounts;
+    }
+}
@@ -0,0 +1,156 @@
+package services;
+
+import domain.Instruction;
+import domain.Type;
+import org.junit.Before;
+import org.junit.Test;
+import output.OffHeapProcessedInstructions;
+import output.ProcessedInstructions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReportServiceTest {
+
+    private static final LocalDate JUL_23 = LocalDate.of(2018, 7, 23);
+
+    private ProcessedInstructions processedInstructions;
+    private StringWriter output = new StringWriter();
+
+    @Before
+    public void setUp() {
+        processedInstructions = new InstructionService().addInstructions(Arrays.asList(
+                instruction("Nikon", "1.11", "GBP", 3, "100"),
+                instruction("Canon, \"Inc\"", "0.5", "EUR", 2, "100.005"),
+                instruction("Leica", "1", "USD", 1, "10")));
+    }
+
+    @Test
+    public void testFixedWidthReport() {
+        ReportService reportService = new ReportService(output, ReportService.Format.FIXED_WIDTH);
+
+        reportService.writeIncomingByDate(processedInstructions, JUL_23, 0, 1);
+        reportService.flush();
+
+        assertEquals("\nINCOMING INSTRUCTIONS ON 23/07/2018:\n\n"
+                + String.format("%10s%10s%10s%19s%18s%10s%16s%15s\n", "Entity", "AgreedFx", "Currency",
+                "Instruction Date", "Settlement Date", "Units", "Price per unit", "Amount in USD")
+                + String.format("%10s%10s%10s%19s%18s%10s%16s%15s\n", "Nikon", "1.11", "GBP",
+                "2018-07-21", "2018-07-23", "3", "100", "333.00"), output.toString());
+    }
+
+    @Test
+    public void testPrintedToGivenStreamWithPaddedYears() {
+        Instruction early = instruction("Zeiss", "1", "USD", 1, "1000");
+        early.setInstructionDate(LocalDate.of(999, 12, 31));
+        LocalDate settlementDate = LocalDate.of(2018, 7, 24);
+        early.setSettlementDate(settlementDate);
+        new InstructionService().addInstruction(early, processedInstructions);
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+
+        ReportService.printIncomingByDate(processedInstructions, settlementDate, new PrintStream(printed, true));
+
+        assertEquals("\nINCOMING INSTRUCTIONS ON 24/07/2018:\n\n"
+                + String.format("%10s%10s%10s%19s%18s%10s%16s%15s\n", "Entity", "AgreedFx", "Currency",
+                "Instruction Date", "Settlement Date", "Units", "Price per unit", "Amount in USD")
+                + String.format("%10s%10s%10s%19s%18s%10s%16s%15s\n", "Zeiss", "1.00", "USD",
+                "0999-12-31", "2018-07-24", "1", "1000", "1000.00"), printed.toString());
+    }
+
+    @Test
+    public void testCsvReportWithPagination() {
+        ReportService reportService = new ReportService(output, ReportService.Format.CSV);
+
+        reportService.writeIncomingRanking(processedInstructions, 1, 5);
+        reportService.flush();
+
+        assertEquals("entity,agreedFx,currency,instructionDate,settlementDate,units,pricePerUnit,amountInUsd\n"
+                + "\"Canon, \"\"Inc\"\"\",0.50,EUR,2018-07-21,2018-07-23,2,100.005,100.01\n"
+                + "Leica,1.00,USD,2018-07-21,2018-07-23,1,10,10.00\n", output.toString());
+    }
+
+    @Test
+    public void testJsonReport() {
+        ReportService reportService = new ReportService(output, ReportService.Format.JSON);
+
+        reportService.writeIncomingRanking(processedInstructions, 1, 1);
+        reportService.writeOutgoingRanking(processedInstructions);
+        reportService.flush();
+
+        assertEquals("{\"title\":\"INCOMING INSTRUCTIONS\",\"instructions\":[{\"entity\":\"Canon, \\\"Inc\\\"\","
+                + "\"agreedFx\":0.50,\"currency\":\"EUR\",\"instructionDate\":\"2018-07-21\",\"settlementDate\":\"2018-07-23\","
+                + "\"units\":2,\"pricePerUnit\":100.005,\"amountInUsd\":100.01}]}\n"
+                + "{\"title\":\"OUTGOING INSTRUCTIONS\",\"instructions\":[]}\n", output.toString());
+    }
+
+    @Test
+    public void testOffHeapRecordsWrittenLikeInstructions() {
+        OffHeapProcessedInstructions offHeapInstructions = new OffHeapProcessedInstructions();
+        new InstructionService().addInstructions(Arrays.asList(
+                instruction("Nikon", "1.11", "GBP", 3, "100"),
+                instruction("Canon, \"Inc\"", "0.5", "EUR", 2, "100.005"),
+                instruction("Leica", "1", "USD", 1, "10")).iterator(), offHeapInstructions);
+        StringWriter offHeapOutput = new StringWriter();
+
+        for (ReportService.Format format : ReportService.Format.values()) {
+            ReportService reportService = new ReportService(output, format);
+            reportService.writeIncomingByDate(processedInstructions, JUL_23, 1, 2);
+            reportService.flush();
+            ReportService offHeapReportService = new ReportService(offHeapOutput, format);
+            offHeapReportService.writeIncomingByDate(offHeapInstructions, JUL_23, 1, 2);
+            offHeapReportService.flush();
+        }
+
+        assertEquals(output.toString(), offHeapOutput.toString());
+    }
+
+    @Test
+    public void testCachedReportsOnlyRenderedAgainWhenAffected() {
+        ReportCache reportCache = new ReportCache(processedInstructions, ReportService.Format.CSV, 10_000);
+        String topTwo = reportCache.getIncomingRanking(0, 2);
+        String onDate = reportCache.getIncomingByDate(JUL_23, 0, 10);
+        String whole = reportCache.getIncomingRanking(0, ReportService.UNLIMITED);
+
+        //Ranks last and settles on another date
+        Instruction smallest = instruction("Fuji", "1", "USD", 1, "1");
+        smallest.setSettlementDate(JUL_23.plusDays(1));
+        new InstructionService().addInstruction(smallest, processedInstructions);
+
+        assertSame(topTwo, reportCache.getIncomingRanking(0, 2));
+        assertSame(onDate, reportCache.getIncomingByDate(JUL_23, 0, 10));
+        String wholeAfter = reportCache.getIncomingRanking(0, ReportService.UNLIMITED);
+        assertNotEquals(whole, wholeAfter);
+        assertEquals(4, reportCache.getMisses());
+        assertEquals(2, reportCache.getHits());
+
+        //Ranks first, on the same date
+        new InstructionService().addInstruction(instruction("Sony", "1", "USD", 1, "1000"), processedInstructions);
+
+        assertTrue(reportCache.getIncomingRanking(0, 2).startsWith("entity,agreedFx,currency,instructionDate,settlementDate,units,pricePerUnit,amountInUsd\nSony,"));
+        assertNotEquals(onDate, reportCache.getIncomingByDate(JUL_23, 0, 10));
+        reportCache.close();
+    }
+
+    private static Instruction instruction(String entity, String agreedFx, String currency, int units, String pricePerUnit) {
+        Instruction instruction = new Instruction();
+        instruction.setEntity(entity);
+        instruction.setType(Type.SELL);
+        instruction.setAgreedFx(new BigDecimal(agreedFx));
+        instruction.setCurrency(Currency.getInstance(currency));
+        instruction.setInstructionDate(LocalDate.of(2018, 7, 21));
+        instruction.setSettlementDate(JUL_23);
+        instruction.setUnits(units);
+        instruction.setPricePerUnit(new BigDecimal(pricePerUnit));
+        return instruction;
+    }
+}